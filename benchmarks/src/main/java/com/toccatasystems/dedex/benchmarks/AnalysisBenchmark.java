@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2011 Toccata Systems.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package com.toccatasystems.dedex.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.toccatasystems.dalvik.DexMethod;
+import com.toccatasystems.dalvik.DexMethodBody;
+import com.toccatasystems.dalvik.analysis.ComputeUseDefInfo;
+import com.toccatasystems.dalvik.analysis.TypeAssignment;
+
+/**
+ * Times each of the standard method body analyses in isolation, over every
+ * method in the input. Each benchmark starts from freshly read bodies that
+ * have been taken through all the preceding stages (outside the timed
+ * region), since the passes modify the body in place.
+ *
+ * @author nkeynes
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnalysisBenchmark {
+	private final static int RAW = 0;
+	private final static int CFG = 1;
+	private final static int USE_DEF = 2;
+
+	@Param({"inner-class.dex", "fill-array.dex"})
+	public String input;
+
+	private List<DexMethod> methods;
+	private List<DexMethodBody> bodies;
+
+	@Setup(Level.Trial)
+	public void loadFile() throws Exception {
+		methods = BenchmarkInputs.getMethodsWithCode(BenchmarkInputs.parse(input));
+		bodies = new ArrayList<DexMethodBody>(methods.size());
+	}
+
+	/**
+	 * Re-read the method bodies and run the analyses up to the given stage.
+	 */
+	private void prepare( int stage ) throws Exception {
+		bodies.clear();
+		for( int i=0; i<methods.size(); i++ ) {
+			DexMethodBody body = methods.get(i).readBody();
+			if( stage >= CFG ) {
+				body.computeCFG();
+			}
+			if( stage >= USE_DEF ) {
+				new ComputeUseDefInfo().analyse(body);
+			}
+			bodies.add(body);
+		}
+	}
+
+	@Benchmark
+	public List<DexMethodBody> readBodies() throws Exception {
+		prepare(RAW);
+		return bodies;
+	}
+
+	/**
+	 * State holding raw bodies, for timing CFG construction.
+	 */
+	@State(Scope.Thread)
+	public static class RawBodies {
+		@Setup(Level.Invocation)
+		public void setup( AnalysisBenchmark bench ) throws Exception {
+			bench.prepare(RAW);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class CFGBodies {
+		@Setup(Level.Invocation)
+		public void setup( AnalysisBenchmark bench ) throws Exception {
+			bench.prepare(CFG);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class UseDefBodies {
+		@Setup(Level.Invocation)
+		public void setup( AnalysisBenchmark bench ) throws Exception {
+			bench.prepare(USE_DEF);
+		}
+	}
+
+	@Benchmark
+	public List<DexMethodBody> computeCFG( RawBodies state ) {
+		for( int i=0; i<bodies.size(); i++ ) {
+			bodies.get(i).computeCFG();
+		}
+		return bodies;
+	}
+
+	@Benchmark
+	public List<DexMethodBody> computeUseDefInfo( CFGBodies state ) {
+		for( int i=0; i<bodies.size(); i++ ) {
+			new ComputeUseDefInfo().analyse(bodies.get(i));
+		}
+		return bodies;
+	}
+
+	@Benchmark
+	public List<DexMethodBody> typeAssignment( UseDefBodies state ) {
+		for( int i=0; i<bodies.size(); i++ ) {
+			new TypeAssignment().analyse(bodies.get(i));
+		}
+		return bodies;
+	}
+}
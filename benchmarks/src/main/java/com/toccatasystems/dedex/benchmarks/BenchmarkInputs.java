@@ -0,0 +1,81 @@
+/**
+ * Copyright (c) 2011 Toccata Systems.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.toccatasystems.dedex.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.toccatasystems.dalvik.DexFile;
+import com.toccatasystems.dalvik.DexMethod;
+import com.toccatasystems.dalvik.DexParser;
+import com.toccatasystems.dalvik.ParseException;
+
+/**
+ * Locates and loads the dex files used as benchmark inputs. Inputs are
+ * named relative to the test case directory (src/test/cases in the dedex
+ * tree, or the directory given by the dedex.cases system property), or may
+ * be given as a path to any other dex file, eg
+ * "-p input=/path/to/classes.dex".
+ *
+ * @author nkeynes
+ *
+ */
+public class BenchmarkInputs {
+	private final static String CASES_PROPERTY = "dedex.cases";
+	private final static String []CASES_DIRS = { "src/test/cases", "../src/test/cases" };
+
+	public static File resolve( String input ) throws IOException {
+		File file = new File(input);
+		if( file.isFile() ) {
+			return file;
+		}
+		String dir = System.getProperty(CASES_PROPERTY);
+		if( dir != null ) {
+			file = new File(dir, input);
+			if( file.isFile() ) {
+				return file;
+			}
+		}
+		for( int i=0; i<CASES_DIRS.length; i++ ) {
+			file = new File(CASES_DIRS[i], input);
+			if( file.isFile() ) {
+				return file;
+			}
+		}
+		throw new IOException( "Unable to find benchmark input '" + input + "' (set -D" +
+				CASES_PROPERTY + "=DIR to the test case directory)" );
+	}
+
+	public static DexFile parse( String input ) throws IOException, ParseException {
+		return new DexParser().parseFile(resolve(input).getPath());
+	}
+
+	/**
+	 * @return all methods in the file that have a body.
+	 */
+	public static List<DexMethod> getMethodsWithCode( DexFile file ) {
+		List<DexMethod> result = new ArrayList<DexMethod>();
+		for( Iterator<DexMethod> it = file.methodIterator(); it.hasNext(); ) {
+			DexMethod method = it.next();
+			if( method.hasBody() ) {
+				result.add(method);
+			}
+		}
+		return result;
+	}
+}
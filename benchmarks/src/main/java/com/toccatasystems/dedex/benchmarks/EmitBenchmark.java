@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2011 Toccata Systems.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package com.toccatasystems.dedex.benchmarks;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.toccatasystems.dalvik.DexClass;
+import com.toccatasystems.dalvik.DexFile;
+import com.toccatasystems.dalvik.DexMethod;
+import com.toccatasystems.dalvik.DexMethodBody;
+import com.toccatasystems.dedex.BytecodeTransformer;
+import com.toccatasystems.dedex.DexClassWriter;
+import com.toccatasystems.dedex.DexToClassTransformer;
+import com.toccatasystems.dedex.RestructureExceptions;
+
+/**
+ * Times the back half of the pipeline: exception restructuring, JVM
+ * bytecode generation for each method, and conversion of whole classes
+ * (including the ASM class writer).
+ *
+ * @author nkeynes
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EmitBenchmark {
+
+	@Param({"inner-class.dex", "fill-array.dex"})
+	public String input;
+
+	private DexFile file;
+	private BytecodeTransformer bct;
+	private DexToClassTransformer transform;
+
+	/**
+	 * Load and analyse all method bodies, and restructure the exception
+	 * handlers, ready for bytecode generation.
+	 */
+	@Setup(Level.Trial)
+	public void loadFile() throws Exception {
+		file = load(input);
+		new RestructureExceptions().transform(file);
+		bct = new BytecodeTransformer();
+		transform = new DexToClassTransformer(null, null);
+	}
+
+	private static DexFile load( String input ) throws Exception {
+		DexFile file = BenchmarkInputs.parse(input);
+		for( Iterator<DexMethodBody> it = file.methodBodyIterator(); it.hasNext(); ) {
+			it.next();
+		}
+		return file;
+	}
+
+	/**
+	 * State holding a freshly loaded file, as RestructureExceptions modifies
+	 * the method bodies.
+	 */
+	@State(Scope.Thread)
+	public static class LoadedFile {
+		DexFile file;
+
+		@Setup(Level.Invocation)
+		public void setup( EmitBenchmark bench ) throws Exception {
+			file = load(bench.input);
+		}
+	}
+
+	@Benchmark
+	public DexFile restructureExceptions( LoadedFile state ) {
+		new RestructureExceptions().transform(state.file);
+		return state.file;
+	}
+
+	@Benchmark
+	public void bytecodeTransform( Blackhole bh ) {
+		for( int i=0; i<file.getNumClasses(); i++ ) {
+			DexClass clz = file.getClass(i);
+			ClassWriter writer = new DexClassWriter(file, ClassWriter.COMPUTE_MAXS);
+			writer.visit(Opcodes.V1_6, clz.getFlags(), clz.getInternalName(), null,
+					clz.getInternalSuperName(), clz.getInternalInterfaces());
+			for( int j=0; j<clz.getNumMethods(); j++ ) {
+				DexMethod method = clz.getMethod(j);
+				if( method.hasBody() ) {
+					MethodVisitor mv = writer.visitMethod(method.getFlags(), method.getName(),
+							method.getDescriptor(), null, null);
+					bct.transform(method.getBody(), mv);
+					mv.visitEnd();
+				}
+			}
+			bh.consume(writer);
+		}
+	}
+
+	@Benchmark
+	public void transformClasses( Blackhole bh ) {
+		for( int i=0; i<file.getNumClasses(); i++ ) {
+			bh.consume(transform.transformClass(file, file.getClass(i)));
+		}
+	}
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright (c) 2011 Toccata Systems.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package com.toccatasystems.dedex.benchmarks;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.toccatasystems.dalvik.DexFile;
+import com.toccatasystems.dalvik.DexMethodBody;
+
+/**
+ * Times DexParser.parseFile, both alone (method bodies are only read on
+ * demand) and followed by loading every method body, which runs the full
+ * standard analysis pipeline.
+ *
+ * @author nkeynes
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+	@Param({"inner-class.dex", "fill-array.dex"})
+	public String input;
+
+	@Benchmark
+	public DexFile parseFile() throws Exception {
+		return BenchmarkInputs.parse(input);
+	}
+
+	@Benchmark
+	public DexFile parseAndLoadBodies() throws Exception {
+		DexFile file = BenchmarkInputs.parse(input);
+		for( Iterator<DexMethodBody> it = file.methodBodyIterator(); it.hasNext(); ) {
+			it.next();
+		}
+		return file;
+	}
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) 2011 Toccata Systems.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package com.toccatasystems.dedex.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.toccatasystems.dalvik.DexClass;
+import com.toccatasystems.dalvik.DexFile;
+import com.toccatasystems.dedex.ClassOutputWriter;
+import com.toccatasystems.dedex.DexToClassTransformer;
+import com.toccatasystems.dedex.FileClassWriter;
+import com.toccatasystems.dedex.ParallelJarClassWriter;
+import com.toccatasystems.dedex.RestructureExceptions;
+
+/**
+ * Times each ClassOutputWriter writing out a set of converted classes. The
+ * classes of the input are converted once, then replicated (under
+ * different names) the given number of times to make a synthetic large
+ * output.
+ *
+ * @author nkeynes
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriterBenchmark {
+
+	@Param({"inner-class.dex", "fill-array.dex"})
+	public String input;
+
+	@Param({"1", "1000"})
+	public int copies;
+
+	@Param({"dir", "parallel-jar-1", "parallel-jar-4", "parallel-jar-store"})
+	public String writer;
+
+	private List<String> names;
+	private List<byte[]> classes;
+	private File outputDir;
+
+	@Setup(Level.Trial)
+	public void convert() throws Exception {
+		DexFile file = BenchmarkInputs.parse(input);
+		new RestructureExceptions().transform(file);
+		DexToClassTransformer transform = new DexToClassTransformer(null, null);
+		List<String> baseNames = new ArrayList<String>();
+		List<byte[]> baseClasses = new ArrayList<byte[]>();
+		for( int i=0; i<file.getNumClasses(); i++ ) {
+			DexClass clz = file.getClass(i);
+			baseNames.add(clz.getInternalName());
+			baseClasses.add(transform.transformClass(file, clz));
+		}
+
+		names = new ArrayList<String>();
+		classes = new ArrayList<byte[]>();
+		for( int copy=0; copy<copies; copy++ ) {
+			for( int i=0; i<baseNames.size(); i++ ) {
+				names.add(copies == 1 ? baseNames.get(i) : "copy" + copy + "/" + baseNames.get(i));
+				classes.add(baseClasses.get(i));
+			}
+		}
+
+		outputDir = File.createTempFile("dedex-bench", "");
+		outputDir.delete();
+		outputDir.mkdirs();
+	}
+
+	@TearDown(Level.Trial)
+	public void cleanup() {
+		delete(outputDir);
+	}
+
+	private static void delete( File file ) {
+		File []children = file.listFiles();
+		if( children != null ) {
+			for( int i=0; i<children.length; i++ ) {
+				delete(children[i]);
+			}
+		}
+		file.delete();
+	}
+
+	private ClassOutputWriter createWriter() throws IOException {
+		String jar = new File(outputDir, "out.jar").getPath();
+		if( writer.equals("dir") ) {
+			return new FileClassWriter(new File(outputDir, "classes").getPath());
+		} else if( writer.equals("parallel-jar-1") ) {
+			return new ParallelJarClassWriter(jar, 1, false);
+		} else if( writer.equals("parallel-jar-4") ) {
+			return new ParallelJarClassWriter(jar, 4, false);
+		} else if( writer.equals("parallel-jar-store") ) {
+			return new ParallelJarClassWriter(jar, 4, true);
+		} else {
+			throw new IllegalArgumentException( "Unknown writer '" + writer + "'" );
+		}
+	}
+
+	@Benchmark
+	public void write() throws IOException {
+		ClassOutputWriter output = createWriter();
+		output.begin(input, 0);
+		for( int i=0; i<names.size(); i++ ) {
+			output.write(names.get(i), classes.get(i));
+		}
+		output.end(input);
+		output.close();
+	}
+}
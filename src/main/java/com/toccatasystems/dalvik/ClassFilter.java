@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) 2011 Toccata Systems.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.toccatasystems.dalvik;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Selects classes by name, for conversion of part of a dex file. Patterns
+ * are matched against the java class name (eg com.vendor.sdk.Foo$Bar), and
+ * a class is selected if it matches any of them. Patterns are globs, where
+ * '*' matches any part of a single package or class name, '**' matches
+ * any sequence of characters (including '.') and '?' matches one character
+ * other than '.', or regular expressions if prefixed with "re:".
+ *
+ * An empty filter selects every class.
+ *
+ * @author nkeynes
+ *
+ */
+public class ClassFilter {
+	public final static String REGEX_PREFIX = "re:";
+
+	private List<Pattern> patterns;
+
+	public ClassFilter() {
+		this.patterns = new ArrayList<Pattern>();
+	}
+
+	/**
+	 * Add a glob or "re:" regular expression pattern.
+	 * @throws IllegalArgumentException if the regular expression is invalid.
+	 */
+	public void addPattern( String pattern ) {
+		if( pattern.startsWith(REGEX_PREFIX) ) {
+			patterns.add(Pattern.compile(pattern.substring(REGEX_PREFIX.length())));
+		} else {
+			patterns.add(Pattern.compile(globToRegex(pattern)));
+		}
+	}
+
+	/**
+	 * Add a single class, by its java name.
+	 */
+	public void addClass( String className ) {
+		patterns.add(Pattern.compile(Pattern.quote(className)));
+	}
+
+	public boolean isEmpty() {
+		return patterns.isEmpty();
+	}
+
+	/**
+	 * @param className the java name of the class (eg java.lang.Object)
+	 * @return true if the class is selected by the filter.
+	 */
+	public boolean accept( String className ) {
+		if( patterns.isEmpty() ) {
+			return true;
+		}
+		for( Iterator<Pattern> it = patterns.iterator(); it.hasNext(); ) {
+			if( it.next().matcher(className).matches() ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param descriptor the type descriptor of a class (eg Ljava/lang/Object;)
+	 * @return true if the class is selected by the filter.
+	 */
+	public boolean acceptDescriptor( String descriptor ) {
+		if( patterns.isEmpty() ) {
+			return true;
+		}
+		return accept(DexType.format(descriptor));
+	}
+
+	private static String globToRegex( String glob ) {
+		StringBuilder regex = new StringBuilder();
+		int literalStart = 0;
+		for( int i=0; i<glob.length(); i++ ) {
+			char c = glob.charAt(i);
+			if( c == '*' || c == '?' ) {
+				if( i > literalStart ) {
+					regex.append(Pattern.quote(glob.substring(literalStart, i)));
+				}
+				if( c == '?' ) {
+					regex.append("[^.]");
+				} else if( i+1 < glob.length() && glob.charAt(i+1) == '*' ) {
+					regex.append(".*");
+					i++;
+				} else {
+					regex.append("[^.]*");
+				}
+				literalStart = i+1;
+			}
+		}
+		if( literalStart < glob.length() ) {
+			regex.append(Pattern.quote(glob.substring(literalStart)));
+		}
+		return regex.toString();
+	}
+}
@@ -18,6 +18,16 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 
+/**
+ * An annotation on a class, field, method or parameter. Annotations read from
+ * a file initially hold only their type and visibility, and the location of
+ * their elements in the file. Asking for a single element with {@link #get}
+ * reads (and keeps) just that element; anything that needs the whole element
+ * map reads all of them.
+ *
+ * @author nkeynes
+ *
+ */
 public class DexAnnotation {
 	
 	public final static int VISIBILITY_NONE = -1;
@@ -37,6 +47,8 @@ public class DexAnnotation {
 	private String type;
 	private int visibility;
 	private Map<String,DexValue> elements;
+	private int elementsOffset; /* File offset of the unread elements, or 0 */
+	private Map<String,DexValue> found; /* Elements read by get() so far */
 	private DexItem parent;
 	
 	public DexAnnotation(String type, int visibility) {
@@ -45,6 +57,16 @@ public class DexAnnotation {
 		this.elements = new TreeMap<String,DexValue>();
 	}
 	
+	/**
+	 * Construct an annotation whose elements are read on demand from the
+	 * parent's file.
+	 */
+	DexAnnotation(String type, int visibility, int elementsOffset) {
+		this.type = type;
+		this.visibility = visibility;
+		this.elementsOffset = elementsOffset;
+	}
+	
 	protected void add( String name, DexValue value ) {
 		elements.put(name, value);
 	}
@@ -53,8 +75,38 @@ public class DexAnnotation {
 		return type;
 	}
 	
-	public DexValue get( String name ) {
-		return elements.get(name);
+	public synchronized DexValue get( String name ) {
+		if( elementsOffset == 0 ) {
+			return elements.get(name);
+		}
+		if( found == null ) {
+			found = new TreeMap<String,DexValue>();
+		} else if( found.containsKey(name) ) {
+			return found.get(name);
+		}
+		try {
+			DexValue value = DexParser.readAnnotationElement(this, elementsOffset, name);
+			found.put(name, value);
+			return value;
+		} catch( ParseException e ) {
+			throw new RuntimeException( "Unable to read annotation " + DexType.format(type) +
+					": " + e.getMessage(), e );
+		}
+	}
+	
+	private synchronized Map<String,DexValue> getElements() {
+		if( elementsOffset != 0 ) {
+			elements = new TreeMap<String,DexValue>();
+			try {
+				DexParser.loadAnnotationElements(this, elementsOffset);
+			} catch( ParseException e ) {
+				throw new RuntimeException( "Unable to read annotation " + DexType.format(type) +
+						": " + e.getMessage(), e );
+			}
+			elementsOffset = 0;
+			found = null;
+		}
+		return elements;
 	}
 	
 	
@@ -111,15 +163,15 @@ public class DexAnnotation {
 	}
 	
 	public Map<String,DexValue> getMap() {
-		return elements;
+		return getElements();
 	}
 	
 	public Set<Map.Entry<String,DexValue>> entrySet() {
-		return elements.entrySet();
+		return getElements().entrySet();
 	}
 	
 	public int size() {
-		return elements.size();
+		return getElements().size();
 	}
 
 	protected void setParent( DexItem parent ) { this.parent = parent; }
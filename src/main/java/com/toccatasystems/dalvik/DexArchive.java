@@ -0,0 +1,332 @@
+/**
+ * Copyright (c) 2011 Toccata Systems.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.toccatasystems.dalvik;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * An APK (or any other zip archive) containing one or more dex files, named
+ * classes.dex, classes2.dex ... classesN.dex. The archive is memory-mapped;
+ * stored dex entries are parsed directly from a slice of the mapping, and
+ * deflated entries are inflated into a direct buffer.
+ *
+ * The dex files are named "archive!entry", eg "app.apk!classes2.dex".
+ *
+ * @author nkeynes
+ *
+ */
+public class DexArchive {
+	private final static int LOCAL_HEADER_SIG = 0x04034b50;
+	private final static int CENTRAL_HEADER_SIG = 0x02014b50;
+	private final static int END_SIG = 0x06054b50;
+	private final static int END_SIZE = 22;
+	private final static int MAX_COMMENT_SIZE = 0xFFFF;
+	private final static int METHOD_STORED = 0;
+	private final static int METHOD_DEFLATED = 8;
+
+	private final static String DEX_PREFIX = "classes";
+	private final static String DEX_SUFFIX = ".dex";
+
+	/**
+	 * A dex file entry in the archive.
+	 */
+	private static class Entry {
+		String name;
+		int number;
+		int method;
+		long compressedSize;
+		long size;
+		long headerOffset;
+	}
+
+	private String filename;
+	private long timestamp;
+	private ByteBuffer data;
+	private List<Entry> entries;
+	private ClassFilter classFilter;
+
+	/**
+	 * Open the archive and locate its dex entries.
+	 * @throws IOException if the file cannot be read or is not a valid zip
+	 */
+	public DexArchive( String filename ) throws IOException {
+		this.filename = filename;
+		this.timestamp = new File(filename).lastModified();
+		FileChannel channel = new FileInputStream(filename).getChannel();
+		try {
+			data = channel.map(MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			channel.close();
+		}
+		data.order(ByteOrder.LITTLE_ENDIAN);
+		entries = readCentralDirectory();
+	}
+
+	/**
+	 * @return true if the file looks like a zip archive (rather than a bare
+	 * dex file).
+	 */
+	public static boolean isArchive( String filename ) throws IOException {
+		InputStream in = new FileInputStream(filename);
+		try {
+			byte []magic = new byte[4];
+			int len = in.read(magic);
+			return len == 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4;
+		} finally {
+			in.close();
+		}
+	}
+
+	public String getName() {
+		return filename;
+	}
+
+	/**
+	 * Only parse the selected classes from each dex entry (see
+	 * {@link DexParser#setClassFilter}).
+	 */
+	public void setClassFilter( ClassFilter filter ) {
+		this.classFilter = filter;
+	}
+
+	public int getNumEntries() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the name of the idx'th dex entry, in load order (classes.dex
+	 * first).
+	 */
+	public String getEntryName( int idx ) {
+		return entries.get(idx).name;
+	}
+
+	/**
+	 * @return the contents of the idx'th dex entry, positioned at 0.
+	 */
+	public ByteBuffer getEntryData( int idx ) throws IOException {
+		Entry entry = entries.get(idx);
+		ByteBuffer buf = data.duplicate();
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		int header = checkOffset(entry.headerOffset, 30);
+		if( buf.getInt(header) != LOCAL_HEADER_SIG ) {
+			throw new IOException( "Invalid local header for " + entry.name + " in " + filename );
+		}
+		long start = header + 30L + (buf.getShort(header + 26) & 0xFFFF) + (buf.getShort(header + 28) & 0xFFFF);
+		int offset = checkOffset(start, entry.compressedSize);
+		buf.position(offset);
+		buf.limit(offset + (int)entry.compressedSize);
+		if( entry.method == METHOD_STORED ) {
+			return buf.slice();
+		}
+
+		byte []input = new byte[(int)entry.compressedSize];
+		buf.get(input);
+		byte []output = new byte[(int)entry.size];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(input);
+			int len = 0;
+			while( len < output.length && !inflater.finished() ) {
+				int n = inflater.inflate(output, len, output.length - len);
+				if( n == 0 && (inflater.needsInput() || inflater.needsDictionary()) ) {
+					break;
+				}
+				len += n;
+			}
+			if( len != output.length ) {
+				throw new IOException( "Truncated entry " + entry.name + " in " + filename );
+			}
+		} catch( DataFormatException e ) {
+			throw new IOException( "Corrupt entry " + entry.name + " in " + filename + ": " + e.getMessage() );
+		} finally {
+			inflater.end();
+		}
+		ByteBuffer result = ByteBuffer.allocateDirect(output.length);
+		result.put(output);
+		result.flip();
+		return result;
+	}
+
+	/**
+	 * Parse the idx'th dex entry.
+	 */
+	public DexFile parseEntry( int idx ) throws IOException, ParseException {
+		DexParser parser = new DexParser();
+		parser.setClassFilter(classFilter);
+		return parser.parseBuffer(filename + "!" + getEntryName(idx), getEntryData(idx), timestamp);
+	}
+
+	/**
+	 * Parse all dex entries, using up to the given number of threads, and
+	 * link the results together (see {@link DexFile#link}).
+	 * @return the dex files, in load order.
+	 */
+	public DexFile[] parse( int threads ) throws IOException, ParseException {
+		DexFile []result = new DexFile[entries.size()];
+		if( threads <= 1 || result.length <= 1 ) {
+			for( int i=0; i<result.length; i++ ) {
+				result[i] = parseEntry(i);
+			}
+		} else {
+			ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, result.length));
+			try {
+				List<Future<DexFile>> futures = new ArrayList<Future<DexFile>>();
+				for( int i=0; i<result.length; i++ ) {
+					final int idx = i;
+					futures.add(pool.submit(new Callable<DexFile>() {
+						public DexFile call() throws IOException, ParseException {
+							return parseEntry(idx);
+						}
+					}));
+				}
+				for( int i=0; i<result.length; i++ ) {
+					result[i] = waitFor(futures.get(i));
+				}
+			} finally {
+				pool.shutdown();
+			}
+		}
+		DexFile.link(result);
+		return result;
+	}
+
+	private static DexFile waitFor( Future<DexFile> future ) throws IOException, ParseException {
+		try {
+			return future.get();
+		} catch( InterruptedException e ) {
+			throw new IOException( "Interrupted while parsing" );
+		} catch( ExecutionException e ) {
+			Throwable cause = e.getCause();
+			if( cause instanceof IOException ) {
+				throw (IOException)cause;
+			} else if( cause instanceof ParseException ) {
+				throw (ParseException)cause;
+			} else if( cause instanceof RuntimeException ) {
+				throw (RuntimeException)cause;
+			} else {
+				throw new RuntimeException(cause);
+			}
+		}
+	}
+
+	private int checkOffset( long offset, long length ) throws IOException {
+		if( offset < 0 || length < 0 || offset + length > data.capacity() ) {
+			throw new IOException( "Invalid zip file " + filename );
+		}
+		return (int)offset;
+	}
+
+	/**
+	 * @return the dex entry number for the name, ie 1 for classes.dex, N
+	 * for classesN.dex, or -1 if it isn't a dex entry.
+	 */
+	private static int getDexNumber( String name ) {
+		if( !name.startsWith(DEX_PREFIX) || !name.endsWith(DEX_SUFFIX) ) {
+			return -1;
+		}
+		String number = name.substring(DEX_PREFIX.length(), name.length() - DEX_SUFFIX.length());
+		if( number.length() == 0 ) {
+			return 1;
+		}
+		try {
+			int result = Integer.parseInt(number);
+			return result >= 2 && number.charAt(0) != '0' ? result : -1;
+		} catch( NumberFormatException e ) {
+			return -1;
+		}
+	}
+
+	private List<Entry> readCentralDirectory() throws IOException {
+		int capacity = data.capacity();
+		int end = -1;
+		for( int posn = capacity - END_SIZE; posn >= 0 && posn >= capacity - END_SIZE - MAX_COMMENT_SIZE; posn-- ) {
+			if( data.getInt(posn) == END_SIG ) {
+				end = posn;
+				break;
+			}
+		}
+		if( end == -1 ) {
+			throw new IOException( "Invalid zip file " + filename + " (no end of central directory)" );
+		}
+		int numEntries = data.getShort(end + 10) & 0xFFFF;
+		long dirOffset = data.getInt(end + 16) & 0xFFFFFFFFL;
+		if( numEntries == 0xFFFF || dirOffset == 0xFFFFFFFFL ) {
+			throw new IOException( "ZIP64 archives are not supported: " + filename );
+		}
+
+		List<Entry> result = new ArrayList<Entry>();
+		int posn = checkOffset(dirOffset, 0);
+		for( int i=0; i<numEntries; i++ ) {
+			checkOffset(posn, 46);
+			if( data.getInt(posn) != CENTRAL_HEADER_SIG ) {
+				throw new IOException( "Invalid zip file " + filename + " (bad central directory)" );
+			}
+			int nameLength = data.getShort(posn + 28) & 0xFFFF;
+			int extraLength = data.getShort(posn + 30) & 0xFFFF;
+			int commentLength = data.getShort(posn + 32) & 0xFFFF;
+			checkOffset(posn + 46, nameLength);
+			byte []nameBytes = new byte[nameLength];
+			ByteBuffer buf = data.duplicate();
+			buf.position(posn + 46);
+			buf.get(nameBytes);
+			String name = new String(nameBytes, "UTF-8");
+
+			int number = getDexNumber(name);
+			if( number != -1 ) {
+				Entry entry = new Entry();
+				entry.name = name;
+				entry.number = number;
+				entry.method = data.getShort(posn + 10) & 0xFFFF;
+				entry.compressedSize = data.getInt(posn + 20) & 0xFFFFFFFFL;
+				entry.size = data.getInt(posn + 24) & 0xFFFFFFFFL;
+				entry.headerOffset = data.getInt(posn + 42) & 0xFFFFFFFFL;
+				if( entry.method != METHOD_STORED && entry.method != METHOD_DEFLATED ) {
+					throw new IOException( "Unsupported compression method " + entry.method +
+							" for " + name + " in " + filename );
+				}
+				if( entry.size > Integer.MAX_VALUE || entry.compressedSize > Integer.MAX_VALUE ) {
+					throw new IOException( "Entry " + name + " is too large in " + filename );
+				}
+				result.add(entry);
+			}
+			posn += 46 + nameLength + extraLength + commentLength;
+		}
+		Collections.sort(result, new Comparator<Entry>() {
+			public int compare( Entry o1, Entry o2 ) {
+				return o1.number - o2.number;
+			}
+		});
+		return result;
+	}
+}
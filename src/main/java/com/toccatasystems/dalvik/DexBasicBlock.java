@@ -32,6 +32,9 @@ public class DexBasicBlock {
 	private List<DexBasicBlock> predecessors;
 	private List<DexBasicBlock> successors;
 	private List<DexBasicBlock> exceptionSuccessors; 
+	/* Position of the block in the method's layout order, and in pc order */
+	private int layoutIndex;
+	private int pcIndex;
 	
 	public DexBasicBlock(DexMethodBody parent) {
 		this.parent = parent;
@@ -62,28 +65,71 @@ public class DexBasicBlock {
 		return this.parent;
 	}
 	
+	/**
+	 * @return the position of the block in the method's layout order (ie the
+	 * order of DexMethodBody.iterator())
+	 */
+	public int getLayoutIndex() {
+		return layoutIndex;
+	}
+	
+	void setLayoutIndex( int layoutIndex ) {
+		this.layoutIndex = layoutIndex;
+	}
+	
+	/**
+	 * @return the position of the block in the method's pc order.
+	 */
+	int getPCIndex() {
+		return pcIndex;
+	}
+	
+	void setPCIndex( int pcIndex ) {
+		this.pcIndex = pcIndex;
+	}
+	
 	public void add( DexInstruction ins ) {
+		ins.setBlockIndex(instructions.size());
 		instructions.add(ins);
 		ins.setParent(this);
 	}
 	
 	public void insertBefore( DexInstruction ins, DexInstruction before ) {
-		for( int i=0; i<instructions.size(); i++ ) {
-			if( instructions.get(i) == before ) {
-				instructions.add(i, ins);
-				return;
-			}
-		}
-		instructions.add(ins);
+		int idx = indexOf(before);
+		insert( idx == -1 ? instructions.size() : idx, ins );
 	}
 	
 	public void insertAfter( DexInstruction ins, DexInstruction after ) {
+		int idx = indexOf(after);
+		insert( idx == -1 ? instructions.size() : idx+1, ins );
+	}
+	
+	/**
+	 * Insert the instruction at the given position, and renumber the
+	 * instructions following it.
+	 */
+	private void insert( int idx, DexInstruction ins ) {
+		instructions.add(idx, ins);
+		for( int i=idx; i<instructions.size(); i++ ) {
+			instructions.get(i).setBlockIndex(i);
+		}
+	}
+	
+	/**
+	 * @return the position of the instruction in the block, or -1 if it is
+	 * not in the block.
+	 */
+	private int indexOf( DexInstruction inst ) {
+		int idx = inst.getBlockIndex();
+		if( idx >= 0 && idx < instructions.size() && instructions.get(idx) == inst ) {
+			return idx;
+		}
+		/* The list was modified through an iterator, so renumber */
 		for( int i=0; i<instructions.size(); i++ ) {
-			if( instructions.get(i) == after ) {
-				instructions.add(i+1, ins);
-			}
+			instructions.get(i).setBlockIndex(i);
 		}
-		instructions.add(ins);
+		idx = inst.getBlockIndex();
+		return idx < instructions.size() && instructions.get(idx) == inst ? idx : -1;
 	}
 
 	public void addSuccessor( DexBasicBlock next ) {
@@ -113,27 +159,19 @@ public class DexBasicBlock {
 	}
 	
 	public DexInstruction getNext( DexInstruction after ) {
-		Iterator<DexInstruction> it;
-		for( it = instructions.iterator(); it.hasNext(); ) {
-			if( it.next() == after )
-				break;
-		}
-		if( it.hasNext() ) 
-			return it.next();
+		int idx = indexOf(after);
+		if( idx != -1 && idx+1 < instructions.size() ) 
+			return instructions.get(idx+1);
 		else
 			return null;
 	}
 	
 	public DexInstruction getPrevious( DexInstruction before ) {
-		Iterator<DexInstruction> it;
-		DexInstruction prev = null;
-		for( it = instructions.iterator(); it.hasNext(); ) {
-			DexInstruction inst = it.next();
-			if( inst == before )
-				return prev;
-			prev = inst;
-		}
-		return null;
+		int idx = indexOf(before);
+		if( idx > 0 )
+			return instructions.get(idx-1);
+		else
+			return null;
 	}
 	
 	public DexInstruction getTerminator() {
@@ -175,21 +213,13 @@ public class DexBasicBlock {
 	 * pointing at the specified instruction.
 	 */
 	public Iterator<DexInstruction> iterator(DexInstruction start) {
-		for( int i=0; i<instructions.size(); i++ ) {
-			if( instructions.get(i) == start ) {
-				return instructions.listIterator(i);
-			}
-		}
-		return instructions.listIterator(instructions.size());
+		int idx = indexOf(start);
+		return instructions.listIterator(idx == -1 ? instructions.size() : idx);
 	}
 	
 	public Iterator<DexInstruction> reverseIterator(DexInstruction start) {
-		for( int i=0; i<instructions.size(); i++ ) {
-			if( instructions.get(i) == start ) {
-				return new ReverseListIterator<DexInstruction>(instructions, i);
-			}
-		}
-		return new ReverseListIterator<DexInstruction>(instructions,0);
+		int idx = indexOf(start);
+		return new ReverseListIterator<DexInstruction>(instructions, idx == -1 ? 0 : idx);
 	}		
 	
 	/**
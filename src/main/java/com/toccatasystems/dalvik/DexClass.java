@@ -79,7 +79,7 @@ public class DexClass extends DexItem {
 		if( superclass == null )
 			return null;
 		else
-			return getFile().getClass(formatInternalName(superclass));
+			return getFile().findClassByDescriptor(superclass);
 	}
 	
 	public String[] getInterfaces() {
@@ -161,6 +161,18 @@ public class DexClass extends DexItem {
 		return hasAnnotation(DexAnnotation.DALVIK_INNERCLASS);
 	}
 	
+	public int getNumFields() {
+		return staticFields.length + instanceFields.length;
+	}
+	
+	public DexField getField( int idx ) {
+		if( idx < staticFields.length ) {
+			return staticFields[idx];
+		} else {
+			return instanceFields[idx - staticFields.length];
+		}
+	}
+	
 	public int getNumMethods() {
 		return directMethods.length + virtualMethods.length;
 	}
@@ -173,6 +185,20 @@ public class DexClass extends DexItem {
 		}
 	}
 	
+	/**
+	 * Discard the bodies of all methods in the class, along with their
+	 * analysis results. Bodies are read and analysed again from the file if
+	 * they are subsequently requested.
+	 */
+	public void releaseBodies() {
+		for( int i=0; i<directMethods.length; i++ ) {
+			directMethods[i].releaseBody();
+		}
+		for( int i=0; i<virtualMethods.length; i++ ) {
+			virtualMethods[i].releaseBody();
+		}
+	}
+	
 	public boolean isAssignableTo( DexClass other ) {
 		if( other.name.equals(name) )
 			return true;
@@ -0,0 +1,343 @@
+/**
+ * Copyright (c) 2011 Toccata Systems.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.toccatasystems.dalvik;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Index of the class hierarchy visible to a dex file, built from the class
+ * definitions in the file plus (optionally) a library of external classes
+ * such as android.jar. Answers subtype and common-superclass queries on
+ * internal names without loading any classes.
+ *
+ * Ancestor information is computed the first time each type is seen and
+ * memoized. Lookups may be made concurrently from multiple threads.
+ *
+ * Each class in the hierarchy also gets an id, and a bitset of the ids of
+ * all its supertypes, which back DexType.isSubtypeOf. The system types
+ * known to DexType keep their own ids (so they are the same in every
+ * hierarchy), and other classes are numbered from there.
+ *
+ * @author nkeynes
+ *
+ */
+public class DexClassHierarchy {
+	public final static String OBJECT = "java/lang/Object";
+
+	/**
+	 * Header information for a single class.
+	 */
+	public static class ClassInfo {
+		private String name;
+		private String superName;
+		private String []interfaces;
+		private boolean isInterface;
+
+		/**
+		 * @param name internal name of the class
+		 * @param superName internal name of the superclass, or null for
+		 * java/lang/Object.
+		 * @param interfaces internal names of the directly implemented
+		 * interfaces (may be null)
+		 */
+		public ClassInfo( String name, String superName, String []interfaces, boolean isInterface ) {
+			this.name = name;
+			this.superName = superName;
+			this.interfaces = interfaces == null ? new String[0] : interfaces;
+			this.isInterface = isInterface;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getSuperName() {
+			return superName;
+		}
+
+		public String[] getInterfaces() {
+			return interfaces;
+		}
+
+		public boolean isInterface() {
+			return isInterface;
+		}
+	}
+
+	/**
+	 * Source of class information for types that are not defined in the
+	 * dex file.
+	 */
+	public interface Library {
+		/**
+		 * @return the class information for the given internal name, or null
+		 * if the class is not in the library.
+		 */
+		ClassInfo lookup( String internalName );
+	}
+
+	/**
+	 * Memoized ancestor information for a type.
+	 */
+	private static class Node {
+		ClassInfo info;
+		/** The class followed by its superclasses, in order. Ends with
+		 * java/lang/Object unless some superclass is unknown. */
+		String []superChain;
+		/** All classes and interfaces the type is assignable to */
+		Set<String> supertypes;
+		/** Id of the type in the subtype bitsets */
+		int id;
+		/** Ids of the type and all of its supertypes that have ids */
+		long []ancestorIds;
+		/** True if every superclass is known, up to java/lang/Object */
+		boolean complete;
+	}
+
+	private DexFile file;
+	private Library library;
+	private ConcurrentHashMap<String, Node> nodes;
+	private AtomicInteger nextId;
+
+	/**
+	 * @param file the dex file whose classes define the hierarchy
+	 * @param library external classes, or null if there are none.
+	 */
+	public DexClassHierarchy( DexFile file, Library library ) {
+		this.file = file;
+		this.library = library;
+		this.nodes = new ConcurrentHashMap<String, Node>();
+		this.nextId = new AtomicInteger(DexType.getNumSystemTypes());
+	}
+
+	/**
+	 * @return the class information for the type, or null if it is neither
+	 * in the dex file nor in the library.
+	 */
+	public ClassInfo getClassInfo( String internalName ) {
+		Node node = getNode(internalName);
+		return node == null ? null : node.info;
+	}
+
+	/**
+	 * @return true if the type is known to be an interface.
+	 */
+	public boolean isInterface( String internalName ) {
+		ClassInfo info = getClassInfo(internalName);
+		return info != null && info.isInterface();
+	}
+
+	/**
+	 * @return true if the type is known to be assignable to the target
+	 * type, ie it is the same class, or a subclass or implementation of it.
+	 */
+	public boolean isSubtypeOf( String type, String target ) {
+		if( type.equals(target) || target.equals(OBJECT) ) {
+			return true;
+		}
+		Node node = getNode(type);
+		return node != null && node.supertypes.contains(target);
+	}
+
+	/**
+	 * Find the nearest common superclass of two classes given as internal
+	 * names. If one is an interface implemented by the other, the interface
+	 * is returned. Unrelated or unknown classes resolve to java/lang/Object.
+	 */
+	public String getCommonSuperClass( String type1, String type2 ) {
+		if( isSubtypeOf(type1, type2) ) {
+			return type2;
+		} else if( isSubtypeOf(type2, type1) ) {
+			return type1;
+		}
+		Node node1 = getNode(type1);
+		Node node2 = getNode(type2);
+		if( node1 == null || node2 == null || node1.info.isInterface() || node2.info.isInterface() ) {
+			return OBJECT;
+		}
+		String []chain = node1.superChain;
+		for( int i=1; i<chain.length; i++ ) {
+			if( node2.supertypes.contains(chain[i]) ) {
+				return chain[i];
+			}
+		}
+		return OBJECT;
+	}
+
+	/**
+	 * @return the id of the type in the subtype bitsets, or -1 if the type
+	 * is not in the hierarchy (or the system types).
+	 */
+	int getTypeId( String internalName ) {
+		Node node = getNode(internalName);
+		if( node != null ) {
+			return node.id;
+		}
+		DexType system = getSystemType(internalName);
+		return system == null ? -1 : system.getId();
+	}
+
+	/**
+	 * @return the ids of the type and its known supertypes, or null if the
+	 * type is unknown. Callers must not modify the result.
+	 */
+	long[] getAncestorIds( String internalName ) {
+		Node node = getNode(internalName);
+		if( node != null ) {
+			return node.ancestorIds;
+		}
+		DexType system = getSystemType(internalName);
+		return system == null ? null : system.getAncestors();
+	}
+
+	/**
+	 * @return true if all superclasses of the type are known, so that
+	 * getAncestorIds() includes every class it could be assignable to.
+	 */
+	boolean isCompleteType( String internalName ) {
+		Node node = getNode(internalName);
+		if( node != null ) {
+			return node.complete;
+		}
+		return getSystemType(internalName) != null;
+	}
+
+	/**
+	 * @return the system type from DexType's supertype table with the given
+	 * internal name, or null if it isn't one.
+	 */
+	private static DexType getSystemType( String internalName ) {
+		DexType type = DexType.getSystemType("L" + internalName + ";");
+		return type == null || type.getId() < 0 ? null : type;
+	}
+
+	private Node getNode( String name ) {
+		Node node = nodes.get(name);
+		if( node == null ) {
+			ClassInfo info = findClassInfo(name);
+			if( info == null ) {
+				return null;
+			}
+			node = buildNode(info);
+			Node existing = nodes.putIfAbsent(name, node);
+			if( existing != null ) {
+				node = existing;
+			}
+		}
+		return node;
+	}
+
+	private ClassInfo findClassInfo( String name ) {
+		DexClass clz = file.findClass(name);
+		if( clz != null ) {
+			return new ClassInfo(name, clz.getInternalSuperName(), clz.getInternalInterfaces(),
+					(clz.getFlags() & DexItem.INTERFACE) != 0);
+		} else if( library != null ) {
+			return library.lookup(name);
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Build the ancestor information for a class from that of its
+	 * (already memoized) superclass and interfaces.
+	 */
+	private Node buildNode( ClassInfo info ) {
+		Node node = new Node();
+		node.info = info;
+		node.supertypes = new HashSet<String>();
+		node.supertypes.add(info.getName());
+
+		DexType system = getSystemType(info.getName());
+		node.id = system != null ? system.getId() : nextId.getAndIncrement();
+		node.ancestorIds = setId(system != null ? system.getAncestors().clone() : new long[0], node.id);
+		node.complete = true;
+
+		List<String> chain = new ArrayList<String>();
+		chain.add(info.getName());
+		String superName = info.getSuperName();
+		if( superName != null && !superName.equals(info.getName()) ) {
+			Node parent = getNode(superName);
+			if( parent == null ) {
+				chain.add(superName);
+				node.supertypes.add(superName);
+				node.complete = addSystemAncestors(node, superName);
+			} else {
+				for( int i=0; i<parent.superChain.length; i++ ) {
+					chain.add(parent.superChain[i]);
+				}
+				node.supertypes.addAll(parent.supertypes);
+				node.ancestorIds = union(node.ancestorIds, parent.ancestorIds);
+				node.complete = parent.complete;
+			}
+		}
+		node.superChain = chain.toArray(new String[chain.size()]);
+
+		String []interfaces = info.getInterfaces();
+		for( int i=0; i<interfaces.length; i++ ) {
+			Node iface = getNode(interfaces[i]);
+			if( iface == null ) {
+				node.supertypes.add(interfaces[i]);
+				addSystemAncestors(node, interfaces[i]);
+			} else {
+				node.supertypes.addAll(iface.supertypes);
+				node.ancestorIds = union(node.ancestorIds, iface.ancestorIds);
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * Add the ancestor ids of a supertype that isn't in the hierarchy, if it
+	 * is one of DexType's system types.
+	 * @return true if it was.
+	 */
+	private static boolean addSystemAncestors( Node node, String superName ) {
+		DexType system = getSystemType(superName);
+		if( system == null ) {
+			return false;
+		}
+		node.ancestorIds = setId(union(node.ancestorIds, system.getAncestors()), system.getId());
+		return true;
+	}
+
+	private static long[] setId( long []bits, int id ) {
+		if( (id >>> 6) >= bits.length ) {
+			long []tmp = new long[(id >>> 6) + 1];
+			System.arraycopy(bits, 0, tmp, 0, bits.length);
+			bits = tmp;
+		}
+		bits[id >>> 6] |= (1L << id);
+		return bits;
+	}
+
+	private static long[] union( long []bits, long []other ) {
+		if( other.length > bits.length ) {
+			long []tmp = new long[other.length];
+			System.arraycopy(bits, 0, tmp, 0, bits.length);
+			bits = tmp;
+		}
+		for( int i=0; i<other.length; i++ ) {
+			bits[i] |= other[i];
+		}
+		return bits;
+	}
+}
@@ -15,9 +15,11 @@
 package com.toccatasystems.dalvik;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.toccatasystems.util.ArrayIterator;
 
@@ -101,17 +103,42 @@ public class DexFile extends DexItem {
 		
 	}
 	
-	private String []stringTable;
+	private DexStringPool stringTable;
 	private String []typeNameTable;
 	private DexField []fieldTable;
 	private DexMethod []methodTable;
 	private DexClass []classDefTable;
+	/* All classes defined in the file, which may include classes (without
+	 * members) that were excluded from classDefTable by a ClassFilter */
+	private DexClass []knownClasses;
 	private long timestamp;
+	private ByteBuffer data;
 	
-	private Map<String,DexClass> classLookupTable;
+	/* Canonical types, by descriptor */
+	private ConcurrentHashMap<String,DexType> types;
 	
-	public DexFile( String filename, String []stringTable, String []typeNameTable,
+	/* Index into knownClasses of the class defined by each type id, or -1 */
+	private int []typeClassTable;
+	/* Type ids in descriptor order, or null if the type ids are already
+	 * sorted (as the dex format requires) */
+	private int []typeOrder;
+	/* All files linked with this one, in load order, or null */
+	private DexFile []linkedFiles;
+	private DexClassHierarchy classHierarchy;
+	
+	public DexFile( String filename, DexStringPool stringTable, String []typeNameTable,
 			DexField[] fieldTable, DexMethod []methodTable, DexClass[] classDefTable ) {
+		this(filename, stringTable, typeNameTable, fieldTable, methodTable, classDefTable, classDefTable);
+	}
+	
+	/**
+	 * @param classDefTable the classes to process from the file
+	 * @param knownClasses all classes defined by the file, for lookups. This
+	 * includes classDefTable.
+	 */
+	public DexFile( String filename, DexStringPool stringTable, String []typeNameTable,
+			DexField[] fieldTable, DexMethod []methodTable, DexClass[] classDefTable,
+			DexClass[] knownClasses ) {
 		super(filename, 0);
 		this.timestamp = new File(filename).lastModified();
 		this.stringTable = stringTable;
@@ -119,48 +146,154 @@ public class DexFile extends DexItem {
 		this.fieldTable = fieldTable;
 		this.methodTable = methodTable;
 		this.classDefTable = classDefTable;
-		this.classLookupTable = new TreeMap<String,DexClass>();
-		for( int i=0; i<this.classDefTable.length; i++ ) {
-			this.classDefTable[i].setParent(this);
-			classLookupTable.put(classDefTable[i].getInternalName(), classDefTable[i]);
+		this.knownClasses = knownClasses;
+		this.types = new ConcurrentHashMap<String,DexType>();
+		this.typeOrder = computeTypeOrder(typeNameTable);
+		for( int i=0; i<this.knownClasses.length; i++ ) {
+			this.knownClasses[i].setParent(this);
 		}
+		this.typeClassTable = computeTypeClassTable(this.knownClasses);
 	}
-	
+
+	/**
+	 * Link the dex files of a multi-dex application, so that findClass() on
+	 * any of them can resolve the classes defined in all of them. If a class
+	 * is defined more than once, the definition in the earliest file wins.
+	 */
+	public static void link( DexFile []files ) {
+		DexFile []linked = files.clone();
+		for( int i=0; i<files.length; i++ ) {
+			files[i].linkedFiles = linked;
+		}
+	}
+
 	/**
-	 * Construct a filtered dex file that only contains the class specified.
-	 * @param parent
-	 * @param className class name in java format (java.lang.Foo)
+	 * @return the permutation of type ids that sorts them by descriptor, or
+	 * null if they're already in order.
 	 */
-	public DexFile( DexFile parent, String className ) {
-		super(parent.getName(), 0);
-		this.stringTable = parent.stringTable;
-		this.typeNameTable = parent.typeNameTable;
-		this.fieldTable = parent.fieldTable;
-		this.methodTable = parent.methodTable;
-		this.classLookupTable = new TreeMap<String,DexClass>();
-		for( int i=0; i<parent.classDefTable.length; i++ ) {
-			if( parent.getClass(i).getDisplayName().equals(className) ) {
-				this.classDefTable = new DexClass[1];
-				this.classDefTable[0] = parent.getClass(i);
-				this.classLookupTable.put(this.classDefTable[0].getInternalName(), this.classDefTable[0]);
+	private static int[] computeTypeOrder( String []typeNames ) {
+		int i;
+		for( i=1; i<typeNames.length; i++ ) {
+			if( typeNames[i-1].compareTo(typeNames[i]) >= 0 ) {
 				break;
 			}
 		}
-		if( this.classDefTable == null ) {
-			this.classDefTable = new DexClass[0];
+		if( i >= typeNames.length ) {
+			return null;
+		}
+		/* Not sorted by String order (eg due to surrogate pairs) */
+		final String []names = typeNames;
+		Integer []order = new Integer[names.length];
+		for( i=0; i<order.length; i++ ) {
+			order[i] = Integer.valueOf(i);
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare( Integer a, Integer b ) {
+				return names[a.intValue()].compareTo(names[b.intValue()]);
+			}
+		});
+		int []result = new int[order.length];
+		for( i=0; i<order.length; i++ ) {
+			result[i] = order[i].intValue();
+		}
+		return result;
+	}
+
+	private int[] computeTypeClassTable( DexClass []classes ) {
+		int []result = new int[typeNameTable.length];
+		Arrays.fill(result, -1);
+		for( int i=0; i<classes.length; i++ ) {
+			int idx = getTypeIndexForDescriptor(classes[i].getName());
+			if( idx != -1 && result[idx] == -1 ) {
+				result[idx] = i;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Compare an internal class name (eg java/lang/Object) with a type
+	 * descriptor, giving the same result as comparing "L" + internalName + ";"
+	 * with the descriptor, but without building the string.
+	 */
+	private static int compareInternalName( String internalName, String descriptor ) {
+		int keyLength = internalName.length() + 2;
+		int length = Math.min(keyLength, descriptor.length());
+		for( int i=0; i<length; i++ ) {
+			char c = i == 0 ? 'L' : i == keyLength - 1 ? ';' : internalName.charAt(i-1);
+			int diff = c - descriptor.charAt(i);
+			if( diff != 0 ) {
+				return diff;
+			}
+		}
+		return keyLength - descriptor.length();
+	}
+
+	/**
+	 * Binary search for a type id, with either a descriptor or an internal
+	 * class name as the key.
+	 * @return the type index, or -1 if the type is not in the file.
+	 */
+	private int searchTypes( String key, boolean internalName ) {
+		int low = 0, high = typeNameTable.length - 1;
+		while( low <= high ) {
+			int mid = (low + high) >>> 1;
+			int idx = typeOrder == null ? mid : typeOrder[mid];
+			int cmp = internalName ? compareInternalName(key, typeNameTable[idx]) :
+				key.compareTo(typeNameTable[idx]);
+			if( cmp > 0 ) {
+				low = mid + 1;
+			} else if( cmp < 0 ) {
+				high = mid - 1;
+			} else {
+				return idx;
+			}
 		}
+		return -1;
 	}
 
+	/**
+	 * Set the buffer holding the raw file contents, used to read data (such
+	 * as method bodies) that is only parsed on demand.
+	 */
+	void setData( ByteBuffer data ) {
+		this.data = data;
+	}
+	
+	void setTimestamp( long timestamp ) {
+		this.timestamp = timestamp;
+	}
+	
+	ByteBuffer getData() {
+		return data;
+	}
+	
+	DexStringPool getStringTable() {
+		return stringTable;
+	}
+	
+	String[] getTypeNameTable() {
+		return typeNameTable;
+	}
+	
+	DexField[] getFieldTable() {
+		return fieldTable;
+	}
+	
+	DexMethod[] getMethodTable() {
+		return methodTable;
+	}
+	
 	public long getTimestamp() {
 		return timestamp;
 	}
 	
 	public int getNumStrings() {
-		return stringTable.length;
+		return stringTable.size();
 	}
 	
 	public String getString(int idx) {
-		return stringTable[idx];
+		return stringTable.get(idx);
 	}
 	
 	public int getNumTypeNames() {
@@ -171,6 +304,50 @@ public class DexFile extends DexItem {
 		return typeNameTable[idx];
 	}
 	
+	/**
+	 * @return the type index of the class with the given internal name
+	 * (eg java/lang/Object), or -1 if the file doesn't refer to it.
+	 */
+	public int getTypeIndex( String internalName ) {
+		return searchTypes(internalName, true);
+	}
+	
+	/**
+	 * @return the type index of the descriptor (eg Ljava/lang/Object;), or
+	 * -1 if the file doesn't refer to it.
+	 */
+	public int getTypeIndexForDescriptor( String descriptor ) {
+		return searchTypes(descriptor, false);
+	}
+	
+	/**
+	 * @return the canonical type for the given type index.
+	 */
+	public DexType getType( int idx ) {
+		return getType(typeNameTable[idx]);
+	}
+	
+	/**
+	 * @return the canonical type for the descriptor. All lookups of the same
+	 * descriptor in this file return the same instance (which is the
+	 * constant from DexType for system types).
+	 */
+	public DexType getType( String descriptor ) {
+		DexType type = types.get(descriptor);
+		if( type == null ) {
+			String name = descriptor.intern();
+			type = DexType.getSystemType(name);
+			if( type == null ) {
+				type = new DexType(name, this);
+			}
+			DexType existing = types.putIfAbsent(name, type);
+			if( existing != null ) {
+				type = existing;
+			}
+		}
+		return type;
+	}
+	
 	public int getNumFields() {
 		return fieldTable.length;
 	}
@@ -207,8 +384,71 @@ public class DexFile extends DexItem {
 		return classDefTable[idx];
 	}
 	
+	/**
+	 * @return the class defined in this file by the given type index, or
+	 * null if the type is not defined here. The class may have been excluded
+	 * from the file by a ClassFilter, in which case it has no members.
+	 */
+	public DexClass getClassByType( int typeIdx ) {
+		int idx = typeClassTable[typeIdx];
+		return idx == -1 ? null : knownClasses[idx];
+	}
+	
 	public DexClass getClass( String internalName ) {
-		return classLookupTable.get(internalName);
+		int idx = getTypeIndex(internalName);
+		return idx == -1 ? null : getClassByType(idx);
+	}
+	
+	/**
+	 * Find a class defined either in this file, or in any file it has been
+	 * linked with.
+	 */
+	public DexClass findClass( String internalName ) {
+		if( linkedFiles == null ) {
+			return getClass(internalName);
+		}
+		for( int i=0; i<linkedFiles.length; i++ ) {
+			DexClass clz = linkedFiles[i].getClass(internalName);
+			if( clz != null ) {
+				return clz;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * As findClass, with the class given by its descriptor (eg
+	 * Ljava/lang/Object;) rather than its internal name.
+	 */
+	public DexClass findClassByDescriptor( String descriptor ) {
+		if( linkedFiles == null ) {
+			int idx = getTypeIndexForDescriptor(descriptor);
+			return idx == -1 ? null : getClassByType(idx);
+		}
+		for( int i=0; i<linkedFiles.length; i++ ) {
+			DexFile file = linkedFiles[i];
+			int idx = file.getTypeIndexForDescriptor(descriptor);
+			DexClass clz = idx == -1 ? null : file.getClassByType(idx);
+			if( clz != null ) {
+				return clz;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @return the class hierarchy used to resolve types in this file. By
+	 * default this only knows about the classes defined in the file itself.
+	 */
+	public synchronized DexClassHierarchy getClassHierarchy() {
+		if( classHierarchy == null ) {
+			classHierarchy = new DexClassHierarchy(this, null);
+		}
+		return classHierarchy;
+	}
+	
+	public synchronized void setClassHierarchy( DexClassHierarchy hierarchy ) {
+		this.classHierarchy = hierarchy;
 	}
 	
 	public void visit(DexVisitor visitor) {
@@ -14,11 +14,13 @@
 
 package com.toccatasystems.dalvik;
 
+import java.util.AbstractSet;
+import java.util.BitSet;
 import java.util.Formatter;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.TreeSet;
 
 import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.lang.StringUtils;
@@ -36,13 +38,13 @@ import static com.toccatasystems.dalvik.DexOpcodes.*;
 
 public class DexInstruction implements Comparable<DexInstruction> {
 	
-	private final static int OPTYPE_NONE = 0;
-	private final static int OPTYPE_INT = 5;
-	private final static int OPTYPE_TARGET = 10;
-	private final static int OPTYPE_STRING = 11;
-	private final static int OPTYPE_TYPE = 12;
-	private final static int OPTYPE_FIELD = 13;
-	private final static int OPTYPE_METHOD = 14;
+	public final static int OPTYPE_NONE = 0;
+	public final static int OPTYPE_INT = 5;
+	public final static int OPTYPE_TARGET = 10;
+	public final static int OPTYPE_STRING = 11;
+	public final static int OPTYPE_TYPE = 12;
+	public final static int OPTYPE_FIELD = 13;
+	public final static int OPTYPE_METHOD = 14;
 	
 
 	
@@ -387,17 +389,99 @@ public class DexInstruction implements Comparable<DexInstruction> {
 		}
 	}
 	
+	/**
+	 * Read-only view of the definitions reaching a register operand, backed
+	 * by the operand's array of instruction indices.
+	 */
+	private class DefSet extends AbstractSet<DexInstruction> {
+		private int operand;
+		
+		DefSet( int operand ) {
+			this.operand = operand;
+		}
+		
+		public Iterator<DexInstruction> iterator() {
+			final int []defs = registerDefs[operand];
+			return new Iterator<DexInstruction>() {
+				int next = 0;
+				public boolean hasNext() {
+					return next < defs.length;
+				}
+				public DexInstruction next() {
+					if( next >= defs.length )
+						throw new NoSuchElementException();
+					return method.getInstruction(defs[next++]);
+				}
+				public void remove() {
+					throw new UnsupportedOperationException("Remove not supported");
+				}
+			};
+		}
+		
+		public int size() {
+			return registerDefs[operand].length;
+		}
+	}
+	
+	/**
+	 * Read-only view of the uses of the instruction's result, backed by the
+	 * packed use array.
+	 */
+	private class UseSet extends AbstractSet<Use> {
+		public Iterator<Use> iterator() {
+			final int []useList = uses;
+			final int count = numUses;
+			return new Iterator<Use>() {
+				int next = 0;
+				public boolean hasNext() {
+					return next < count;
+				}
+				public Use next() {
+					if( next >= count )
+						throw new NoSuchElementException();
+					int use = useList[next++];
+					return new Use(method.getInstruction(use >>> USE_OPERAND_BITS), use & USE_OPERAND_MASK);
+				}
+				public void remove() {
+					throw new UnsupportedOperationException("Remove not supported");
+				}
+			};
+		}
+		
+		public int size() {
+			return numUses;
+		}
+	}
+	
+	/* Uses are packed into a single int as (instruction index << 8) | operand.
+	 * Instructions have at most 255 register operands.
+	 */
+	private final static int USE_OPERAND_BITS = 8;
+	private final static int USE_OPERAND_MASK = 0xFF;
+	private final static int []NO_INDICES = new int[0];
+	private final static short []NO_CODE = new short[0];
+	
 	private DexMethodBody method;
 	private DexBasicBlock parent;
 	private I instruction;
+	private int index;
+	/* Position of the instruction within its basic block */
+	private int blockIndex;
 	private int pc;
 	private int opcode;
+	/* The method's code array, shared by all of its instructions. Operands
+	 * and payloads are decoded from it in place. */
 	private short[]code;
+	/* Number of instruction words present in the code (0 for synthetic) */
+	private int numWords;
+	/* Offset of the switch / fill-array-data payload in the code, or -1 */
+	private int payload;
 	private int registers[];
 	private long constOperand;
 	private DexType[]registerTypes;
-	private Set<DexInstruction>[] registerDefs;
-	private Set<Use> uses;
+	private int [][]registerDefs;
+	private int []uses;
+	private int numUses;
 	
 	
 	/**
@@ -405,54 +489,22 @@ public class DexInstruction implements Comparable<DexInstruction> {
 	 * @param data
 	 * @param posn
 	 */
-	@SuppressWarnings("unchecked")
 	public DexInstruction( DexMethodBody body, int posn ) {
 		this.method = body;
 		this.pc = posn;
-		short code[] = body.getCode();
+		this.code = body.getCode();
 		opcode = code[posn] & 0xFF;
-		
-		instruction = OPCODES[opcode];
-		if( opcode == NOP ) {
-			int datacode = (code[posn] >> 8) & 0xFF;
-			if( datacode < NOPCODES.length ) {
-				instruction = NOPCODES[datacode];
-			}
-		}
-		int words = instruction.getNumWords();
-		
-		/* Additional data for some cases - copy into the local code array */
-		int extra = 0, target=0;
-		if( opcode == PACKED_SWITCH ) {
-			target = posn + signed32(code[posn+1], code[posn+2]);
-			extra = code[target+1]*2 + 4;
-		} else if( opcode == SPARSE_SWITCH ) {
-			target = posn + signed32(code[posn+1], code[posn+2]);
-			extra = code[target+1]*4 + 2;
-		} else if( opcode == FILL_ARRAY_DATA ) {
-			target = posn + signed32(code[posn+1], code[posn+2]);
-			int width = code[target+1];
-			extra = (signed32(code[target+2], code[target+3]) * width + 1) / 2 + 4;
-		}
-		this.code = new short[words+extra];
-		int avail = code.length - posn;
-		if( avail < words ) {
-			System.arraycopy(code, posn, this.code, 0, avail );
-			for( int i=avail; i<words; i++ ) {
-				this.code[i] = 0;
-			}
-		} else {
-			System.arraycopy(code, posn, this.code, 0, words);
+		instruction = decodeInstruction(code, posn);
+		numWords = Math.min(instruction.getNumWords(), code.length - posn);
+		payload = -1;
+		if( opcode == PACKED_SWITCH || opcode == SPARSE_SWITCH || opcode == FILL_ARRAY_DATA ) {
+			payload = posn + getInt(1);
 		}
-		System.arraycopy(code, target, this.code, words, extra);
 		
 		parseOperands();
 		this.registerTypes = new DexType[registers.length];
-		this.registerDefs = (Set<DexInstruction>[])new Set[registers.length];
-		for( int i=0; i<registers.length; i++ ) {
-			registerDefs[i] = new TreeSet<DexInstruction>();
-		}
-		this.uses = new TreeSet<Use>();
+		this.index = -1;
+		clearUseDefs();
 	}
 	
 	/**
@@ -462,21 +514,19 @@ public class DexInstruction implements Comparable<DexInstruction> {
 	 * @param registers
 	 * @param operand
 	 */
-	@SuppressWarnings("unchecked")
 	public DexInstruction( DexMethodBody body, int posn, int opcode, int registers[], long operand ) {
 		this.method = body;
 		this.pc = posn;
 		this.opcode = opcode;
 		this.instruction = OPCODES[opcode];
-		this.code = new short[0];
+		this.code = NO_CODE;
+		this.numWords = 0;
+		this.payload = -1;
 		this.registers = registers;
 		this.constOperand = operand;
 		this.registerTypes = new DexType[registers.length];
-		this.registerDefs = (Set<DexInstruction>[])new Set[registers.length];
-		for( int i=0; i<registers.length; i++ ) {
-			registerDefs[i] = new TreeSet<DexInstruction>();
-		}
-		this.uses = new TreeSet<Use>();
+		this.index = -1;
+		clearUseDefs();
 	}
 	
 	protected void setParent( DexBasicBlock parent ) {
@@ -487,10 +537,45 @@ public class DexInstruction implements Comparable<DexInstruction> {
 		return parent;
 	}
 	
+	/**
+	 * @return the position of the instruction within its basic block, as
+	 * maintained by DexBasicBlock.
+	 */
+	int getBlockIndex() {
+		return blockIndex;
+	}
+	
+	void setBlockIndex( int blockIndex ) {
+		this.blockIndex = blockIndex;
+	}
+	
 	public int getPC() {
 		return pc;
 	}
 	
+	/**
+	 * @return the dense index of the instruction within the method, as
+	 * assigned by DexMethodBody.numberInstructions(), or -1 if the instruction
+	 * has not been numbered.
+	 */
+	public int getIndex() {
+		return index;
+	}
+	
+	void setIndex( int index ) {
+		this.index = index;
+		clearUseDefs();
+	}
+	
+	private void clearUseDefs() {
+		this.registerDefs = new int[registers.length][];
+		for( int i=0; i<registers.length; i++ ) {
+			registerDefs[i] = NO_INDICES;
+		}
+		this.uses = NO_INDICES;
+		this.numUses = 0;
+	}
+	
 	public String getHexPC() {
 		return StringUtils.leftPad(Integer.toHexString(pc), 4, '0');
 	}
@@ -499,7 +584,7 @@ public class DexInstruction implements Comparable<DexInstruction> {
 	 * @return the number of words used by the instruction
 	 */
 	public int size() {
-		return code.length < instruction.getNumWords() ? code.length : instruction.getNumWords();
+		return numWords;
 	}
 	
 	public int getOpcode() {
@@ -514,6 +599,14 @@ public class DexInstruction implements Comparable<DexInstruction> {
 		return registers.length;
 	}
 	
+	/**
+	 * @return the kind of the non-register operand, one of the OPTYPE_*
+	 * constants.
+	 */
+	public int getOperandType() {
+		return instruction.getOperandType();
+	}
+	
 	public int getRegister(int idx) {
 		return registers[idx];
 	}
@@ -546,17 +639,42 @@ public class DexInstruction implements Comparable<DexInstruction> {
 		registerTypes[idx] = value;
 	}
 	
-	public void setRegisterDefs( int idx, Set<DexInstruction> defs ) {
-		registerDefs[idx].clear();
-		registerDefs[idx].addAll(defs);
+	/**
+	 * Set the definitions reaching the given operand.
+	 * @param defs the set of instruction indices of the definitions
+	 */
+	public void setRegisterDefs( int idx, BitSet defs ) {
+		if( defs == null || defs.isEmpty() ) {
+			registerDefs[idx] = NO_INDICES;
+		} else {
+			int []result = new int[defs.cardinality()];
+			for( int i = defs.nextSetBit(0), j = 0; i >= 0; i = defs.nextSetBit(i+1) ) {
+				result[j++] = i;
+			}
+			registerDefs[idx] = result;
+		}
 	}
 	
+	/**
+	 * @return a view of the definitions reaching the given operand, in 
+	 * instruction order.
+	 */
 	public Set<DexInstruction> getRegisterDefs( int idx ) {
-		return registerDefs[idx];
+		return new DefSet(idx);
 	}
 	
+	/**
+	 * Record a use of this instruction's result. Uses must be added in
+	 * instruction order (as ComputeUseDefInfo does), and are not checked
+	 * for duplicates.
+	 */
 	public void addUse( DexInstruction inst, int idx ) {
-		uses.add( new Use(inst, idx) );
+		if( numUses == uses.length ) {
+			int []newUses = new int[numUses == 0 ? 2 : numUses*2];
+			System.arraycopy(uses, 0, newUses, 0, numUses);
+			uses = newUses;
+		}
+		uses[numUses++] = (inst.getIndex() << USE_OPERAND_BITS) | idx;
 	}
 	
 	/**
@@ -606,22 +724,34 @@ public class DexInstruction implements Comparable<DexInstruction> {
 	}
 	
 	public boolean isUncondBranch() {
-		int opcode = getOpcode();
-		return opcode == GOTO || opcode == GOTO16 || opcode == GOTO32;
+		return isUncondBranch(getOpcode());
 	}
 	
 	public boolean isCondBranch() {
-		int opcode = getOpcode();
-		return opcode >= IF_EQ && opcode <= IF_LEZ;
+		return isCondBranch(getOpcode());
 	}
 	
 	public boolean isSwitch() {
-		int opcode = getOpcode();
-		return opcode == PACKED_SWITCH || opcode == SPARSE_SWITCH;
+		return isSwitch(getOpcode());
 	}
 	
 	public boolean isReturn() {
-		int opcode = getOpcode();
+		return isReturn(getOpcode());
+	}
+	
+	static boolean isUncondBranch( int opcode ) {
+		return opcode == GOTO || opcode == GOTO16 || opcode == GOTO32;
+	}
+	
+	static boolean isCondBranch( int opcode ) {
+		return opcode >= IF_EQ && opcode <= IF_LEZ;
+	}
+	
+	static boolean isSwitch( int opcode ) {
+		return opcode == PACKED_SWITCH || opcode == SPARSE_SWITCH;
+	}
+	
+	static boolean isReturn( int opcode ) {
 		return opcode >= RETURN_VOID && opcode <= RETURN_OBJECT;
 	}
 	
@@ -662,11 +792,15 @@ public class DexInstruction implements Comparable<DexInstruction> {
 	}
 	
 	public Set<DexInstruction> getOperandDefs( int reg ) {
-		return registerDefs[reg];
+		return getRegisterDefs(reg);
 	}
 	
+	/**
+	 * @return a view of the uses of the instruction's result, in instruction
+	 * order.
+	 */
 	public Set<Use> uses() {
-		return uses;
+		return new UseSet();
 	}
 	
 	/**
@@ -721,7 +855,7 @@ public class DexInstruction implements Comparable<DexInstruction> {
 	}
 	
 	public DexType getTypeOperand() {
-		return new DexType(method.getFile().getTypeName((int)constOperand));
+		return method.getFile().getType((int)constOperand);
 	}
 	
 	public DexMethod getMethodOperand() {
@@ -733,22 +867,8 @@ public class DexInstruction implements Comparable<DexInstruction> {
 	}
 	
 	public int[] getSwitchTargets() {
-		int opcode = getOpcode();
-		int start = size();
-		if( opcode == PACKED_SWITCH ) {
-			int size = getUShort(start+1);
-			int[] result = new int[size];
-			for( int i=0; i<size; i++ ) {
-				result[i] =  pc + getInt(start + 4 + i*2);
-			}
-			return result;
-		} else if( opcode == SPARSE_SWITCH ) {
-			int size = getUShort(start+1);
-			int []result = new int[size];
-			for( int i=0; i<size; i++ ) {
-				result[i] = pc + getInt(start + 2 + i*2 + size*2);
-			}
-			return result;
+		if( isSwitch() ) {
+			return decodeSwitchTargets(code, pc);
 		} else {
 			return null;
 		}
@@ -928,8 +1048,8 @@ public class DexInstruction implements Comparable<DexInstruction> {
 		Formatter fmt = new Formatter(builder);
 		int start = instruction.getNumWords();
 		int size, first;
-		if( code.length > start ) {
-			switch( code[start] ) {
+		if( payload >= 0 ) {
+			switch( word(start) ) {
 			case 0x0100: /* packed-switch */
 				size = getUShort(start+1);
 				first = getInt(start+2);
@@ -978,7 +1098,7 @@ public class DexInstruction implements Comparable<DexInstruction> {
 	public String formatUses() {
 		StringBuilder result = new StringBuilder("; Uses: ");
 		int count = 0;
-		for( Iterator<Use> it = uses.iterator(); it.hasNext(); ) {
+		for( Iterator<Use> it = uses().iterator(); it.hasNext(); ) {
 			Use use = it.next();
 			if( count != 0 ) 
 				result.append( ", " );
@@ -991,7 +1111,7 @@ public class DexInstruction implements Comparable<DexInstruction> {
 	public String formatDefs(int operand) {
 		StringBuilder result = new StringBuilder();
 		int count = 0;
-		for( Iterator<DexInstruction> it = registerDefs[operand].iterator(); it.hasNext(); ) {
+		for( Iterator<DexInstruction> it = getRegisterDefs(operand).iterator(); it.hasNext(); ) {
 			DexInstruction inst = it.next();
 			if( count != 0 ) 
 				result.append( ", " );
@@ -1001,37 +1121,119 @@ public class DexInstruction implements Comparable<DexInstruction> {
 		return result.toString();
 	}
 
+	/**
+	 * Read a word of the instruction. Words past the end of the instruction
+	 * itself continue into its payload, if any (so the payload starts at
+	 * word size()). Instruction words missing from a truncated method read
+	 * as 0.
+	 */
+	private short word( int posn ) {
+		int words = instruction.getNumWords();
+		if( posn < words ) {
+			return posn < numWords ? code[pc + posn] : 0;
+		} else {
+			return code[payload + posn - words];
+		}
+	}
+	
 	public long getLong( int posn ) {
-		return (((long)code[posn]) & 0xFFFF) | ((((long)code[posn+1]) & 0xFFFF) << 16) |
-			((((long)code[posn+2]) & 0xFFFF) << 32) | ((((long)code[posn+3]) & 0xFFFF) << 48);
+		return (((long)word(posn)) & 0xFFFF) | ((((long)word(posn+1)) & 0xFFFF) << 16) |
+			((((long)word(posn+2)) & 0xFFFF) << 32) | ((((long)word(posn+3)) & 0xFFFF) << 48);
 	}
 	
 	public long getUInt( int posn ) {
-		return (((long)code[posn]) & 0xFFFF) | ((((long)code[posn+1]) & 0xFFFF) << 16);
+		return (((long)word(posn)) & 0xFFFF) | ((((long)word(posn+1)) & 0xFFFF) << 16);
 	}
 	
 	public int getInt( int posn ) {
-		return (((int)code[posn]) & 0xFFFF) | (((int)code[posn+1]) << 16);
+		return (((int)word(posn)) & 0xFFFF) | (((int)word(posn+1)) << 16);
 	}
 	
 	public int getUShort( int posn ) {
-		return ((int)code[posn]) & 0xFFFF;
+		return ((int)word(posn)) & 0xFFFF;
 	}
 	
 	public int getShort( int posn ) {
-		return ((int)code[posn]);
+		return ((int)word(posn));
 	}
 	
 	private int getULowByte( int posn ) {
-		return ((int)code[posn]) & 0xFF;
+		return ((int)word(posn)) & 0xFF;
 	}
 	
 	private int getUHighByte( int posn ) {
-		return (((int)code[posn]) >> 8) & 0xFF;
+		return (((int)word(posn)) >> 8) & 0xFF;
 	}
 	
 	private int getSHighByte( int posn ) {
-		return ((int)code[posn]) >> 8;
+		return ((int)word(posn)) >> 8;
+	}
+	
+	/*********************** Allocation-free decoding ***********************/
+	
+	/**
+	 * Lightweight decoding of the instruction at pc directly from the code
+	 * array, for passes (such as block discovery) that only need the
+	 * instruction's size and control flow.
+	 */
+	private static I decodeInstruction( short []code, int pc ) {
+		int opcode = code[pc] & 0xFF;
+		if( opcode == NOP ) {
+			int datacode = (code[pc] >> 8) & 0xFF;
+			if( datacode < NOPCODES.length ) {
+				return NOPCODES[datacode];
+			}
+		}
+		return OPCODES[opcode];
+	}
+	
+	private static short wordAt( short []code, int idx ) {
+		return idx < code.length ? code[idx] : 0;
+	}
+	
+	static int decodeOpcode( short []code, int pc ) {
+		return code[pc] & 0xFF;
+	}
+	
+	/**
+	 * @return the number of words in the instruction at pc (as size()).
+	 */
+	static int decodeSize( short []code, int pc ) {
+		return Math.min(decodeInstruction(code, pc).getNumWords(), code.length - pc);
+	}
+	
+	static boolean decodeIsThrow( short []code, int pc ) {
+		return decodeOpcode(code, pc) == THROW;
+	}
+	
+	/**
+	 * @return the target of the branch instruction at pc (as
+	 * getBranchTarget()).
+	 */
+	static int decodeBranchTarget( short []code, int pc ) {
+		switch( decodeOpcode(code, pc) ) {
+		case GOTO:
+			return pc + (code[pc] >> 8);
+		case GOTO32:
+			return pc + signed32(wordAt(code, pc+1), wordAt(code, pc+2));
+		default: /* goto/16 and if-* */
+			return pc + wordAt(code, pc+1);
+		}
+	}
+	
+	/**
+	 * @return the targets of the switch instruction at pc (as
+	 * getSwitchTargets()).
+	 */
+	static int[] decodeSwitchTargets( short []code, int pc ) {
+		int payload = pc + signed32(wordAt(code, pc+1), wordAt(code, pc+2));
+		int size = code[payload+1] & 0xFFFF;
+		int base = decodeOpcode(code, pc) == PACKED_SWITCH ? payload + 4 : payload + 2 + size*2;
+		int []result = new int[size];
+		for( int i=0; i<size; i++ ) {
+			result[i] = pc + signed32(code[base + i*2], code[base + i*2 + 1]);
+		}
+		return result;
 	}
 
 	private void parseOperands( ) {
@@ -1040,7 +1242,7 @@ public class DexInstruction implements Comparable<DexInstruction> {
 			registers = new int[instruction.getNumRegisters()];
 	
 		int mode = instruction.getMode();
-		short mainWord = code[0];
+		short mainWord = word(0);
 		switch( mode ) {
 		case M_10T:
 			constOperand = pc + getSHighByte(0);
@@ -1139,10 +1341,10 @@ public class DexInstruction implements Comparable<DexInstruction> {
 			registers = new int[b];
 			switch( b ) {
 			case 5: registers[4] = thirdNibble(mainWord);
-			case 4: registers[3] = (code[2] >> 12) & 0x0F;
-			case 3: registers[2] = (code[2] >> 8) & 0x0F;
-			case 2: registers[1] = (code[2] >> 4) & 0x0F;
-			case 1: registers[0] = code[2] & 0x0F;
+			case 4: registers[3] = (word(2) >> 12) & 0x0F;
+			case 3: registers[2] = (word(2) >> 8) & 0x0F;
+			case 2: registers[1] = (word(2) >> 4) & 0x0F;
+			case 1: registers[0] = word(2) & 0x0F;
 			default:
 				break;
 			}
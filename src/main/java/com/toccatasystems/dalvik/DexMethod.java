@@ -23,6 +23,7 @@ public class DexMethod extends DexItem {
 	private String returnType;
 	private String paramTypes[];
 	private DexMethodBody code;
+	private int codeOffset;
 	private List<List<DexAnnotation>> paramAnnotations;
 	
 	public DexMethod(String name, String returnType, String paramTypes[], int flags) {
@@ -75,14 +76,21 @@ public class DexMethod extends DexItem {
 	public void visit( DexVisitor visitor ) {
 		visitor.enterMethod(this);
 		visitAnnotations(visitor);
-		if(code != null) {
-			visitor.visitMethodBody(code);
+		DexMethodBody body = getBody();
+		if(body != null) {
+			visitor.visitMethodBody(body);
 		}
 		visitor.leaveMethod(this);
 	}
 	
 	protected void setBody( DexMethodBody code ) { this.code = code; }
 	
+	/**
+	 * Set the file offset of the method's code item, to be read when the
+	 * body is first requested.
+	 */
+	protected void setCodeOffset( int codeOffset ) { this.codeOffset = codeOffset; }
+	
 	protected void addParamAnnotations( int idx, DexAnnotation[]ann ) {
 		List<DexAnnotation> param = this.paramAnnotations.get(idx);
 		for( int i=0; i<ann.length; i++ ) {
@@ -95,6 +103,7 @@ public class DexMethod extends DexItem {
 	public String getReturnType() { return returnType; }
 	public int getNumParamTypes() { return paramTypes.length; }
 	public String getParamType(int idx) { return paramTypes[idx]; }
+	public List<DexAnnotation> getParamAnnotations(int idx) { return paramAnnotations.get(idx); }
 	public String getDescriptor() {
 		StringBuffer buf = new StringBuffer("(");
 		for( int i=0; i<paramTypes.length; i++ ) {
@@ -130,8 +139,56 @@ public class DexMethod extends DexItem {
 		}
 	}
 	
-	public DexMethodBody getBody() { return code; }
-	public boolean hasBody() { return code != null; }
+	/**
+	 * @return the method body, or null if the method has no code. The body is
+	 * read from the file and analysed on the first call.
+	 */
+	public synchronized DexMethodBody getBody() {
+		if( code == null && codeOffset != 0 ) {
+			try {
+				code = DexParser.loadMethodBody(this, codeOffset);
+			} catch( ParseException e ) {
+				throw new RuntimeException( "Unable to read method body for " + getDisplaySignature() + 
+						": " + e.getMessage(), e );
+			} catch( RuntimeException e ) {
+				/* Corrupt code items usually fail as a buffer under/overflow */
+				throw new RuntimeException( "Unable to read method body for " + getDisplaySignature() + 
+						": " + e.toString(), e );
+			}
+		}
+		return code;
+	}
+	
+	/**
+	 * Read a fresh copy of the method body from the file, without running
+	 * any analysis over it (not even CFG construction). This is mainly useful
+	 * to time the individual passes.
+	 * @return the unanalysed body, or null if the method has no code.
+	 */
+	public DexMethodBody readBody() throws ParseException {
+		if( codeOffset == 0 ) {
+			return null;
+		}
+		return DexParser.readRawMethodBody(this, codeOffset);
+	}
+	
+	/**
+	 * Discard the method body (and any changes made to it), so that it can
+	 * be garbage collected. The next call to getBody() reads it again.
+	 */
+	public synchronized void releaseBody() {
+		if( codeOffset != 0 ) {
+			code = null;
+		}
+	}
+	
+	public boolean hasBody() { return code != null || codeOffset != 0; }
+	
+	/**
+	 * @return true if the body is currently held in memory, ie getBody()
+	 * will return it as last modified rather than a fresh copy from the file.
+	 */
+	public synchronized boolean isBodyLoaded() { return code != null; }
 	
 	public String getClassType() { return classType; }
 	public String getInternalClassType() { return formatInternalName(classType); }
@@ -16,6 +16,7 @@ package com.toccatasystems.dalvik;
 
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Formatter;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -39,7 +40,7 @@ public class DexMethodBody {
 		Iterator<DexInstruction> ii;
 		
 		protected InstIterator() {
-			bbit = blockMap.values().iterator();
+			bbit = blocksByPC.iterator();
 			ii = bbit.next().iterator();
 		}
 
@@ -70,10 +71,18 @@ public class DexMethodBody {
 	private short []code;
 	private DexDebug debug;
 	private List<DexTryCatch> handlers;
-	private Map<Integer, DexBasicBlock> blockMap;
+	/* Blocks in pc order, and the pc of each one. Empty blocks are keyed by
+	 * the pc they label. */
+	private List<DexBasicBlock> blocksByPC;
+	private int []blockPCs;
+	/* Blocks in layout order */
 	private List<DexBasicBlock> blocks;
+	/* Number of blocks at the start of the layout that are still in pc order
+	 * (ie that precede any block moved by moveToEnd) */
+	private int orderedBlocks;
 	private List<DexBasicBlock> exitBlocks;
 	private DexArgument[] arguments;
+	private DexInstruction[] instructionTable;
 	
 	
 	public DexMethodBody( DexMethod parent, int numRegisters, int inArgWords, int outArgWords,
@@ -114,6 +123,25 @@ public class DexMethodBody {
 	public int getNumArguments() { return arguments.length; }
 	public DexArgument getArgument(int idx) { return arguments[idx]; }
 	
+	public int getNumBlocks() {
+		return blocks == null ? 0 : blocks.size();
+	}
+	
+	/**
+	 * @return the number of instructions numbered by the last call to
+	 * numberInstructions() 
+	 */
+	public int getNumInstructions() {
+		return instructionTable == null ? 0 : instructionTable.length;
+	}
+	
+	/**
+	 * @return the instruction with the given dense index.
+	 */
+	public DexInstruction getInstruction( int index ) {
+		return instructionTable[index];
+	}
+	
 	public short []getCode() { return code; }
 	public short getWord( int idx ) { return code[idx]; }
 	
@@ -124,7 +152,7 @@ public class DexMethodBody {
 	}
 		
 	public DexBasicBlock getEntryBlock() {
-		return blockMap.get(0);
+		return getBlockForPC(0);
 	}
 	
 	public List<DexBasicBlock> getExitBlocks() {
@@ -141,22 +169,66 @@ public class DexMethodBody {
 	}
 	
 	public DexBasicBlock getBlockForPC( int pc ) {
-		return blockMap.get(pc);
+		int idx = Arrays.binarySearch(blockPCs, 0, blocksByPC.size(), pc);
+		return idx < 0 ? null : blocksByPC.get(idx);
 	}
 
 	public String getBlockNameForPC( int pc ) {
-		DexBasicBlock bb = blockMap.get(pc);
+		DexBasicBlock bb = getBlockForPC(pc);
 		return bb == null ? ("null#" + String.format("%04X",  pc)) : bb.getName();
 	}
 	
+	/**
+	 * @return the block at the given position in layout order.
+	 */
+	public DexBasicBlock getBlock( int layoutIndex ) {
+		return blocks.get(layoutIndex);
+	}
+	
 	public DexBasicBlock addBlock( int pc, String name ) {
 		DexBasicBlock bb = new DexBasicBlock(this);
 		bb.setName(name);
-		blockMap.put(pc, bb);
-		blocks.add(bb);
+		insertBlockForPC(pc, bb);
+		appendBlock(bb);
 		return bb;
 	}
 	
+	/**
+	 * @return the number of blocks at the start of the layout order which
+	 * are still in pc order, ie which have not been moved by moveToEnd.
+	 */
+	public int getNumOrderedBlocks() {
+		return orderedBlocks;
+	}
+	
+	private void appendBlock( DexBasicBlock bb ) {
+		bb.setLayoutIndex(blocks.size());
+		blocks.add(bb);
+	}
+	
+	/**
+	 * Add the block to the pc order, replacing any existing block for the pc.
+	 */
+	private void insertBlockForPC( int pc, DexBasicBlock bb ) {
+		int size = blocksByPC.size();
+		int idx = Arrays.binarySearch(blockPCs, 0, size, pc);
+		if( idx >= 0 ) {
+			blocksByPC.set(idx, bb);
+			bb.setPCIndex(idx);
+			return;
+		}
+		idx = -(idx + 1);
+		if( size == blockPCs.length ) {
+			blockPCs = Arrays.copyOf(blockPCs, size*2 + 1);
+		}
+		System.arraycopy(blockPCs, idx, blockPCs, idx+1, size - idx);
+		blockPCs[idx] = pc;
+		blocksByPC.add(idx, bb);
+		for( int i=idx; i<=size; i++ ) {
+			blocksByPC.get(i).setPCIndex(i);
+		}
+	}
+	
 	public Iterator<DexBasicBlock> iterator() {
 		return blocks.iterator();
 	}
@@ -165,57 +237,54 @@ public class DexMethodBody {
 		return new InstIterator();
 	}
 	
+	/**
+	 * @return an iterator over the blocks in pc order, starting from the
+	 * block containing (or immediately following) the given pc.
+	 */
 	public Iterator<DexBasicBlock> iterator( int pc ) {
-		if( pc == 0 ) {
-			return blockMap.values().iterator();
-		} else {
-			int count = 0;
-			Iterator<DexBasicBlock> it = blockMap.values().iterator();
-			while( it.hasNext() ) {
-				DexBasicBlock bb = it.next();
-				if( bb.getEndPC() == pc ) {
-					break;
-				}
-				if( bb.getPC() <= pc && bb.getEndPC() > pc ) {
-					/* Went too far, start again with count */
-					it = blockMap.values().iterator();
-					for( int i=0; i<count; i++ ) {
-						it.next();
-					}
-					break;
+		int size = blocksByPC.size();
+		int idx = Arrays.binarySearch(blockPCs, 0, size, pc);
+		if( idx < 0 ) {
+			/* Find the last block starting before the pc */
+			idx = -(idx + 1) - 1;
+			if( idx < 0 ) {
+				idx = size;
+			} else {
+				DexBasicBlock bb = blocksByPC.get(idx);
+				if( bb.isEmpty() || bb.getEndPC() < pc ) {
+					idx = size;
+				} else if( bb.getEndPC() == pc ) {
+					idx++;
 				}
-				count++;
 			}
-			return it;
 		}
+		return blocksByPC.listIterator(idx);
 	}
 	
 	public Iterator<DexBasicBlock> iterator( DexBasicBlock bb ) {
 		return iterator(bb.getPC());
 	}
 	
+	/**
+	 * @return the block preceding the given block in layout order, or null
+	 * if it is the first block.
+	 */
 	public DexBasicBlock getPrevious( DexBasicBlock before ) {
-		DexBasicBlock last = null;
-		for( Iterator<DexBasicBlock> it = iterator(); it.hasNext(); ) {
-			DexBasicBlock bb = it.next();
-			if( bb == before ) {
-				return last;
-			} else {
-				last = bb;
-			}
+		int idx = before.getLayoutIndex();
+		if( idx > 0 && idx < blocks.size() && blocks.get(idx) == before ) {
+			return blocks.get(idx-1);
 		}
 		return null;	
 	}
 	
+	/**
+	 * @return the block following the given block in pc order, or null if
+	 * it is the last block.
+	 */
 	public DexBasicBlock getNext( DexBasicBlock after ) {
-		for( Iterator<DexBasicBlock> it = blockMap.values().iterator(); it.hasNext(); ) {
-			if( it.next() == after ) {
-				if( it.hasNext() )
-					return it.next();
-				else
-					return null;
-			}
-			
+		int idx = after.getPCIndex();
+		if( idx >= 0 && idx+1 < blocksByPC.size() && blocksByPC.get(idx) == after ) {
+			return blocksByPC.get(idx+1);
 		}
 		return null;
 	}
@@ -233,12 +302,39 @@ public class DexMethodBody {
 	 * @param block
 	 */
 	protected void moveToEnd( DexBasicBlock block ) {
-		if( blocks.remove(block) ) {
+		int idx = block.getLayoutIndex();
+		if( idx < blocks.size() && blocks.get(idx) == block ) {
+			blocks.remove(idx);
 			blocks.add(block);
+			for( int i=idx; i<blocks.size(); i++ ) {
+				blocks.get(i).setLayoutIndex(i);
+			}
+			orderedBlocks = Math.min(orderedBlocks, idx);
 		}
 	}
 	
 
+	/**
+	 * Assign every instruction in the method, including the argument 
+	 * pseudo-instructions, a dense index in instruction order, and discard
+	 * any existing use-def information. Analyses use the index to keep 
+	 * per-instruction data in plain arrays and bitsets.
+	 */
+	public void numberInstructions() {
+		List<DexInstruction> list = new ArrayList<DexInstruction>();
+		for( int i=0; i<arguments.length; i++ ) {
+			list.add(arguments[i]);
+		}
+		for( Iterator<DexInstruction> it = instIterator(); it.hasNext(); ) {
+			list.add(it.next());
+		}
+		instructionTable = list.toArray(new DexInstruction[list.size()]);
+		Arrays.sort(instructionTable);
+		for( int i=0; i<instructionTable.length; i++ ) {
+			instructionTable[i].setIndex(i);
+		}
+	}
+
 	public void disassemble( PrintStream out ) {
 		disassemble(out, false);
 	}
@@ -268,10 +364,10 @@ public class DexMethodBody {
 	 * be done _after_ the method has been linked into a DexFile, since it 
 	 * depends on global type information.
 	 */
-	protected void computeCFG() {
+	public void computeCFG() {
 		/* 1. Build a set of branch targets and associated basic blocks */
-		blockMap = new TreeMap<Integer, DexBasicBlock>();
-		blocks = new LinkedList<DexBasicBlock>();
+		Map<Integer, DexBasicBlock> blockMap = new TreeMap<Integer, DexBasicBlock>();
+		blocks = new ArrayList<DexBasicBlock>();
 		List<Integer> worklist = new LinkedList<Integer>();
 		Set<Integer> tryEndInsts = new TreeSet<Integer>();
 		worklist.add(new Integer(0));
@@ -295,29 +391,33 @@ public class DexMethodBody {
 				continue;
 			blockMap.put(item, new DexBasicBlock(this));
 			
+			/* Only the control flow is needed here, so decode straight from
+			 * the code array rather than constructing instructions */
 			int target = item.intValue();
 			while(target < code.length) {
-				DexInstruction ins = new DexInstruction(this, target);
-				if( ins.isUncondBranch() ) {
-					worklist.add(ins.getBranchTarget());
+				int opcode = DexInstruction.decodeOpcode(code, target);
+				if( DexInstruction.isUncondBranch(opcode) ) {
+					worklist.add(DexInstruction.decodeBranchTarget(code, target));
 					break;
-				} else if( ins.isCondBranch() ) {
-					worklist.add(ins.getBranchTarget());
-					worklist.add(target + ins.size());
+				} else if( DexInstruction.isCondBranch(opcode) ) {
+					worklist.add(DexInstruction.decodeBranchTarget(code, target));
+					worklist.add(target + DexInstruction.decodeSize(code, target));
 					break;
-				} else if( ins.isSwitch() ) {
-					int targets[] = ins.getSwitchTargets();
+				} else if( DexInstruction.isSwitch(opcode) ) {
+					int targets[] = DexInstruction.decodeSwitchTargets(code, target);
 					for( int i=0; i<targets.length; i++ )
 						worklist.add( targets[i] );
-					worklist.add(target + ins.size());
+					worklist.add(target + DexInstruction.decodeSize(code, target));
 					break;
-				} else if( ins.isReturn() || ins.isThrow() ) {
+				} else if( DexInstruction.isReturn(opcode) || DexInstruction.decodeIsThrow(code, target) ) {
 					break;
 				} else {
-					target += ins.size();
+					target += DexInstruction.decodeSize(code, target);
 				}
 			}
 		} while( !worklist.isEmpty() );
+		/* Handler blocks are looked up while linking */
+		setBlocksByPC(blockMap);
 		
 		/* 2. Populate and link up the blocks */
 		List<DexBasicBlock> added = new ArrayList<DexBasicBlock>();
@@ -331,7 +431,7 @@ public class DexMethodBody {
 			int nextpc;
 			DexBasicBlock nextbb;
 			boolean fallthrough;
-			blocks.add(bb);
+			appendBlock(bb);
 			if( it.hasNext() ) {
 				ent = it.next();
 				nextpc = ent.getKey();
@@ -353,7 +453,7 @@ public class DexMethodBody {
 					bb.addFallthroughSuccessor(split);
 					bb = split;
 					added.add(split);
-					blocks.add(split);
+					appendBlock(split);
 					bbcount++;
 					if( nextbb != null )
 						nextbb.setName( "bb" + bbcount );
@@ -405,6 +505,8 @@ public class DexMethodBody {
 			bb = bbit.next();
 			blockMap.put(bb.getPC(), bb);
 		}
+		setBlocksByPC(blockMap);
+		orderedBlocks = blocks.size();
 		
 		/* Check exception handlers for:
 		 *   a) end labels that may not actually belong to any basic block 
@@ -418,8 +520,8 @@ public class DexMethodBody {
 				bb = new DexBasicBlock(this);
 				bb.setName("ex" + bbcount);
 				bbcount++;
-				blockMap.put(handler.getEndPC(), bb);
-				blocks.add(bb);
+				insertBlockForPC(handler.getEndPC(), bb);
+				appendBlock(bb);
 			}
 			DexBasicBlock excBlock = handler.getHandlerBlock();
 			if( excBlock.getNumPredecessors() == 0 ) {
@@ -428,6 +530,17 @@ public class DexMethodBody {
 		}		
 	}
 	
+	private void setBlocksByPC( Map<Integer, DexBasicBlock> blockMap ) {
+		blocksByPC = new ArrayList<DexBasicBlock>(blockMap.size());
+		blockPCs = new int[blockMap.size()];
+		for( Iterator<Map.Entry<Integer, DexBasicBlock>> it = blockMap.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<Integer, DexBasicBlock> ent = it.next();
+			ent.getValue().setPCIndex(blocksByPC.size());
+			blockPCs[blocksByPC.size()] = ent.getKey();
+			blocksByPC.add(ent.getValue());
+		}
+	}
+	
 	/**
 	 * Given a collection of live exception handlers, add any possible
 	 * exception successors to the block. 
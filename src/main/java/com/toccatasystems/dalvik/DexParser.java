@@ -15,7 +15,6 @@
 package com.toccatasystems.dalvik;
 
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
 import java.io.File;
 import java.io.FileInputStream;
@@ -28,10 +27,15 @@ import java.util.ArrayList;
 
 import com.toccatasystems.dalvik.analysis.ComputeUseDefInfo;
 import com.toccatasystems.dalvik.analysis.TypeAssignment;
+import com.toccatasystems.util.PhaseStatistics;
 
 /**
  * DexParser parses a .dex file and returns a new DexFile. The parser can be
  * reused, but is not thread-safe.
+ * 
+ * Method bodies are not decoded during the initial parse - each method only
+ * records the offset of its code item, and the body is read and analysed by
+ * a separate parser instance the first time it is requested.
  * @author nkeynes
  */
 
@@ -42,6 +46,8 @@ public class DexParser {
     private static final int BIG_ENDIAN_TAG = 0x78563412;
 
 	private final static int NO_INDEX = -1;
+	private final static DexField []NO_FIELDS = new DexField[0];
+	private final static DexMethod []NO_METHODS = new DexMethod[0];
 
 	/**
 	 * Underlying data source.
@@ -51,10 +57,42 @@ public class DexParser {
 	/* Various intermediate data / tables that we need during parsing, as
 	 * they can be referenced by index from various places
 	 */
-	private String []stringTable;
+	private DexStringPool stringTable;
 	private String []typeNameTable;
 	private DexField []fieldTable;
 	private DexMethod []methodTable;
+	/* All classes defined in the file, including those excluded by the filter */
+	private DexClass []knownClasses;
+	private ClassFilter classFilter;
+	
+	public DexParser() {
+	}
+	
+	/**
+	 * Only parse the classes selected by the filter (null for all classes).
+	 * Other classes are read only as far as their headers and class
+	 * annotations, so that they can still be resolved in the class hierarchy,
+	 * but they are not part of the resulting file and their members are never
+	 * read.
+	 */
+	public void setClassFilter( ClassFilter filter ) {
+		this.classFilter = filter;
+	}
+	
+	/**
+	 * Construct a parser to read on-demand data from a previously parsed file.
+	 * The parser has its own view of the file buffer, so multiple instances
+	 * may safely be used concurrently.
+	 */
+	DexParser( DexFile file ) {
+		ByteBuffer buffer = file.getData();
+		this.data = buffer.duplicate();
+		this.data.order(buffer.order());
+		this.stringTable = file.getStringTable();
+		this.typeNameTable = file.getTypeNameTable();
+		this.fieldTable = file.getFieldTable();
+		this.methodTable = file.getMethodTable();
+	}
 	
 	public DexFile parseFile( String filename ) throws IOException, ParseException {
 		return parseFile( filename, new FileInputStream(filename).getChannel() );
@@ -69,12 +107,36 @@ public class DexParser {
 	}
 	
 	public DexFile parseFile( String filename, FileChannel channel ) throws IOException, ParseException {
-		data = channel.map(MapMode.READ_ONLY, 0, channel.size());
-		DexClass []result = readFile();
-		channel.close();
-		DexFile file = new DexFile(filename, stringTable, typeNameTable, fieldTable, methodTable, result);
-		postParse(file);
-		return file;
+		ByteBuffer buffer;
+		try {
+			buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			channel.close();
+		}
+		return parseBuffer(filename, buffer, new File(filename).lastModified());
+	}
+	
+	/**
+	 * Parse a dex file that has already been loaded or mapped into memory
+	 * (eg from an archive entry). The buffer is retained by the resulting
+	 * DexFile, which reads method bodies from it on demand.
+	 * @param filename the name to give the file
+	 * @param buffer the file contents, from position 0
+	 * @param timestamp modification time of the file
+	 */
+	public DexFile parseBuffer( String filename, ByteBuffer buffer, long timestamp ) throws ParseException {
+		PhaseStatistics.Timer timer = PhaseStatistics.start(PhaseStatistics.PARSE);
+		try {
+			data = buffer;
+			DexClass []result = readFile();
+			DexFile file = new DexFile(filename, stringTable, typeNameTable, fieldTable, methodTable, result,
+					knownClasses);
+			file.setData(data);
+			file.setTimestamp(timestamp);
+			return file;
+		} finally {
+			PhaseStatistics.stop(timer);
+		}
 	}
 	
 	/**************************** File parsing ******************************/	
@@ -97,7 +159,7 @@ public class DexParser {
         int classTableSize = data.getInt();
         int classTableOffset = data.getInt();
         
-		stringTable = readStringTable(stringTableOffset, stringTableSize);
+		stringTable = new DexStringPool(data, stringTableOffset, stringTableSize);
 		typeNameTable = readTypeNameTable(typeTableOffset, typeTableSize);
 		fieldTable = readFieldTable(fieldTableOffset, fieldTableSize);
 		methodTable = readMethodTable(protoTableOffset, protoTableSize,
@@ -127,9 +189,12 @@ public class DexParser {
 	 * Read the class definitions and details.
 	 * The various String and type tables must have already been read before invoking
 	 * this method
+	 * @return the classes selected by the class filter. All classes are left in
+	 * knownClasses.
 	 */
 	private DexClass [] readClassDefTable(int offset, int size) throws ParseException {
-		DexClass[] result = new DexClass[size];
+		knownClasses = new DexClass[size];
+		List<DexClass> result = new ArrayList<DexClass>(classFilter == null ? size : 16);
 		for( int i=0; i<size; i++ ) {
 			int classOffset = offset + 32*i;
 			/* class_def_item */
@@ -144,12 +209,13 @@ public class DexParser {
 			
 			DexField []staticFields, instanceFields;
 			DexMethod []directMethods, virtualMethods;
+			boolean selected = classFilter == null || classFilter.acceptDescriptor(className);
 			
-			if( dataOffset == 0 ) {
-				staticFields = new DexField[0];
-				instanceFields = new DexField[0];
-				directMethods = new DexMethod[0];
-				virtualMethods = new DexMethod[0];
+			if( dataOffset == 0 || !selected ) {
+				staticFields = NO_FIELDS;
+				instanceFields = NO_FIELDS;
+				directMethods = NO_METHODS;
+				virtualMethods = NO_METHODS;
 			} else {
 				/* class_data_item */
 				data.position(dataOffset);
@@ -166,13 +232,16 @@ public class DexParser {
 			DexClass clz = new DexClass(className, flags, superclass,
 					interfaces, sourceFile, staticFields, instanceFields, directMethods, virtualMethods);
 			
-			result[i] = clz;
+			knownClasses[i] = clz;
+			if( selected ) {
+				result.add(clz);
+			}
 			
 			if( annotationOffset != 0 ) {
-				readClassAnnotations( clz, annotationOffset );
+				readClassAnnotations( clz, annotationOffset, selected );
 			}
 			
-			if( staticOffset != 0 ) {
+			if( staticOffset != 0 && selected ) {
 				int oldposn = data.position();
 				data.position(staticOffset);
 				DexValue []init = readEncodedArray();
@@ -186,7 +255,7 @@ public class DexParser {
 			}
 			
 		}
-		return result;
+		return result.toArray(new DexClass[result.size()]);
 	}
 	
 	/**
@@ -219,7 +288,7 @@ public class DexParser {
 			result[i] = lookupMethodId(methodIdx);
 			result[i].setFlags(flags);
 			if( codeOffset != 0 ) {
-				result[i].setBody(readMethodBody(result[i], codeOffset));
+				result[i].setCodeOffset(codeOffset);
 			}
 		}
 		return result;
@@ -343,15 +412,20 @@ public class DexParser {
 	}
 	
 	/**
-	 * Read the annotations for the class and attach them to the appropriate places.
+	 * Read the annotations_directory_item for the class, and attach the
+	 * annotations to the appropriate places.
 	 * @param clz
 	 * @param fileOffset
+	 * @param members if false, only read the annotations on the class itself.
 	 */
-	private void readClassAnnotations( DexClass clz, int fileOffset ) throws ParseException {
+	private void readClassAnnotations( DexClass clz, int fileOffset, boolean members ) throws ParseException {
 		int classAnnOffset = data.getInt(fileOffset);
 		if( classAnnOffset != 0 ) {
 			clz.add(readAnnotationSet(classAnnOffset));
 		}
+		if( !members ) {
+			return;
+		}
 		int fieldCount = data.getInt(fileOffset+4);
 		int methodCount = data.getInt(fileOffset+8);
 		int paramsCount = data.getInt(fileOffset+12);
@@ -388,6 +462,11 @@ public class DexParser {
 		}
 	}
 
+	/**
+	 * Read the annotations in an annotation_set_item. Only the type and
+	 * visibility of each annotation are read here - the elements are left in
+	 * the file, and read on demand by the annotation itself.
+	 */
 	private DexAnnotation[] readAnnotationSet( int fileOffset ) throws ParseException {
 		int posn = data.position();
 		int count = data.getInt(fileOffset);
@@ -396,7 +475,8 @@ public class DexParser {
 			int offset = data.getInt(fileOffset + i*4 + 4);
 			data.position(offset);
 			int visibility = data.get();
-			result[i] = readEncodedAnnotation(visibility);
+			String type = lookupTypeNameId(readULEB128());
+			result[i] = new DexAnnotation(type, visibility, data.position());
 		}
 		data.position(posn);
 		return result;
@@ -405,16 +485,35 @@ public class DexParser {
 	private DexAnnotation readEncodedAnnotation(int visibility) throws ParseException {
 		String type = lookupTypeNameId(readULEB128());
 		DexAnnotation ann = new DexAnnotation(type,visibility);
+		readAnnotationElements(ann);
+		return ann;
+	}
+
+	private void readAnnotationElements( DexAnnotation ann ) throws ParseException {
 		int count = readULEB128();
 		for( int i=0; i<count; i++ ) {
 			String name = lookupStringId(readULEB128());
 			DexValue value = readEncodedValue();
 			ann.add(name, value);
 		}
-		return ann;
 	}
 
-	
+	/**
+	 * Scan the elements of an encoded annotation for the named element,
+	 * skipping over the values of all other elements without decoding them.
+	 * @return the value, or null if the annotation has no such element.
+	 */
+	private DexValue findAnnotationElement( String name ) throws ParseException {
+		int count = readULEB128();
+		for( int i=0; i<count; i++ ) {
+			if( lookupStringId(readULEB128()).equals(name) ) {
+				return readEncodedValue();
+			}
+			skipEncodedValue();
+		}
+		return null;
+	}
+
 	private DexValue[] readEncodedArray() throws ParseException {
 		int count = readULEB128();
 		DexValue []values = new DexValue[count]; 
@@ -424,52 +523,104 @@ public class DexParser {
 		return values;
 	}
 	private DexValue readEncodedValue( ) throws ParseException {
-		byte tmp[] = new byte[8];
 		int type = data.get();
 		int size = ((type >> 5) & 0x07);
 		type &= 0x1f;
 		
-		Object obj = null;
-		if( type == DexValue.ARRAY ) {
-			obj = readEncodedArray();
-		} else if( type == DexValue.ANNOTATION ) {
-			obj = readEncodedAnnotation(DexAnnotation.VISIBILITY_NONE);
-		} else if( type == DexValue.BOOLEAN ) {
-			obj = (size & 1) == 0 ? Boolean.FALSE : Boolean.TRUE;
-		} else if( type == DexValue.NULL ) {
-			obj = null;
-		} else {
-			/* Read bytes and zero-pad to the right */
-			data.get(tmp, 0, size+1);
-			byte pad = 0;
-			if( (type == DexValue.SHORT || type == DexValue.INT || type == DexValue.LONG) &&
-				(tmp[size] & 0x80) != 0 ) {
-				pad = -1;
+		switch( type ) {
+		case DexValue.BYTE:
+		case DexValue.SHORT:
+		case DexValue.INT:
+		case DexValue.LONG:
+			return new DexValue(type, readSignedValue(size));
+		case DexValue.CHAR:
+			return new DexValue(type, readUnsignedValue(size));
+		case DexValue.FLOAT:
+			/* Zero-extended to the right, ie the bytes present are the most significant */
+			return new DexValue(type, readUnsignedValue(size) << ((3-size)*8));
+		case DexValue.DOUBLE:
+			return new DexValue(type, readUnsignedValue(size) << ((7-size)*8));
+		case DexValue.BOOLEAN:
+			return new DexValue(type, (long)(size & 1));
+		case DexValue.NULL:
+			return new DexValue(type, null);
+		case DexValue.ARRAY:
+			return new DexValue(type, readEncodedArray());
+		case DexValue.ANNOTATION:
+			return new DexValue(type, readEncodedAnnotation(DexAnnotation.VISIBILITY_NONE));
+		case DexValue.STRING: 
+			return new DexValue(type, lookupStringId((int)readUnsignedValue(size)));
+		case DexValue.TYPE: 
+			return new DexValue(type, lookupTypeNameId((int)readUnsignedValue(size)));
+		case DexValue.FIELD:
+		case DexValue.ENUM:
+			return new DexValue(type, lookupFieldId((int)readUnsignedValue(size)));
+		case DexValue.METHOD: 
+			return new DexValue(type, lookupMethodId((int)readUnsignedValue(size)));
+		default:
+			throw new ParseException( "Invalid value type: " + type );
+		}
+	}
+
+	private void skipEncodedValue( ) throws ParseException {
+		int type = data.get();
+		int size = ((type >> 5) & 0x07);
+		type &= 0x1f;
+		
+		switch( type ) {
+		case DexValue.BOOLEAN:
+		case DexValue.NULL:
+			break;
+		case DexValue.ARRAY:
+			int count = readULEB128();
+			for( int i=0; i<count; i++ ) {
+				skipEncodedValue();
 			}
-					
-			for( int i=size+1; i<8; i++ ) 
-				tmp[i] = pad;
-			ByteBuffer buf = ByteBuffer.wrap(tmp);
-			buf.order(data.order());
-			switch( type ) {
-			case DexValue.BYTE: obj = new Byte(buf.get()); break;
-			case DexValue.SHORT: obj = new Short(buf.getShort()); break;
-			case DexValue.CHAR: obj = new Character(buf.getChar()); break;
-			case DexValue.INT: obj = new Integer(buf.getInt()); break;
-			case DexValue.LONG: obj = new Long(buf.getLong()); break;
-			case DexValue.FLOAT: obj = new Float(buf.getFloat()); break;
-			case DexValue.DOUBLE: obj = new Double(buf.getDouble()); break;
-			case DexValue.STRING: obj = lookupStringId(buf.getInt()); break;
-			case DexValue.TYPE: obj = lookupTypeNameId(buf.getInt()); break;
-			case DexValue.FIELD: obj = lookupFieldId(buf.getInt()); break; 
-			case DexValue.METHOD: obj = lookupMethodId(buf.getInt()); break;
-			case DexValue.ENUM: obj = lookupFieldId(buf.getInt()); break;
-			default:
-				throw new ParseException( "Invalid value type: " + type );
+			break;
+		case DexValue.ANNOTATION:
+			readULEB128();
+			count = readULEB128();
+			for( int i=0; i<count; i++ ) {
+				readULEB128();
+				skipEncodedValue();
 			}
+			break;
+		case DexValue.BYTE:
+		case DexValue.SHORT:
+		case DexValue.CHAR:
+		case DexValue.INT:
+		case DexValue.LONG:
+		case DexValue.FLOAT:
+		case DexValue.DOUBLE:
+		case DexValue.STRING:
+		case DexValue.TYPE:
+		case DexValue.FIELD:
+		case DexValue.METHOD:
+		case DexValue.ENUM:
+			data.position(data.position() + size + 1);
+			break;
+		default:
+			throw new ParseException( "Invalid value type: " + type );
 		}
-		
-		return new DexValue(type,obj);
+	}
+
+	/**
+	 * Read a little-endian value of size+1 bytes, zero-extended to 64 bits.
+	 */
+	private long readUnsignedValue( int size ) {
+		long result = 0;
+		for( int i=0; i<=size; i++ ) {
+			result |= ((long)(data.get() & 0xFF)) << (i*8);
+		}
+		return result;
+	}
+
+	/**
+	 * Read a little-endian value of size+1 bytes, sign-extended to 64 bits.
+	 */
+	private long readSignedValue( int size ) {
+		int shift = 56 - size*8;
+		return (readUnsignedValue(size) << shift) >> shift;
 	}
 
 	/**
@@ -525,21 +676,6 @@ public class DexParser {
 		return fields;
 	}
 	
-	/**
-	 * Read the string table from the Dex file, given the offset and count
-	 * of entries. The table contains a set of absolute 32-bit offsets in
-	 * the file for the actual string data.
-	 */
-	private String [] readStringTable(int fileOffset, int nEntries) throws ParseException {
-		String [] strings = new String[nEntries];
-		for( int i=0; i<nEntries; i++ ) {
-			int stroffset = data.getInt(fileOffset + i*4);
-			data.position(stroffset);
-			strings[i] = readModifiedUTF8String();
-		}
-		return strings;
-	}
-	
 	/**
 	 * Read the type name table from the Dex file, given the offset and count
 	 * of entries. The stringTable must have already been read.
@@ -626,47 +762,17 @@ public class DexParser {
 		else return lookupStringId(index);
 	}
 	
-	/**
-	 * Read a String from the current position in modified UTF8 format 
-	 * (as defined in java.io.DataInput)
-	 * @return the String
-	 */
-	private String readModifiedUTF8String() throws ParseException {
-		int len = readULEB128();
-		char tmp[] = new char[len];
-		for( int i=0; i<len; i++ ) {
-			int b1 = (int)data.get();
-			if( (b1 & 0x80) == 0 ) { 
-				tmp[i] = (char)b1;
-			} else if( (b1 & 0xE0) == 0xC0 ) {
-				int b2 = (int)data.get();
-				if( (b2 & 0xC0) != 0x80 ) 
-					throw new ParseException( "Error decoding string (invalid data)");
-				tmp[i] = (char)(((b1&0x1F)<<6) | (b2&0x3F));
-			} else if( (b1 & 0xF0) == 0xE0 ) {
-				int b2 = (int)data.get();
-				int b3 = (int)data.get();
-				if( ((b2 & 0xC0) != 0x80) || ((b3 & 0xC0) != 0x80) ) 
-					throw new ParseException( "Error decoding string (invalid data)");
-				tmp[i] = (char)(((b1&0x0F)<<12) | ((b2&0x3F)<<6) | (b3&0x3F));
-			} else {
-				throw new ParseException( "Error decoding string (invalid data)" );
-			}
-		}
-		if( data.get() != 0 ) {
-			throw new ParseException( "Error decoding string (missing null terminator)" );
-		}
-		return new String(tmp);
-	}
-
 	/**
 	 * Read an unsigned little-endian base 128 number from the current buffer position.
 	 * @return
 	 */
 	private int readULEB128() {
-		int result = 0;
-		int shift = 0;
-		byte b;
+		byte b = data.get();
+		if( b >= 0 ) {
+			return b;
+		}
+		int result = b & 0x7F;
+		int shift = 7;
 		do {
 			b = data.get();
 			result |= (((int)(b & 0x7F))<<shift);
@@ -696,10 +802,10 @@ public class DexParser {
 	}
 	
 	private String lookupStringId( int id ) throws ParseException {
-		if( id < 0 || id >= stringTable.length ) {
+		if( id < 0 || id >= stringTable.size() ) {
 			throw new ParseException( "Invalid string id " + id );
 		}
-		return stringTable[id];
+		return stringTable.read(id);
 	}
 
 	private String lookupTypeNameId( int id ) throws ParseException {
@@ -723,15 +829,69 @@ public class DexParser {
 		return methodTable[id];				
 	}
 
-	/************************** Post-parse analysis *************************/
+	/************************** On-demand loading ***************************/
 	
-	private void postParse( DexFile file ) {
-		for( Iterator<DexMethodBody> it = file.methodBodyIterator(); it.hasNext(); ) {
-			it.next().computeCFG();
+	/**
+	 * Read the body of the given method from its code item, without any
+	 * further analysis.
+	 */
+	static DexMethodBody readRawMethodBody( DexMethod method, int codeOffset ) throws ParseException {
+		return new DexParser(method.getFile()).readMethodBody(method, codeOffset);
+	}
+	
+	/**
+	 * Read the body of the given method from its code item, and run the
+	 * standard analyses over it (CFG construction, use-def chains and type
+	 * assignment). 
+	 */
+	static DexMethodBody loadMethodBody( DexMethod method, int codeOffset ) throws ParseException {
+		PhaseStatistics.Timer timer = PhaseStatistics.start(PhaseStatistics.PARSE);
+		DexMethodBody body = readRawMethodBody(method, codeOffset);
+		PhaseStatistics.stop(timer);
+
+		timer = PhaseStatistics.start(PhaseStatistics.CFG);
+		body.computeCFG();
+		PhaseStatistics.stop(timer);
+
+		timer = PhaseStatistics.start(PhaseStatistics.USE_DEF);
+		new ComputeUseDefInfo().analyse(body);
+		PhaseStatistics.stop(timer);
+
+		timer = PhaseStatistics.start(PhaseStatistics.TYPES);
+		new TypeAssignment().analyse(body);
+		PhaseStatistics.stop(timer);
+
+		if( PhaseStatistics.isEnabled() ) {
+			PhaseStatistics.count(PhaseStatistics.METHODS, 1);
+			PhaseStatistics.count(PhaseStatistics.INSTRUCTIONS, body.getNumInstructions());
+			PhaseStatistics.count(PhaseStatistics.BLOCKS, body.getNumBlocks());
 		}
-		ComputeUseDefInfo info = new ComputeUseDefInfo();
-		info.analyse(file);
-		TypeAssignment type = new TypeAssignment();
-		type.analyse(file);
+		return body;
+	}
+
+	/**
+	 * Read all the elements of the given annotation, from the encoded
+	 * elements at the given file offset.
+	 */
+	static void loadAnnotationElements( DexAnnotation ann, int elementsOffset ) throws ParseException {
+		PhaseStatistics.Timer timer = PhaseStatistics.start(PhaseStatistics.PARSE);
+		try {
+			DexParser parser = new DexParser(ann.getParent().getFile());
+			parser.data.position(elementsOffset);
+			parser.readAnnotationElements(ann);
+		} finally {
+			PhaseStatistics.stop(timer);
+		}
+	}
+
+	/**
+	 * Read a single element of the given annotation, from the encoded
+	 * elements at the given file offset, without reading any of the others.
+	 * @return the value, or null if the annotation has no such element.
+	 */
+	static DexValue readAnnotationElement( DexAnnotation ann, int elementsOffset, String name ) throws ParseException {
+		DexParser parser = new DexParser(ann.getParent().getFile());
+		parser.data.position(elementsOffset);
+		return parser.findAnnotationElement(name);
 	}
 }
@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) 2011 Toccata Systems.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.toccatasystems.dalvik;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The string table of a dex file. Strings are decoded from the file data
+ * the first time they are requested, and cached thereafter - a typical run
+ * only ever needs a small fraction of the strings in the file.
+ *
+ * The pool only uses absolute reads from the underlying buffer, and may be
+ * used from multiple threads. (Two threads may occasionally decode the same
+ * string at the same time, which is harmless).
+ * @author nkeynes
+ */
+public class DexStringPool {
+	private ByteBuffer data;
+	private int tableOffset;
+	private String []strings;
+
+	/**
+	 * @param data the file data
+	 * @param tableOffset file offset of the string_ids table
+	 * @param size number of entries in the table
+	 */
+	public DexStringPool( ByteBuffer data, int tableOffset, int size ) {
+		this.data = data;
+		this.tableOffset = tableOffset;
+		this.strings = new String[size];
+	}
+
+	public int size() {
+		return strings.length;
+	}
+
+	/**
+	 * @return the string with the given index, decoding it if necessary.
+	 * @throws IndexOutOfBoundsException if the index is invalid.
+	 * @throws IllegalStateException if the string data is invalid.
+	 */
+	public String get( int idx ) {
+		try {
+			return read(idx);
+		} catch( ParseException e ) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return the string with the given index, decoding it if necessary.
+	 * @throws ParseException if the string data is invalid.
+	 */
+	public String read( int idx ) throws ParseException {
+		String str = strings[idx];
+		if( str == null ) {
+			str = decode( data.getInt(tableOffset + idx*4) );
+			strings[idx] = str;
+		}
+		return str;
+	}
+
+	/**
+	 * Decode a string_data_item in modified UTF8 format (as defined in
+	 * java.io.DataInput)
+	 */
+	private String decode( int posn ) throws ParseException {
+		/* utf16_size, as a ULEB128 */
+		int len = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = data.get(posn++);
+			len |= ((b & 0x7F)<<shift);
+			shift += 7;
+		} while( (b & 0x80) != 0 );
+
+		/* Fast path for pure ASCII strings, where the encoded data is exactly
+		 * the string contents */
+		byte ascii[] = new byte[len];
+		int i;
+		for( i=0; i<len; i++ ) {
+			b = data.get(posn+i);
+			if( b <= 0 )
+				break;
+			ascii[i] = b;
+		}
+		if( i == len ) {
+			if( data.get(posn+len) != 0 ) {
+				throw new ParseException( "Error decoding string (missing null terminator)" );
+			}
+			return new String(ascii, StandardCharsets.ISO_8859_1);
+		}
+
+		char tmp[] = new char[len];
+		for( int j=0; j<i; j++ ) {
+			tmp[j] = (char)ascii[j];
+		}
+		posn += i;
+		for( ; i<len; i++ ) {
+			int b1 = (int)data.get(posn++);
+			if( (b1 & 0x80) == 0 ) {
+				tmp[i] = (char)b1;
+			} else if( (b1 & 0xE0) == 0xC0 ) {
+				int b2 = (int)data.get(posn++);
+				if( (b2 & 0xC0) != 0x80 )
+					throw new ParseException( "Error decoding string (invalid data)");
+				tmp[i] = (char)(((b1&0x1F)<<6) | (b2&0x3F));
+			} else if( (b1 & 0xF0) == 0xE0 ) {
+				int b2 = (int)data.get(posn++);
+				int b3 = (int)data.get(posn++);
+				if( ((b2 & 0xC0) != 0x80) || ((b3 & 0xC0) != 0x80) )
+					throw new ParseException( "Error decoding string (invalid data)");
+				tmp[i] = (char)(((b1&0x0F)<<12) | ((b2&0x3F)<<6) | (b3&0x3F));
+			} else {
+				throw new ParseException( "Error decoding string (invalid data)" );
+			}
+		}
+		if( data.get(posn) != 0 ) {
+			throw new ParseException( "Error decoding string (missing null terminator)" );
+		}
+		return new String(tmp);
+	}
+}
@@ -103,10 +103,20 @@ public class DexTryCatch {
 		return parent.getBlockNameForPC(handleInst);
 	}
 	
+	/**
+	 * @return the non-empty blocks of the try region, in layout order.
+	 */
 	public List<DexBasicBlock> getBlocks() {
 		List<DexBasicBlock> result = new ArrayList<DexBasicBlock>();
-		for( Iterator<DexBasicBlock> it = parent.iterator(); it.hasNext(); ) {
-			DexBasicBlock bb = it.next();
+		/* Blocks before the start block are skipped anyway, so start there
+		 * if it's still in pc order */
+		DexBasicBlock start = getStartBlock();
+		int first = 0;
+		if( start != null && start.getLayoutIndex() < parent.getNumOrderedBlocks() ) {
+			first = start.getLayoutIndex();
+		}
+		for( int i=first; i<parent.getNumBlocks(); i++ ) {
+			DexBasicBlock bb = parent.getBlock(i);
 			if( !bb.isEmpty() ) {
 				if( bb.getPC() >= startInst + instCount )
 					break;
@@ -14,13 +14,34 @@
 
 package com.toccatasystems.dalvik;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeSet;
 
+/**
+ * A type descriptor. Types are normally obtained from DexFile.getType(),
+ * which returns a canonical instance per descriptor, so the properties of
+ * the type (and its element and array types) are computed once and cached
+ * here. Instances are immutable.
+ *
+ * Subtype queries are bit tests: each type has an id and a bitset of the
+ * ids of its supertypes. The system types below are numbered by the static
+ * table; the classes of a file (and its library) are numbered by the
+ * file's DexClassHierarchy, the first time a type is queried.
+ * 
+ * @author nkeynes
+ *
+ */
 public class DexType implements Comparable<DexType> {
 
+	/**
+	 * The system types from the supertype table, indexed by name. This is
+	 * populated by the static initializer below, so it must be declared
+	 * before any of the type constants.
+	 */
+	private final static Map<String, DexType> SYSTEM_TYPES = new HashMap<String, DexType>();
+
 	public final static DexType BYTE = new DexType("B");
 	public final static DexType CHAR = new DexType("C");
 	public final static DexType DOUBLE = new DexType("D"); 
@@ -103,46 +124,55 @@ public class DexType implements Comparable<DexType> {
 	public final static DexType MALFORMED_URL_EXCEPTION = new DexType("Ljava/net/MalformedURLException;");
 	public final static DexType UNSUPPORTED_ENCODING_EXCEPTION = new DexType("Ljava/io/UnsupportedEncodingException;");
 	
-	/**
-	 * Map from Class Type to its (transitively complete) set of supertypes.
-	 */
-	private final static Map<DexType, Set<DexType>> SYSTEM_SUPERTYPE_TABLE;
+	/** Number of ids used by the system supertype table */
+	private final static int NUM_SYSTEM_TYPES;
 
 	/**
-	 * Add a new type to the supertype table. Note that this must be constructed 
+	 * Add a new type to the supertype table, which is held as a bitset of
+	 * ancestor ids in each system type. Note that this must be constructed 
 	 * from the top down (ie java.lang.Object first)
-	 * @param map
+	 * @param list the system types added so far, indexed by id
 	 * @param type
 	 * @param parentType
 	 * @param interfaces
 	 */
-	private final static void add( Map<DexType, Set<DexType>> map, DexType type, DexType parentType, DexType []interfaces ) {
-		Set<DexType> types = new TreeSet<DexType>();
+	private final static void add( List<DexType> list, DexType type, DexType parentType, DexType []interfaces ) {
+		type.systemId = list.size();
+		list.add(type);
+		List<DexType> supers = new ArrayList<DexType>();
 		if(parentType != null ) {
-			types.add(parentType);
-			if( map.containsKey(parentType) ) {
-				types.addAll( map.get(parentType) );
-			}
+			supers.add(parentType);
 		}
 		if( interfaces != null ) {
 			for( int i=0; i<interfaces.length; i++ ) {
-				types.add(interfaces[i]);
-				if( map.containsKey(interfaces[i]) ) {
-					types.addAll( map.get(interfaces[i]) );
+				supers.add(interfaces[i]);
+			}
+		}
+		for( int i=0; i<supers.size(); i++ ) {
+			DexType sup = supers.get(i);
+			type.setAncestor(sup.systemId);
+			if( sup.ancestors != null ) {
+				for( int j=0; j<sup.systemId; j++ ) {
+					if( sup.hasAncestor(j) ) {
+						type.setAncestor(j);
+					}
 				}
 			}
 		}
-		map.put(type, types);
+		if( type.ancestors == null ) {
+			type.ancestors = new long[1];
+		}
+		type.complete = true;
 	}
 	
-	private final static void add( Map<DexType, Set<DexType>> map, DexType type, DexType parentType ) {
-		add( map, type, parentType, (DexType [])null );
+	private final static void add( List<DexType> list, DexType type, DexType parentType ) {
+		add( list, type, parentType, (DexType [])null );
 	}
 	
-	private final static void add( Map<DexType, Set<DexType>> map, DexType type, DexType parentType, DexType singleIface ) {
+	private final static void add( List<DexType> list, DexType type, DexType parentType, DexType singleIface ) {
 		DexType[] arr = new DexType[1];
 		arr[0] = singleIface;
-		add( map, type, parentType, arr );
+		add( list, type, parentType, arr );
 	}
 	
 
@@ -150,7 +180,7 @@ public class DexType implements Comparable<DexType> {
 	 * Construct the super-type table for the system classes.
 	 */
 	static {
-		Map<DexType, Set<DexType>> map = new HashMap<DexType, Set<DexType>>();
+		List<DexType> map = new ArrayList<DexType>();
 		add( map, OBJECT, null );
 		add( map, SERIALIZABLE, null );
 		add( map, THROWABLE, OBJECT, SERIALIZABLE );
@@ -205,15 +235,164 @@ public class DexType implements Comparable<DexType> {
 		add( map, UNSUPPORTED_ENCODING_EXCEPTION, IO_EXCEPTION );
 		add( map, MALFORMED_URL_EXCEPTION, IO_EXCEPTION );
 		
-		SYSTEM_SUPERTYPE_TABLE = map;
+		for( int i=0; i<map.size(); i++ ) {
+			SYSTEM_TYPES.put(map.get(i).name, map.get(i));
+		}
+		NUM_SYSTEM_TYPES = map.size();
+		/* Primitive and common array types aren't in the supertype table, 
+		 * but are still worth sharing */
+		DexType []others = { BYTE, CHAR, DOUBLE, FLOAT, INT, LONG, SHORT, VOID, BOOLEAN, 
+				CLASS, STRING, ABYTE, ACHAR, ASHORT, AINT, AFLOAT, ALONG, ADOUBLE, ABOOLEAN, AOBJECT };
+		for( int i=0; i<others.length; i++ ) {
+			SYSTEM_TYPES.put(others[i].name, others[i]);
+		}
 	}		
 	
-	private String name;
+	private final static int PRIMITIVE = 0x01;
+	private final static int PRIM_WORD = 0x02;
+	private final static int PRIM_INT = 0x04;
+	private final static int PRIM_DWORD = 0x08;
+	private final static int OBJECT_TYPE = 0x10;
+	private final static int ARRAY_TYPE = 0x20;
+	
+	private final String name;
+	private final int flags;
+	/* File whose table holds the canonical element and array types, or null */
+	private final DexFile file;
+	private volatile DexType elementType;
+	private volatile DexType arrayType;
+	/* Id in the supertype bitsets (or -1), and the ids of all the type's
+	 * supertypes (or null if unknown). For types belonging to a file, these
+	 * are set by resolve() */
+	private int systemId;
+	private long []ancestors;
+	/* True if ancestors holds every supertype of the type */
+	private boolean complete;
+	/* Hierarchy the ids were assigned by, or null for system ids */
+	private DexClassHierarchy hierarchy;
+	private volatile boolean resolved;
 	
 	public DexType(String name) {
-		this.name = name.intern();
+		this(name.intern(), null);
 	}	
 	
+	/**
+	 * @param name the descriptor, which must already be interned.
+	 * @param file the file the type belongs to, or null.
+	 */
+	DexType( String name, DexFile file ) {
+		this.name = name;
+		this.file = file;
+		this.systemId = -1;
+		DexType system = SYSTEM_TYPES.get(name);
+		if( system != null ) {
+			this.systemId = system.systemId;
+			this.ancestors = system.ancestors;
+			this.complete = system.complete;
+		}
+		int flags = 0;
+		if( name.length() == 1 ) {
+			flags = PRIMITIVE;
+			switch( name.charAt(0) ) {
+			case 'B': case 'C': case 'S': case 'I': case 'Z':
+				flags |= PRIM_WORD | PRIM_INT;
+				break;
+			case 'F':
+				flags |= PRIM_WORD;
+				break;
+			case 'D': case 'J':
+				flags |= PRIM_DWORD;
+				break;
+			}
+		}
+		if( name.startsWith("[") ) {
+			flags |= OBJECT_TYPE | ARRAY_TYPE;
+		} else if( name.startsWith("L") ) {
+			flags |= OBJECT_TYPE;
+		}
+		this.flags = flags;
+		this.resolved = system != null || file == null || (flags & (OBJECT_TYPE|ARRAY_TYPE)) != OBJECT_TYPE;
+	}
+	
+	/**
+	 * @return the shared instance of a system type (from the constants 
+	 * above) with the given interned name, or null if there isn't one.
+	 */
+	static DexType getSystemType( String name ) {
+		return SYSTEM_TYPES.get(name);
+	}
+	
+	/**
+	 * @return the canonical type for the name, from the file's table if
+	 * there is one.
+	 */
+	private static DexType getType( DexFile file, String name ) {
+		if( file != null ) {
+			return file.getType(name);
+		}
+		DexType type = SYSTEM_TYPES.get(name);
+		return type == null ? new DexType(name) : type;
+	}
+	
+	static int getNumSystemTypes() {
+		return NUM_SYSTEM_TYPES;
+	}
+
+	/**
+	 * @return the id of the type in the supertype bitsets, or -1 if none
+	 */
+	int getId() {
+		resolve();
+		return systemId;
+	}
+
+	/**
+	 * @return the ids of the type's supertypes, or null if it is unknown.
+	 * Callers must not modify the result.
+	 */
+	long[] getAncestors() {
+		resolve();
+		return ancestors;
+	}
+
+	/**
+	 * Look up the id and supertypes of a class type in the file's class
+	 * hierarchy. This is done on first use rather than on construction, so
+	 * that types are not resolved against a default hierarchy before the
+	 * file's real one (with its library) has been set.
+	 */
+	private void resolve() {
+		if( !resolved ) {
+			synchronized( this ) {
+				if( !resolved ) {
+					DexClassHierarchy hierarchy = file.getClassHierarchy();
+					String internalName = getInternalName();
+					this.systemId = hierarchy.getTypeId(internalName);
+					this.ancestors = hierarchy.getAncestorIds(internalName);
+					this.complete = hierarchy.isCompleteType(internalName);
+					this.hierarchy = hierarchy;
+					this.resolved = true;
+				}
+			}
+		}
+	}
+
+	private void setAncestor( int id ) {
+		if( ancestors == null ) {
+			ancestors = new long[1];
+		}
+		if( (id >>> 6) >= ancestors.length ) {
+			long []tmp = new long[(id >>> 6) + 1];
+			System.arraycopy(ancestors, 0, tmp, 0, ancestors.length);
+			ancestors = tmp;
+		}
+		ancestors[id >>> 6] |= (1L << id);
+	}
+	
+	private boolean hasAncestor( int id ) {
+		return (id >>> 6) < ancestors.length && (ancestors[id >>> 6] & (1L << id)) != 0;
+	}
+	
 	public String getName() {
 		return name;
 	}
@@ -222,10 +401,6 @@ public class DexType implements Comparable<DexType> {
 		return DexItem.formatInternalName(name);
 	}
 	
-	public void setName( String name ) {
-		this.name = name;
-	}
-	
 	public String toString() {
 		return name;
 	}
@@ -239,7 +414,7 @@ public class DexType implements Comparable<DexType> {
 	}
 	
 	public boolean isPrimitive() {
-		return name.length() == 1;
+		return (flags & PRIMITIVE) != 0;
 	}
 	
 	/**
@@ -252,11 +427,11 @@ public class DexType implements Comparable<DexType> {
 	}
 	
 	public boolean isArray() {
-		return name.startsWith("[");
+		return (flags & ARRAY_TYPE) != 0;
 	}
 	
 	public boolean isObject() {
-		return name.startsWith("L") || name.startsWith("[");
+		return (flags & OBJECT_TYPE) != 0;
 	}
 	
 	public boolean equals( Object o ) {
@@ -271,7 +446,7 @@ public class DexType implements Comparable<DexType> {
 	 * @return true if the type is a primitive that fits in a single 32-bit word. 
 	 */
 	public boolean isPrimWord() {
-		return name == "B" || name == "C" || name == "S" || name == "I" || name == "Z" || name == "F";
+		return (flags & PRIM_WORD) != 0;
 	}
 	
 	/**
@@ -279,23 +454,29 @@ public class DexType implements Comparable<DexType> {
 	 * word.
 	 */
 	public boolean isPrimInt() {
-		return name == "B" || name == "C" || name == "S" || name == "I" || name == "Z";
+		return (flags & PRIM_INT) != 0;
 	}
 	
 	public boolean isPrimDWord() {
-		return name == "D" || name == "J";
+		return (flags & PRIM_DWORD) != 0;
 	}
 	
 	public DexType getElementType() {
-		if( name.startsWith("[") ) {
-			return new DexType(name.substring(1));
+		if( isArray() ) {
+			if( elementType == null ) {
+				elementType = getType(file, name.substring(1).intern());
+			}
+			return elementType;
 		} else {
 			return null;
 		}
 	}
 	
 	public DexType getArrayType() {
-		return new DexType("[" + name);
+		if( arrayType == null ) {
+			arrayType = getType(file, ("[" + name).intern());
+		}
+		return arrayType;
 	}
 
 	/**
@@ -303,10 +484,10 @@ public class DexType implements Comparable<DexType> {
 	 * determined, returns defaultType instead.
 	 */
 	public DexType getElementType( String defaultType ) {
-		if( name.startsWith("[") ) {
-			return new DexType(name.substring(1));
+		if( isArray() ) {
+			return getElementType();
 		} else {
-			return new DexType(defaultType);
+			return getType(file, defaultType.intern());
 		}
 	}
 
@@ -315,8 +496,8 @@ public class DexType implements Comparable<DexType> {
 	 * determined, returns defaultType instead.
 	 */
 	public DexType getElementType( DexType defaultType ) {
-		if( name.startsWith("[") ) {
-			return new DexType(name.substring(1));
+		if( isArray() ) {
+			return getElementType();
 		} else {
 			return defaultType;
 		}
@@ -367,8 +548,13 @@ public class DexType implements Comparable<DexType> {
 		if( isArray() && type.isArray() ) /* A[] subtype B[] iff A subtype B */
 			return getElementType().isSubtypeOf(type.getElementType());
 
-		Set<DexType> superset = SYSTEM_SUPERTYPE_TABLE.get(this);
-		return superset != null && superset.contains(type);
+		resolve();
+		int id = type.getId();
+		if( id >= NUM_SYSTEM_TYPES && type.hierarchy != hierarchy ) {
+			/* Ids from different hierarchies aren't comparable */
+			return false;
+		}
+		return ancestors != null && id >= 0 && hasAncestor(id);
 	}
 	
 	public boolean isProperSubtypeOf( DexType type ) {
@@ -378,7 +564,12 @@ public class DexType implements Comparable<DexType> {
 	}
 	
 	
+	/**
+	 * @return true if all the supertypes of the type are known, so that
+	 * isSubtypeOf() is exact rather than conservative.
+	 */
 	public boolean isKnownType() {
-		return SYSTEM_SUPERTYPE_TABLE.containsKey(this);
+		resolve();
+		return complete;
 	}
 }
@@ -18,7 +18,10 @@ import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.lang.StringUtils;
 
 /**
- * Class representing a generic value holder
+ * Class representing a generic value holder. Primitive values (BYTE through
+ * DOUBLE, and BOOLEAN) are held unboxed, as the raw bits of the value, and
+ * {@link #getValue} returns a new box for them each time rather than keeping
+ * it - callers that only need the primitive should use the typed getters.
  * @author nkeynes
  *
  */
@@ -41,20 +44,103 @@ public class DexValue {
 	public final static int BOOLEAN = 0x1f;
 	
 	private int type;
+	private long bits;
 	private Object value;
 	
+	/**
+	 * Construct a value from an object. For the primitive types, the value
+	 * must be the corresponding box (Byte, Short, Character, Integer, Long,
+	 * Float, Double or Boolean), which is unboxed into the raw bits.
+	 * @throws IllegalArgumentException if a primitive value is null or of
+	 * the wrong class.
+	 */
 	public DexValue(int type, Object value) {
 		this.type = type;
-		this.value = value;
+		if( isPrimitive() ) {
+			this.bits = unbox(type, value);
+		} else {
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Construct a primitive value.
+	 * @param bits the value, sign-extended for BYTE, SHORT, INT and LONG,
+	 * and as IEEE754 bits for FLOAT and DOUBLE.
+	 */
+	public DexValue(int type, long bits) {
+		this.type = type;
+		this.bits = bits;
 	}
 	
 	public int getType() { return type; }
-	public Object getValue() { return value; }
+
+	public boolean isPrimitive() {
+		return type < STRING || type == BOOLEAN;
+	}
+
+	public int getInt() { return (int)bits; }
+	public long getLong() { return bits; }
+	public float getFloat() { return Float.intBitsToFloat((int)bits); }
+	public double getDouble() { return Double.longBitsToDouble(bits); }
+	public boolean getBoolean() { return bits != 0; }
+
+	public Object getValue() {
+		if( isPrimitive() ) {
+			return box();
+		}
+		return value;
+	}
+
+	private static long unbox( int type, Object value ) {
+		switch( type ) {
+		case BYTE:
+			if( value instanceof Byte ) return ((Byte)value).longValue();
+			break;
+		case SHORT:
+			if( value instanceof Short ) return ((Short)value).longValue();
+			break;
+		case CHAR:
+			if( value instanceof Character ) return ((Character)value).charValue();
+			break;
+		case INT:
+			if( value instanceof Integer ) return ((Integer)value).longValue();
+			break;
+		case LONG:
+			if( value instanceof Long ) return ((Long)value).longValue();
+			break;
+		case FLOAT:
+			if( value instanceof Float ) return Float.floatToRawIntBits(((Float)value).floatValue()) & 0xFFFFFFFFL;
+			break;
+		case DOUBLE:
+			if( value instanceof Double ) return Double.doubleToRawLongBits(((Double)value).doubleValue());
+			break;
+		default:
+			if( value instanceof Boolean ) return ((Boolean)value).booleanValue() ? 1 : 0;
+			break;
+		}
+		throw new IllegalArgumentException( "Invalid value for type 0x" + Integer.toHexString(type) + ": " + 
+				(value == null ? "null" : value.getClass().getName()) );
+	}
+
+	private Object box() {
+		switch( type ) {
+		case BYTE: return Byte.valueOf((byte)bits);
+		case SHORT: return Short.valueOf((short)bits);
+		case CHAR: return Character.valueOf((char)bits);
+		case INT: return Integer.valueOf((int)bits);
+		case LONG: return Long.valueOf(bits);
+		case FLOAT: return Float.valueOf(getFloat());
+		case DOUBLE: return Double.valueOf(getDouble());
+		default: return Boolean.valueOf(getBoolean());
+		}
+	}
 	
 	/**
 	 * Format the value as a string.
 	 */
 	public String toString() {
+		Object value = getValue();
 		if( value == null ) {
 			return "null";
 		} else if( type == ARRAY ) {
@@ -70,6 +156,7 @@ public class DexValue {
 	 * @return
 	 */
 	public String toLiteral() {
+		Object value = getValue();
 		if( value == null ) {
 			return "null";
 		}
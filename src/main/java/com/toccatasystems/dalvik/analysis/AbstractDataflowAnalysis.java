@@ -24,9 +24,17 @@ import java.util.Map;
 
 import com.toccatasystems.dalvik.DexBasicBlock;
 import com.toccatasystems.dalvik.DexInstruction;
+import com.toccatasystems.util.PhaseStatistics;
 
 /**
  * Generic iterative worklist algorithm for dataflow analysis.
+ *
+ * The blocks of the method are numbered in reverse postorder once per run
+ * (see BlockOrder), and the worklist is a bitset over the block numbers, so
+ * a block is never queued twice. The pending block earliest in reverse
+ * postorder (for forward problems) or latest (for backward problems) is
+ * always processed next, so each block is normally visited after all of
+ * its inputs, and loops converge in close to the minimum number of passes.
  * @author nkeynes
  *
  * @param <Param>
@@ -36,9 +44,11 @@ public abstract class AbstractDataflowAnalysis<Param> extends DexAnalysis {
 	Map<DexBasicBlock, Map<DexBasicBlock, Param>> data;
 	boolean forwardFlow;
 	PrintStream debugOut = null;
+	int iterations;
 	
-	protected AbstractDataflowAnalysis( ) {
+	protected AbstractDataflowAnalysis( boolean forwardFlow ) {
 		this.data = new HashMap<DexBasicBlock, Map<DexBasicBlock, Param>>();
+		this.forwardFlow = forwardFlow;
 	}
 	
 	protected abstract Param enterBlock( DexBasicBlock block, Map<DexBasicBlock,Param> params );
@@ -71,22 +81,42 @@ public abstract class AbstractDataflowAnalysis<Param> extends DexAnalysis {
 		this.debugOut = debugOut;
 	}
 	
+	/**
+	 * @return the number of blocks visited by the last call to 
+	 * computeDataflow (including repeat visits).
+	 */
+	public int getNumIterations() {
+		return iterations;
+	}
+	
 	protected abstract Iterator<DexInstruction> getInstIterator( DexBasicBlock block );
 	protected abstract Iterator<DexBasicBlock> getNextIterator( DexBasicBlock block );
 	
 	protected void computeDataflow( Collection<DexBasicBlock> start, Param startParams ) {
+		data.clear();
+		iterations = 0;
+		if( start.isEmpty() ) {
+			return;
+		}
 		if( debugOut != null ) {
 			debugOut.println( "Computing dataflow on " + start.iterator().next().getParent().getParent().getDisplaySignature() + " from " + start );
 		}
-		data.clear();
 		for( Iterator<DexBasicBlock> it = start.iterator(); it.hasNext(); ) {
 			Map<DexBasicBlock, Param> initMap = new HashMap<DexBasicBlock,Param>();
 			initMap.put(null, startParams);
 			data.put( it.next(), initMap );
 		}
-		List<DexBasicBlock> worklist = new LinkedList<DexBasicBlock>(start);
-		while( !worklist.isEmpty() ) {
-			DexBasicBlock bb = worklist.remove(0);
+		BlockOrder order = new BlockOrder(start.iterator().next().getParent());
+		long []worklist = new long[(order.size() + 63) >>> 6];
+		for( Iterator<DexBasicBlock> it = start.iterator(); it.hasNext(); ) {
+			BitVectorDataflowAnalysis.set(worklist, order.getNumber(it.next()));
+		}
+		int b;
+		while( (b = forwardFlow ? BitVectorDataflowAnalysis.firstSet(worklist) : 
+				BitVectorDataflowAnalysis.lastSet(worklist)) != -1 ) {
+			BitVectorDataflowAnalysis.clear(worklist, b);
+			DexBasicBlock bb = order.get(b);
+			iterations++;
 
 			Map<DexBasicBlock, Param> inEdges = data.get(bb);
 			if( debugOut != null ) {
@@ -115,9 +145,13 @@ public abstract class AbstractDataflowAnalysis<Param> extends DexAnalysis {
 				Param oldparam = outmap.get(bb);
 				if( oldparam == null || !oldparam.equals(outp) ) {
 					outmap.put(bb, outp);
-					worklist.add(outbb);
+					BitVectorDataflowAnalysis.set(worklist, order.getNumber(outbb));
 				}
 			}
 		}
+		if( debugOut != null ) {
+			debugOut.println( "Converged after " + iterations + " iterations over " + order.size() + " blocks" );
+		}
+		PhaseStatistics.count(PhaseStatistics.DATAFLOW_ITERATIONS, iterations);
 	}
 }
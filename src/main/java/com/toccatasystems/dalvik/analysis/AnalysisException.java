@@ -0,0 +1,74 @@
+/**
+ * Copyright (c) 2011 Toccata Systems.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.toccatasystems.dalvik.analysis;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import com.toccatasystems.dalvik.DexMethod;
+
+/**
+ * Reports one or more methods that could not be analysed. Failures are
+ * listed in file order, regardless of the order in which they occurred.
+ * @author nkeynes
+ *
+ */
+public class AnalysisException extends RuntimeException {
+	private static final long serialVersionUID = 3964720521860914235L;
+
+	public static class Failure {
+		private DexMethod method;
+		private Throwable cause;
+
+		public Failure( DexMethod method, Throwable cause ) {
+			this.method = method;
+			this.cause = cause;
+		}
+
+		public DexMethod getMethod() { return method; }
+		public Throwable getCause() { return cause; }
+
+		public String toString() {
+			return method.getDisplaySignature() + ": " + cause.toString();
+		}
+	}
+
+	private List<Failure> failures;
+
+	public AnalysisException( List<Failure> failures ) {
+		super(formatMessage(failures), failures.get(0).getCause());
+		this.failures = Collections.unmodifiableList(failures);
+	}
+
+	/**
+	 * @return the failed methods, in file order.
+	 */
+	public List<Failure> getFailures() {
+		return failures;
+	}
+
+	private static String formatMessage( List<Failure> failures ) {
+		StringBuilder builder = new StringBuilder();
+		builder.append("Analysis failed for ");
+		builder.append(failures.size());
+		builder.append(failures.size() == 1 ? " method:" : " methods:");
+		for( Iterator<Failure> it = failures.iterator(); it.hasNext(); ) {
+			builder.append("\n    ");
+			builder.append(it.next().toString());
+		}
+		return builder.toString();
+	}
+}
@@ -22,6 +22,10 @@ import com.toccatasystems.dalvik.DexMethodBody;
 
 public abstract class BackwardDataflowAnalysis<Param> extends AbstractDataflowAnalysis<Param> {
 
+	protected BackwardDataflowAnalysis() {
+		super(false);
+	}
+
 	protected void computeDataflow(DexMethodBody method, Param params) {
 		computeDataflow(method.getExitBlocks(), params);
 	}
@@ -0,0 +1,257 @@
+/**
+ * Copyright (c) 2011 Toccata Systems.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.toccatasystems.dalvik.analysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import com.toccatasystems.dalvik.DexBasicBlock;
+import com.toccatasystems.dalvik.DexMethodBody;
+import com.toccatasystems.util.PhaseStatistics;
+
+/**
+ * Iterative dataflow analysis for problems that can be expressed as gen/kill
+ * sets over a fixed-size bit vector (liveness, reaching definitions, etc).
+ * This is a much cheaper alternative to AbstractDataflowAnalysis where the
+ * problem fits.
+ *
+ * Blocks are numbered densely in reverse postorder from the entry block (any
+ * unreachable blocks follow in layout order), and each block has long[] in
+ * and out sets. The worklist is itself a bitset over the block numbers - a
+ * block is never queued twice, and the pending block earliest in reverse
+ * postorder (for forward problems) or latest (for backward problems) is
+ * always processed next.
+ *
+ * @author nkeynes
+ *
+ */
+public abstract class BitVectorDataflowAnalysis extends DexAnalysis {
+	private boolean forward;
+	private boolean union;
+
+	protected DexMethodBody body;
+	protected DexBasicBlock []blocks;
+	protected int numBits;
+	protected int numWords;
+	protected long [][]in;
+	protected long [][]out;
+	protected long [][]gen;
+	protected long [][]kill;
+
+	private BlockOrder order;
+	private int [][]succs;
+	private int [][]preds;
+
+	/**
+	 * @param forward true for a forward problem, false for a backward problem
+	 * @param union true if values are combined at merge points by union ("may"
+	 * problems), false if they are combined by intersection ("must" problems).
+	 */
+	protected BitVectorDataflowAnalysis( boolean forward, boolean union ) {
+		this.forward = forward;
+		this.union = union;
+	}
+
+	/**
+	 * @return the number of bits in the vector for the given method
+	 */
+	protected abstract int getNumBits( DexMethodBody body );
+
+	/**
+	 * Compute the gen and kill sets for the block. Both are initially empty.
+	 * The value at the end of the block (start of the block for a backward
+	 * problem) is gen | (value & ~kill).
+	 */
+	protected abstract void initBlock( DexBasicBlock block, long []gen, long []kill );
+
+	/**
+	 * Set the value entering the method (for forward problems) or leaving
+	 * the exit blocks (for backward problems). Defaults to empty.
+	 */
+	protected void initBoundary( long []boundary ) {
+	}
+
+	public void analyse( DexMethodBody body ) {
+		computeDataflow(body);
+	}
+
+	protected void computeDataflow( DexMethodBody body ) {
+		this.body = body;
+		numberBlocks(body);
+		int numBlocks = blocks.length;
+		numBits = getNumBits(body);
+		numWords = (numBits + 63) >>> 6;
+		in = new long[numBlocks][numWords];
+		out = new long[numBlocks][numWords];
+		gen = new long[numBlocks][numWords];
+		kill = new long[numBlocks][numWords];
+		long []boundary = new long[numWords];
+		initBoundary(boundary);
+
+		long [][]result = forward ? out : in;
+		for( int i=0; i<numBlocks; i++ ) {
+			initBlock(blocks[i], gen[i], kill[i]);
+			if( !union ) {
+				fill(result[i]);
+			}
+		}
+
+		long []worklist = new long[(numBlocks + 63) >>> 6];
+		for( int i=0; i<numBlocks; i++ ) {
+			set(worklist, i);
+		}
+		long []tmp = new long[numWords];
+		int b;
+		int iterations = 0;
+		while( (b = forward ? firstSet(worklist) : lastSet(worklist)) != -1 ) {
+			clear(worklist, b);
+			iterations++;
+			int []sources = forward ? preds[b] : succs[b];
+			long []src = forward ? in[b] : out[b];
+			long [][]srcValues = forward ? out : in;
+
+			/* Meet over the incoming edges */
+			if( sources.length == 0 ) {
+				System.arraycopy(boundary, 0, src, 0, numWords);
+			} else {
+				if( union ) {
+					Arrays.fill(src, 0);
+				} else {
+					fill(src);
+				}
+				for( int i=0; i<sources.length; i++ ) {
+					long []value = srcValues[sources[i]];
+					for( int w=0; w<numWords; w++ ) {
+						src[w] = union ? (src[w] | value[w]) : (src[w] & value[w]);
+					}
+				}
+				if( forward && b == 0 ) {
+					for( int w=0; w<numWords; w++ ) {
+						src[w] = union ? (src[w] | boundary[w]) : (src[w] & boundary[w]);
+					}
+				}
+			}
+
+			/* Apply the transfer function, and queue the dependent blocks if
+			 * the result changed */
+			long []genb = gen[b], killb = kill[b];
+			for( int w=0; w<numWords; w++ ) {
+				tmp[w] = genb[w] | (src[w] & ~killb[w]);
+			}
+			long []dest = result[b];
+			if( !Arrays.equals(tmp, dest) ) {
+				System.arraycopy(tmp, 0, dest, 0, numWords);
+				int []targets = forward ? succs[b] : preds[b];
+				for( int i=0; i<targets.length; i++ ) {
+					set(worklist, targets[i]);
+				}
+			}
+		}
+		PhaseStatistics.count(PhaseStatistics.DATAFLOW_ITERATIONS, iterations);
+	}
+
+	/**
+	 * @return the value at the start of the block.
+	 */
+	public long[] getIn( DexBasicBlock block ) {
+		return in[getBlockNumber(block)];
+	}
+
+	/**
+	 * @return the value at the end of the block.
+	 */
+	public long[] getOut( DexBasicBlock block ) {
+		return out[getBlockNumber(block)];
+	}
+
+	protected int getBlockNumber( DexBasicBlock block ) {
+		return order.getNumber(block);
+	}
+
+	/**
+	 * Number the blocks in reverse postorder of a depth-first walk from the
+	 * entry block, and build the dense successor/predecessor lists.
+	 */
+	private void numberBlocks( DexMethodBody body ) {
+		order = new BlockOrder(body);
+		blocks = order.toArray();
+
+		succs = new int[blocks.length][];
+		int []predCount = new int[blocks.length];
+		for( int i=0; i<blocks.length; i++ ) {
+			List<DexBasicBlock> list = new ArrayList<DexBasicBlock>();
+			for( Iterator<DexBasicBlock> it = blocks[i].allSuccIterator(); it.hasNext(); ) {
+				list.add(it.next());
+			}
+			succs[i] = new int[list.size()];
+			for( int j=0; j<succs[i].length; j++ ) {
+				succs[i][j] = getBlockNumber(list.get(j));
+				predCount[succs[i][j]]++;
+			}
+		}
+		preds = new int[blocks.length][];
+		for( int i=0; i<blocks.length; i++ ) {
+			preds[i] = new int[predCount[i]];
+			predCount[i] = 0;
+		}
+		for( int i=0; i<blocks.length; i++ ) {
+			for( int j=0; j<succs[i].length; j++ ) {
+				int s = succs[i][j];
+				preds[s][predCount[s]++] = i;
+			}
+		}
+	}
+
+	/*************************** Bit-vector helpers ***************************/
+
+	public static boolean isSet( long []vector, int bit ) {
+		return (vector[bit >>> 6] & (1L << bit)) != 0;
+	}
+
+	public static void set( long []vector, int bit ) {
+		vector[bit >>> 6] |= (1L << bit);
+	}
+
+	public static void clear( long []vector, int bit ) {
+		vector[bit >>> 6] &= ~(1L << bit);
+	}
+
+	private void fill( long []vector ) {
+		Arrays.fill(vector, -1L);
+		if( (numBits & 63) != 0 ) {
+			vector[numWords-1] = (1L << numBits) - 1;
+		}
+	}
+
+	static int firstSet( long []vector ) {
+		for( int w=0; w<vector.length; w++ ) {
+			if( vector[w] != 0 ) {
+				return (w << 6) + Long.numberOfTrailingZeros(vector[w]);
+			}
+		}
+		return -1;
+	}
+
+	static int lastSet( long []vector ) {
+		for( int w=vector.length-1; w>=0; w-- ) {
+			if( vector[w] != 0 ) {
+				return (w << 6) + 63 - Long.numberOfLeadingZeros(vector[w]);
+			}
+		}
+		return -1;
+	}
+}
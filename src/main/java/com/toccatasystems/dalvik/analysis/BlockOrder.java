@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2011 Toccata Systems.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.toccatasystems.dalvik.analysis;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import com.toccatasystems.dalvik.DexBasicBlock;
+import com.toccatasystems.dalvik.DexMethodBody;
+
+/**
+ * Dense numbering of the blocks of a method in reverse postorder of a
+ * depth-first walk from the entry block (any unreachable blocks follow in
+ * layout order). Used by the dataflow analyses to order their worklists:
+ * forward problems process the pending block with the lowest number first,
+ * and backward problems the highest (ie postorder).
+ *
+ * @author nkeynes
+ *
+ */
+class BlockOrder {
+	private DexBasicBlock []blocks;
+	private Map<DexBasicBlock,Integer> numbers;
+	private int numReachable;
+
+	BlockOrder( DexMethodBody body ) {
+		numbers = new IdentityHashMap<DexBasicBlock,Integer>();
+		List<DexBasicBlock> postorder = new ArrayList<DexBasicBlock>();
+		LinkedList<DexBasicBlock> stack = new LinkedList<DexBasicBlock>();
+		LinkedList<Iterator<DexBasicBlock>> iterators = new LinkedList<Iterator<DexBasicBlock>>();
+
+		DexBasicBlock entry = body.getEntryBlock();
+		numbers.put(entry, -1);
+		stack.add(entry);
+		iterators.add(entry.allSuccIterator());
+		while( !stack.isEmpty() ) {
+			Iterator<DexBasicBlock> it = iterators.getLast();
+			if( it.hasNext() ) {
+				DexBasicBlock succ = it.next();
+				if( !numbers.containsKey(succ) ) {
+					numbers.put(succ, -1);
+					stack.add(succ);
+					iterators.add(succ.allSuccIterator());
+				}
+			} else {
+				postorder.add(stack.removeLast());
+				iterators.removeLast();
+			}
+		}
+
+		List<DexBasicBlock> order = new ArrayList<DexBasicBlock>(numbers.size());
+		for( int i=postorder.size()-1; i>=0; i-- ) {
+			order.add(postorder.get(i));
+		}
+		numReachable = order.size();
+		for( Iterator<DexBasicBlock> it = body.iterator(); it.hasNext(); ) {
+			DexBasicBlock bb = it.next();
+			if( !numbers.containsKey(bb) ) {
+				order.add(bb);
+			}
+		}
+		blocks = order.toArray(new DexBasicBlock[order.size()]);
+		for( int i=0; i<blocks.length; i++ ) {
+			numbers.put(blocks[i], i);
+		}
+	}
+
+	int size() {
+		return blocks.length;
+	}
+
+	/**
+	 * @return the number of blocks reachable from the entry block, which
+	 * are numbered 0 .. getNumReachable()-1.
+	 */
+	int getNumReachable() {
+		return numReachable;
+	}
+
+	DexBasicBlock get( int number ) {
+		return blocks[number];
+	}
+
+	int getNumber( DexBasicBlock block ) {
+		return numbers.get(block).intValue();
+	}
+
+	/**
+	 * @return the blocks, in order.
+	 */
+	DexBasicBlock[] toArray() {
+		return blocks;
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2011 Toccata Systems.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.toccatasystems.dalvik.analysis;
+
+import java.util.Iterator;
+
+import com.toccatasystems.dalvik.DexBasicBlock;
+import com.toccatasystems.dalvik.DexInstruction;
+import com.toccatasystems.dalvik.DexMethodBody;
+import com.toccatasystems.dalvik.DexType;
+
+/**
+ * Compute the registers that are live at the start and end of each block,
+ * ie registers whose current value may be read before they are next written.
+ * Wide values occupy both their register and the following one.
+ *
+ * Must be run after TypeAssignment, as the register types are needed to
+ * identify wide operands.
+ *
+ * @author nkeynes
+ *
+ */
+public class ComputeLiveness extends BitVectorDataflowAnalysis {
+
+	public ComputeLiveness() {
+		super(false, true);
+	}
+
+	protected int getNumBits( DexMethodBody body ) {
+		return body.getNumRegisters();
+	}
+
+	protected void initBlock( DexBasicBlock block, long []gen, long []kill ) {
+		/* If the block has exception successors, its last instruction may
+		 * throw before writing its result, so the register must stay live
+		 * through it. */
+		DexInstruction last = block.hasExceptionSuccessors() ? block.last() : null;
+		if( last != null && !last.mayThrow() ) {
+			last = null;
+		}
+		for( Iterator<DexInstruction> it = block.reverseIterator(); it.hasNext(); ) {
+			DexInstruction inst = it.next();
+			int numRegs = inst.getNumRegisters();
+			/* Note moves aren't flagged as writing their destination (since
+			 * ComputeUseDefInfo treats them as copies), so check separately */
+			if( numRegs > 0 && (inst.writesOperand(0) || inst.isMove()) && inst != last ) {
+				int reg = inst.getRegister(0);
+				int width = isWide(inst, 0) ? 2 : 1;
+				for( int i=0; i<width; i++ ) {
+					clear(gen, reg+i);
+					set(kill, reg+i);
+				}
+			}
+			for( int op=0; op<numRegs; op++ ) {
+				if( inst.readsOperand(op) && !(op == 0 && inst.isMove()) ) {
+					int reg = inst.getRegister(op);
+					set(gen, reg);
+					if( isWide(inst, op) ) {
+						set(gen, reg+1);
+					}
+				}
+			}
+		}
+	}
+
+	private static boolean isWide( DexInstruction inst, int op ) {
+		DexType type = inst.getRegisterType(op);
+		return type != null && type.isPrimDWord();
+	}
+
+	/**
+	 * @return true if the register is live on entry to the block.
+	 */
+	public boolean isLiveIn( DexBasicBlock block, int reg ) {
+		return isSet(getIn(block), reg);
+	}
+
+	/**
+	 * @return true if the register is live on exit from the block.
+	 */
+	public boolean isLiveOut( DexBasicBlock block, int reg ) {
+		return isSet(getOut(block), reg);
+	}
+}
@@ -0,0 +1,435 @@
+/**
+ * Copyright (c) 2011 Toccata Systems.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.toccatasystems.dalvik.analysis;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.toccatasystems.dalvik.DexArgument;
+import com.toccatasystems.dalvik.DexBasicBlock;
+import com.toccatasystems.dalvik.DexInstruction;
+import com.toccatasystems.dalvik.DexMethodBody;
+
+/**
+ * Construct the SSA form of a method: the dominator tree and frontiers,
+ * phi placement at the iterated dominance frontiers of each register's
+ * definitions, and renaming by a walk of the dominator tree (Cytron et al).
+ * Phis are only placed for registers that are read before being written
+ * in some block ("semi-pruned" SSA), so some phis may still be dead.
+ *
+ * Each register operand read by an instruction then has exactly one
+ * reaching SSAValue (or null if the register is undefined on every path).
+ * As in ComputeUseDefInfo, moves are copies rather than definitions - the
+ * destination of a move takes the value of its source - and exception
+ * edges carry the register values at the end of the throwing block.
+ * Instructions in unreachable blocks have no values.
+ *
+ * Values are held in arrays indexed by the instruction numbering of
+ * DexMethodBody.numberInstructions(), which is done here if the method
+ * hasn't already been numbered. The results refer to the most recently
+ * analysed method.
+ *
+ * @author nkeynes
+ *
+ */
+public class ComputeSSA extends DexAnalysis {
+	private final static SSAValue []NO_VALUES = new SSAValue[0];
+
+	private DexMethodBody body;
+	private DominatorTree domTree;
+	private BlockOrder order;
+	private List<SSAValue> values;
+	/* Value defined by each instruction, by instruction index */
+	private SSAValue []instValues;
+	/* Value reaching each register operand, by instruction index */
+	private SSAValue [][]operandValues;
+	/* Phis at the start of each block, by block number */
+	private SSAValue [][]phis;
+
+	public void analyse( DexMethodBody body ) {
+		this.body = body;
+		if( body.getNumInstructions() == 0 ) {
+			body.numberInstructions();
+		}
+		order = new BlockOrder(body);
+		domTree = new DominatorTree(order);
+		values = new ArrayList<SSAValue>();
+		instValues = new SSAValue[body.getNumInstructions()];
+		operandValues = new SSAValue[body.getNumInstructions()][];
+		placePhis();
+		rename();
+	}
+
+	public DominatorTree getDominatorTree() {
+		return domTree;
+	}
+
+	/**
+	 * @return the total number of values (including phis) in the method.
+	 */
+	public int getNumValues() {
+		return values.size();
+	}
+
+	public SSAValue getValue( int id ) {
+		return values.get(id);
+	}
+
+	/**
+	 * @return the value defined by the instruction, or null if it doesn't
+	 * define one.
+	 */
+	public SSAValue getValue( DexInstruction inst ) {
+		return instValues[inst.getIndex()];
+	}
+
+	/**
+	 * @return the single value reaching the given register operand of the
+	 * instruction, or null if the operand isn't read or the register is
+	 * undefined.
+	 */
+	public SSAValue getDef( DexInstruction inst, int operand ) {
+		SSAValue []ops = operandValues[inst.getIndex()];
+		return ops == null ? null : ops[operand];
+	}
+
+	/**
+	 * @return the phis at the start of the block.
+	 */
+	public SSAValue[] getPhis( DexBasicBlock block ) {
+		int b = order.getNumber(block);
+		return b >= phis.length || phis[b] == null ? NO_VALUES : phis[b];
+	}
+
+	/**
+	 * @return the instructions whose definitions may reach the operand,
+	 * looking through phis - ie the same set that ComputeUseDefInfo
+	 * computes, in instruction order.
+	 */
+	public Set<DexInstruction> getReachingDefs( DexInstruction inst, int operand ) {
+		Set<DexInstruction> result = new TreeSet<DexInstruction>();
+		SSAValue value = getDef(inst, operand);
+		if( value == null ) {
+			return result;
+		}
+		BitSet visited = new BitSet(values.size());
+		List<SSAValue> stack = new ArrayList<SSAValue>();
+		stack.add(value);
+		visited.set(value.getId());
+		while( !stack.isEmpty() ) {
+			value = stack.remove(stack.size()-1);
+			if( !value.isPhi() ) {
+				result.add(value.getDefinition());
+			} else {
+				for( int i=0; i<value.getNumOperands(); i++ ) {
+					SSAValue op = value.getOperand(i);
+					if( op != null && !visited.get(op.getId()) ) {
+						visited.set(op.getId());
+						stack.add(op);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Print the method in SSA form - each block with its immediate
+	 * dominator and phis, and each instruction with the values it reads.
+	 */
+	public void print( PrintStream out ) {
+		for( int i=0; i<body.getNumArguments(); i++ ) {
+			SSAValue value = getValue(body.getArgument(i));
+			if( value != null ) {
+				out.println( "        " + value.format() );
+			}
+		}
+		for( int b=0; b<domTree.getNumBlocks(); b++ ) {
+			DexBasicBlock bb = order.get(b);
+			DexBasicBlock idom = domTree.getImmediateDominator(bb);
+			out.println( "    " + bb.getName() + ":    ; idom: " + (idom == null ? "-" : idom.getName()) );
+			SSAValue []blockPhis = getPhis(bb);
+			for( int i=0; i<blockPhis.length; i++ ) {
+				out.println( "        " + blockPhis[i].format() );
+			}
+			for( Iterator<DexInstruction> it = bb.iterator(); it.hasNext(); ) {
+				DexInstruction inst = it.next();
+				StringBuilder builder = new StringBuilder("        ");
+				SSAValue value = inst.getIndex() == -1 ? null : getValue(inst);
+				builder.append(value == null ? inst.disassemble() : value.format());
+				SSAValue []ops = inst.getIndex() == -1 ? null : operandValues[inst.getIndex()];
+				if( ops != null ) {
+					builder.append("    ; uses");
+					for( int i=0; i<ops.length; i++ ) {
+						if( ops[i] != null ) {
+							builder.append(" v").append(inst.getRegister(i)).append('=').append(ops[i]);
+						}
+					}
+				}
+				out.println(builder.toString());
+			}
+		}
+	}
+
+	/**
+	 * @return true if the instruction's read of the operand is a use (as
+	 * opposed to the destination of a move, which is not read).
+	 */
+	private static boolean isUse( DexInstruction inst, int operand ) {
+		if( inst.isMove() ) {
+			return operand == 1;
+		} else {
+			return inst.readsOperand(operand);
+		}
+	}
+
+	/**
+	 * @return the register assigned by the instruction, or -1.
+	 */
+	private static int getAssignedRegister( DexInstruction inst ) {
+		if( inst.getNumRegisters() > 0 && (inst.isMove() || inst.writesOperand(0)) ) {
+			return inst.getRegister(0);
+		}
+		return -1;
+	}
+
+	/**
+	 * Place phis for each register read before it is written in some block
+	 * (ie live across a block boundary) at the iterated dominance frontier
+	 * of the blocks that assign it.
+	 */
+	private void placePhis() {
+		int numBlocks = domTree.getNumBlocks();
+		int numRegs = body.getNumRegisters();
+		phis = new SSAValue[numBlocks][];
+
+		/* Find the blocks assigning each register, and the registers that
+		 * are read before being assigned in some block */
+		int [][]assigns = new int[numRegs][];
+		int []numAssigns = new int[numRegs];
+		int []lastAssign = new int[numRegs];
+		Arrays.fill(lastAssign, -1);
+		BitSet global = new BitSet(numRegs);
+		BitSet killed = new BitSet(numRegs);
+		for( int b=0; b<numBlocks; b++ ) {
+			killed.clear();
+			for( Iterator<DexInstruction> it = order.get(b).iterator(); it.hasNext(); ) {
+				DexInstruction inst = it.next();
+				for( int i=0; i<inst.getNumRegisters(); i++ ) {
+					if( isUse(inst, i) && !killed.get(inst.getRegister(i)) ) {
+						global.set(inst.getRegister(i));
+					}
+				}
+				int reg = getAssignedRegister(inst);
+				if( reg != -1 ) {
+					killed.set(reg);
+					if( lastAssign[reg] != b ) {
+						lastAssign[reg] = b;
+						if( assigns[reg] == null ) {
+							assigns[reg] = new int[4];
+						} else if( numAssigns[reg] == assigns[reg].length ) {
+							assigns[reg] = Arrays.copyOf(assigns[reg], numAssigns[reg]*2);
+						}
+						assigns[reg][numAssigns[reg]++] = b;
+					}
+				}
+			}
+		}
+
+		/* Iterated dominance frontier, per register */
+		List<List<SSAValue>> blockPhis = new ArrayList<List<SSAValue>>(numBlocks);
+		for( int b=0; b<numBlocks; b++ ) {
+			blockPhis.add(null);
+		}
+		int []hasPhi = new int[numBlocks];
+		int []onWorklist = new int[numBlocks];
+		Arrays.fill(hasPhi, -1);
+		Arrays.fill(onWorklist, -1);
+		int []worklist = new int[numBlocks];
+		for( int reg = global.nextSetBit(0); reg >= 0; reg = global.nextSetBit(reg+1) ) {
+			int count = 0;
+			for( int i=0; i<numAssigns[reg]; i++ ) {
+				int b = assigns[reg][i];
+				onWorklist[b] = reg;
+				worklist[count++] = b;
+			}
+			while( count > 0 ) {
+				int b = worklist[--count];
+				int []frontier = domTree.getDominanceFrontier(b);
+				for( int i=0; i<frontier.length; i++ ) {
+					int d = frontier[i];
+					if( hasPhi[d] != reg ) {
+						hasPhi[d] = reg;
+						if( blockPhis.get(d) == null ) {
+							blockPhis.set(d, new ArrayList<SSAValue>());
+						}
+						blockPhis.get(d).add(newPhi(reg, d));
+						if( onWorklist[d] != reg ) {
+							onWorklist[d] = reg;
+							worklist[count++] = d;
+						}
+					}
+				}
+			}
+		}
+		for( int b=0; b<numBlocks; b++ ) {
+			List<SSAValue> list = blockPhis.get(b);
+			if( list != null ) {
+				phis[b] = list.toArray(new SSAValue[list.size()]);
+			}
+		}
+	}
+
+	private SSAValue newPhi( int reg, int b ) {
+		int []preds = domTree.getPredecessors(b);
+		int extra = b == 0 ? 1 : 0;
+		DexBasicBlock []operandBlocks = new DexBasicBlock[preds.length + extra];
+		for( int i=0; i<preds.length; i++ ) {
+			operandBlocks[i+extra] = order.get(preds[i]);
+		}
+		SSAValue phi = new SSAValue(values.size(), reg, order.get(b), operandBlocks);
+		values.add(phi);
+		return phi;
+	}
+
+	private SSAValue newValue( DexInstruction inst ) {
+		SSAValue value = new SSAValue(values.size(), inst);
+		values.add(value);
+		instValues[inst.getIndex()] = value;
+		return value;
+	}
+
+	/**
+	 * Rename in a preorder walk of the dominator tree, keeping the current
+	 * value of each register in an array and undoing each block's changes
+	 * when leaving it.
+	 */
+	private void rename() {
+		int numBlocks = domTree.getNumBlocks();
+		if( numBlocks == 0 ) {
+			return;
+		}
+		SSAValue []current = new SSAValue[body.getNumRegisters()];
+		for( int i=0; i<body.getNumArguments(); i++ ) {
+			DexArgument arg = body.getArgument(i);
+			current[arg.getRegister(0)] = newValue(arg);
+		}
+		/* The entry phis take the argument values from the method entry */
+		SSAValue []entryPhis = phis[0];
+		for( int i=0; entryPhis != null && i<entryPhis.length; i++ ) {
+			entryPhis[i].setOperand(0, current[entryPhis[i].getRegister()]);
+		}
+
+		/* Undo log of (register, previous value) */
+		int []undoRegs = new int[64];
+		SSAValue []undoValues = new SSAValue[64];
+		int undoCount = 0;
+		/* Explicit stack of blocks, with the undo position on entry (or -1
+		 * if the block has not yet been visited) */
+		int []stack = new int[numBlocks];
+		int []marks = new int[numBlocks];
+		int sp = 0;
+		stack[sp] = 0;
+		marks[sp++] = -1;
+		while( sp > 0 ) {
+			int b = stack[sp-1];
+			if( marks[sp-1] != -1 ) {
+				/* Leaving the block */
+				while( undoCount > marks[sp-1] ) {
+					undoCount--;
+					current[undoRegs[undoCount]] = undoValues[undoCount];
+				}
+				sp--;
+				continue;
+			}
+			marks[sp-1] = undoCount;
+			DexBasicBlock bb = order.get(b);
+
+			SSAValue []blockPhis = phis[b];
+			for( int i=0; blockPhis != null && i<blockPhis.length; i++ ) {
+				int reg = blockPhis[i].getRegister();
+				if( undoCount == undoRegs.length ) {
+					undoRegs = Arrays.copyOf(undoRegs, undoCount*2);
+					undoValues = Arrays.copyOf(undoValues, undoCount*2);
+				}
+				undoRegs[undoCount] = reg;
+				undoValues[undoCount++] = current[reg];
+				current[reg] = blockPhis[i];
+			}
+
+			for( Iterator<DexInstruction> it = bb.iterator(); it.hasNext(); ) {
+				DexInstruction inst = it.next();
+				int numRegs = inst.getNumRegisters();
+				if( numRegs == 0 ) {
+					continue;
+				}
+				SSAValue []ops = null;
+				for( int i=0; i<numRegs; i++ ) {
+					if( isUse(inst, i) ) {
+						if( ops == null ) {
+							ops = new SSAValue[numRegs];
+							operandValues[inst.getIndex()] = ops;
+						}
+						ops[i] = current[inst.getRegister(i)];
+					}
+				}
+				int reg = getAssignedRegister(inst);
+				if( reg != -1 ) {
+					if( undoCount == undoRegs.length ) {
+						undoRegs = Arrays.copyOf(undoRegs, undoCount*2);
+						undoValues = Arrays.copyOf(undoValues, undoCount*2);
+					}
+					undoRegs[undoCount] = reg;
+					undoValues[undoCount++] = current[reg];
+					current[reg] = inst.isMove() ? current[inst.getRegister(1)] : newValue(inst);
+				}
+			}
+
+			/* Fill in the phi operands of the successors. Each edge appears
+			 * once in the successor's predecessor list. */
+			fillSuccessorPhis(bb, current);
+
+			int []children = domTree.getChildren(b);
+			for( int i=children.length-1; i>=0; i-- ) {
+				stack[sp] = children[i];
+				marks[sp++] = -1;
+			}
+		}
+	}
+
+	private void fillSuccessorPhis( DexBasicBlock bb, SSAValue []current ) {
+		for( Iterator<DexBasicBlock> it = bb.allSuccIterator(); it.hasNext(); ) {
+			int s = order.getNumber(it.next());
+			SSAValue []succPhis = phis[s];
+			if( succPhis == null ) {
+				continue;
+			}
+			for( int i=0; i<succPhis.length; i++ ) {
+				SSAValue phi = succPhis[i];
+				for( int j=0; j<phi.getNumOperands(); j++ ) {
+					if( phi.getOperandBlock(j) == bb ) {
+						phi.setOperand(j, current[phi.getRegister()]);
+					}
+				}
+			}
+		}
+	}
+}
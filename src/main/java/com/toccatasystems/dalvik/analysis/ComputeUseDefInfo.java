@@ -14,10 +14,10 @@
 
 package com.toccatasystems.dalvik.analysis;
 
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeSet;
 
 import com.toccatasystems.dalvik.DexArgument;
 import com.toccatasystems.dalvik.DexBasicBlock;
@@ -32,50 +32,66 @@ import com.toccatasystems.dalvik.DexMethodBody;
  */ 
 public class ComputeUseDefInfo extends ForwardDataflowAnalysis<ComputeUseDefInfo.Params> {
 
+	/**
+	 * Reaching definitions for each register, as bitsets of instruction
+	 * indices. Sets are shared between copies of the state until one side
+	 * needs to modify them (a null entry is the empty set).
+	 */
 	protected static class Params {
-		Set<DexInstruction> defns[];
+		BitSet defns[];
+		boolean owned[];
+		DexMethodBody body;
 		
-		@SuppressWarnings("unchecked")
 		public Params(DexMethodBody body) {
-			defns = (Set<DexInstruction>[])new Set[body.getNumRegisters()];
-			for( int i=0; i<body.getNumRegisters(); i++ ) {
-				defns[i] = new TreeSet<DexInstruction>();
-			}
+			this.body = body;
+			defns = new BitSet[body.getNumRegisters()];
+			owned = new boolean[defns.length];
 			setArgDefs(body);
 		}
 		
-		@SuppressWarnings("unchecked")
 		public Params(Params o) {
-			defns = (Set<DexInstruction>[])new Set[o.defns.length];
-			for( int i=0; i<o.defns.length; i++ ) {
-				defns[i] = new TreeSet<DexInstruction>();
-				defns[i].addAll(o.defns[i]);
-			}
+			body = o.body;
+			defns = o.defns.clone();
+			owned = new boolean[defns.length];
+			/* Neither side may now modify the shared sets in place */
+			Arrays.fill(o.owned, false);
 		}
 		
 		public void define( int reg, DexInstruction inst ) {
-			defns[reg].clear();
-			defns[reg].add(inst);
+			BitSet set = new BitSet();
+			set.set(inst.getIndex());
+			defns[reg] = set;
+			owned[reg] = true;
 		}
 		
 		public void use( int reg, DexInstruction inst, int operandIdx ) {
 			inst.setRegisterDefs(operandIdx, defns[reg]);
-			for( Iterator<DexInstruction> it = defns[reg].iterator(); it.hasNext(); ) {
-				DexInstruction used = it.next();
-				used.addUse(inst, operandIdx);
-			}
 		}
 		
 		public void move( int dest, int src ) {
 			if( dest != src ) {
-				defns[dest].clear();
-				defns[dest].addAll(defns[src]);
+				defns[dest] = defns[src];
+				owned[dest] = false;
+				owned[src] = false;
 			}
 		}
 		
 		public void merge( Params o ) {
 			for( int i=0; i<defns.length; i++ ) {
-				defns[i].addAll(o.defns[i]);
+				BitSet other = o.defns[i];
+				if( other == null || other == defns[i] ) {
+					continue;
+				} else if( defns[i] == null ) {
+					defns[i] = other;
+					owned[i] = false;
+					o.owned[i] = false;
+				} else if( !defns[i].equals(other) ) {
+					if( !owned[i] ) {
+						defns[i] = (BitSet)defns[i].clone();
+						owned[i] = true;
+					}
+					defns[i].or(other);
+				}
 			}
 		}
 		
@@ -83,8 +99,13 @@ public class ComputeUseDefInfo extends ForwardDataflowAnalysis<ComputeUseDefInfo
 			if( other instanceof Params ) {
 				Params o = (Params)other;
 				for( int i=0; i<defns.length; i++ ) {
-					if( !defns[i].equals(o.defns[i]) ) {
-						return false;
+					BitSet a = defns[i], b = o.defns[i];
+					if( a != b ) {
+						boolean emptyA = a == null || a.isEmpty();
+						boolean emptyB = b == null || b.isEmpty();
+						if( emptyA != emptyB || (!emptyA && !a.equals(b)) ) {
+							return false;
+						}
 					}
 				}
 				return true;
@@ -100,9 +121,10 @@ public class ComputeUseDefInfo extends ForwardDataflowAnalysis<ComputeUseDefInfo
 				builder.append('v');
 				builder.append(Integer.toString(i));
 				builder.append(" = {");
-				for( Iterator<DexInstruction> it = defns[i].iterator(); it.hasNext(); ) {
-					DexInstruction inst = it.next();
-					builder.append( inst.disassemble() );
+				if( defns[i] != null ) {
+					for( int j = defns[i].nextSetBit(0); j >= 0; j = defns[i].nextSetBit(j+1) ) {
+						builder.append( body.getInstruction(j).disassemble() );
+					}
 				}
 				builder.append("}");
 			}
@@ -113,13 +135,30 @@ public class ComputeUseDefInfo extends ForwardDataflowAnalysis<ComputeUseDefInfo
 		private void setArgDefs( DexMethodBody body ) {
 			for( int i=0; i < body.getNumArguments(); i++ ) {
 				DexArgument arg = body.getArgument(i);
-				defns[arg.getRegister(0)].add(arg);
+				define(arg.getRegister(0), arg);
 			}
 		}
 	}
 	
 	public void analyse( DexMethodBody body ) {
+		body.numberInstructions();
 		computeDataflow(body, new Params(body));
+		computeUses(body);
+	}
+	
+	/**
+	 * Invert the final def sets to produce the use lists. Users are visited
+	 * in instruction order, so each use list comes out sorted.
+	 */
+	private void computeUses( DexMethodBody body ) {
+		for( int i=0; i<body.getNumInstructions(); i++ ) {
+			DexInstruction inst = body.getInstruction(i);
+			for( int j=0; j<inst.getNumRegisters(); j++ ) {
+				for( Iterator<DexInstruction> it = inst.getRegisterDefs(j).iterator(); it.hasNext(); ) {
+					it.next().addUse(inst, j);
+				}
+			}
+		}
 	}
 	
 	public void analyse( DexFile file ) {
@@ -0,0 +1,266 @@
+/**
+ * Copyright (c) 2011 Toccata Systems.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.toccatasystems.dalvik.analysis;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import com.toccatasystems.dalvik.DexBasicBlock;
+import com.toccatasystems.dalvik.DexMethodBody;
+
+/**
+ * Dominator tree and dominance frontiers of the blocks reachable from the
+ * entry of a method, following both normal and exception edges. Uses the
+ * iterative algorithm of Cooper, Harvey and Kennedy ("A Simple, Fast 
+ * Dominance Algorithm") over the reverse postorder numbering of BlockOrder.
+ *
+ * The method entry is treated as having an implicit predecessor (the
+ * caller), so if the entry block is itself the target of a branch it
+ * appears in dominance frontiers like any other join point.
+ *
+ * @author nkeynes
+ *
+ */
+public class DominatorTree {
+	private final static int []NO_BLOCKS = new int[0];
+
+	private BlockOrder order;
+	private int numBlocks;
+	/* Immediate dominator of each block by number (-1 for the entry) */
+	private int []idom;
+	/* Reachable predecessors of each block, by number */
+	private int [][]preds;
+	private int [][]children;
+	private int [][]frontiers;
+
+	public DominatorTree( DexMethodBody body ) {
+		this(new BlockOrder(body));
+	}
+
+	DominatorTree( BlockOrder order ) {
+		this.order = order;
+		this.numBlocks = order.getNumReachable();
+		computePredecessors();
+		computeDominators();
+		computeChildren();
+		computeFrontiers();
+	}
+
+	/**
+	 * @return the number of blocks in the tree, ie the number of blocks 
+	 * reachable from the entry.
+	 */
+	public int getNumBlocks() {
+		return numBlocks;
+	}
+
+	/**
+	 * @return true if the block is reachable from the method entry (and so
+	 * is in the tree).
+	 */
+	public boolean isReachable( DexBasicBlock block ) {
+		return order.getNumber(block) < numBlocks;
+	}
+
+	/**
+	 * @return the immediate dominator of the block, or null for the entry
+	 * block (or an unreachable block).
+	 */
+	public DexBasicBlock getImmediateDominator( DexBasicBlock block ) {
+		int b = order.getNumber(block);
+		return b >= numBlocks || idom[b] == -1 ? null : order.get(idom[b]);
+	}
+
+	/**
+	 * @return true if every path from the entry to b passes through a (and
+	 * in particular, if a == b).
+	 */
+	public boolean dominates( DexBasicBlock a, DexBasicBlock b ) {
+		int na = order.getNumber(a);
+		int nb = order.getNumber(b);
+		if( na >= numBlocks || nb >= numBlocks ) {
+			return false;
+		}
+		/* Dominators always precede the blocks they dominate in reverse
+		 * postorder, so walk up until we pass a */
+		while( nb > na ) {
+			nb = idom[nb];
+		}
+		return nb == na;
+	}
+
+	/**
+	 * @return the blocks immediately dominated by the block.
+	 */
+	public DexBasicBlock[] getChildren( DexBasicBlock block ) {
+		return toBlocks(children[order.getNumber(block)]);
+	}
+
+	/**
+	 * @return the dominance frontier of the block, ie the blocks where its
+	 * dominance ends.
+	 */
+	public DexBasicBlock[] getDominanceFrontier( DexBasicBlock block ) {
+		return toBlocks(frontiers[order.getNumber(block)]);
+	}
+
+	/*********************** Number-based accessors ***********************/
+
+	BlockOrder getOrder() {
+		return order;
+	}
+
+	int getImmediateDominator( int b ) {
+		return idom[b];
+	}
+
+	int[] getChildren( int b ) {
+		return children[b];
+	}
+
+	int[] getDominanceFrontier( int b ) {
+		return frontiers[b];
+	}
+
+	int[] getPredecessors( int b ) {
+		return preds[b];
+	}
+
+	/***************************** Construction ***************************/
+
+	private void computePredecessors() {
+		preds = new int[numBlocks][];
+		int []tmp = new int[16];
+		for( int b=0; b<numBlocks; b++ ) {
+			DexBasicBlock bb = order.get(b);
+			if( tmp.length < bb.getNumPredecessors() ) {
+				tmp = new int[bb.getNumPredecessors()];
+			}
+			int count = 0;
+			for( Iterator<DexBasicBlock> it = bb.predIterator(); it.hasNext(); ) {
+				int p = order.getNumber(it.next());
+				if( p < numBlocks ) {
+					tmp[count++] = p;
+				}
+			}
+			preds[b] = new int[count];
+			System.arraycopy(tmp, 0, preds[b], 0, count);
+		}
+	}
+
+	private void computeDominators() {
+		idom = new int[numBlocks];
+		Arrays.fill(idom, -1);
+		if( numBlocks == 0 ) {
+			return;
+		}
+		idom[0] = 0;
+		boolean changed = true;
+		while( changed ) {
+			changed = false;
+			for( int b=1; b<numBlocks; b++ ) {
+				int newIdom = -1;
+				for( int i=0; i<preds[b].length; i++ ) {
+					int p = preds[b][i];
+					if( idom[p] != -1 ) {
+						newIdom = newIdom == -1 ? p : intersect(p, newIdom);
+					}
+				}
+				if( idom[b] != newIdom ) {
+					idom[b] = newIdom;
+					changed = true;
+				}
+			}
+		}
+		idom[0] = -1;
+	}
+
+	private int intersect( int b1, int b2 ) {
+		while( b1 != b2 ) {
+			while( b1 > b2 ) {
+				b1 = idom[b1];
+			}
+			while( b2 > b1 ) {
+				b2 = idom[b2];
+			}
+		}
+		return b1;
+	}
+
+	private void computeChildren() {
+		int []count = new int[numBlocks];
+		for( int b=1; b<numBlocks; b++ ) {
+			count[idom[b]]++;
+		}
+		children = new int[numBlocks][];
+		for( int b=0; b<numBlocks; b++ ) {
+			children[b] = count[b] == 0 ? NO_BLOCKS : new int[count[b]];
+			count[b] = 0;
+		}
+		for( int b=1; b<numBlocks; b++ ) {
+			int parent = idom[b];
+			children[parent][count[parent]++] = b;
+		}
+	}
+
+	private void computeFrontiers() {
+		int [][]sets = new int[numBlocks][];
+		int []sizes = new int[numBlocks];
+		/* Last join point added to each frontier, to suppress duplicates */
+		int []lastAdded = new int[numBlocks];
+		Arrays.fill(lastAdded, -1);
+		for( int b=0; b<numBlocks; b++ ) {
+			/* The entry has the implicit predecessor as well */
+			int numPreds = preds[b].length + (b == 0 ? 1 : 0);
+			if( numPreds < 2 ) {
+				continue;
+			}
+			for( int i=0; i<preds[b].length; i++ ) {
+				int runner = preds[b][i];
+				while( runner != -1 && runner != idom[b] ) {
+					if( lastAdded[runner] != b ) {
+						lastAdded[runner] = b;
+						if( sets[runner] == null ) {
+							sets[runner] = new int[4];
+						} else if( sizes[runner] == sets[runner].length ) {
+							int []tmp = new int[sizes[runner]*2];
+							System.arraycopy(sets[runner], 0, tmp, 0, sizes[runner]);
+							sets[runner] = tmp;
+						}
+						sets[runner][sizes[runner]++] = b;
+					}
+					runner = idom[runner];
+				}
+			}
+		}
+		frontiers = new int[numBlocks][];
+		for( int b=0; b<numBlocks; b++ ) {
+			if( sizes[b] == 0 ) {
+				frontiers[b] = NO_BLOCKS;
+			} else {
+				frontiers[b] = new int[sizes[b]];
+				System.arraycopy(sets[b], 0, frontiers[b], 0, sizes[b]);
+			}
+		}
+	}
+
+	private DexBasicBlock[] toBlocks( int []numbers ) {
+		DexBasicBlock []result = new DexBasicBlock[numbers.length];
+		for( int i=0; i<numbers.length; i++ ) {
+			result[i] = order.get(numbers[i]);
+		}
+		return result;
+	}
+}
@@ -22,6 +22,10 @@ import com.toccatasystems.dalvik.DexMethodBody;
 
 public abstract class ForwardDataflowAnalysis<Param> extends AbstractDataflowAnalysis<Param> {
 
+	protected ForwardDataflowAnalysis() {
+		super(true);
+	}
+
 	protected void computeDataflow(DexMethodBody method, Param params) {
 		computeDataflow(method.getEntryBlock(), params);
 	}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2011 Toccata Systems.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.toccatasystems.dalvik.analysis;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.toccatasystems.dalvik.DexFile;
+import com.toccatasystems.dalvik.DexMethod;
+
+/**
+ * Loads and analyses every method body in a file up front, spreading the
+ * methods over a work-stealing pool. Each method is read, given its CFG,
+ * use-def chains and type assignment by a single worker (via
+ * DexMethod.getBody()), so the data for a method stays with one thread.
+ *
+ * Failures do not stop the remaining methods from being analysed; once all
+ * methods are done, they are reported together in file order by an
+ * AnalysisException.
+ *
+ * @author nkeynes
+ *
+ */
+public class ParallelAnalysis {
+	/** Largest range of methods that a single task analyses without splitting */
+	private final static int METHODS_PER_TASK = 8;
+
+	private ForkJoinPool pool;
+
+	private static class AnalysisTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private DexMethod []methods;
+		private Throwable []failures;
+		private int start, end;
+
+		AnalysisTask( DexMethod []methods, Throwable []failures, int start, int end ) {
+			this.methods = methods;
+			this.failures = failures;
+			this.start = start;
+			this.end = end;
+		}
+
+		protected void compute() {
+			if( end - start <= METHODS_PER_TASK ) {
+				for( int i=start; i<end; i++ ) {
+					try {
+						methods[i].getBody();
+					} catch( StackOverflowError e ) {
+						/* Specific to the method, so report it with the rest */
+						failures[i] = e;
+					} catch( VirtualMachineError e ) {
+						throw e;
+					} catch( Throwable e ) {
+						failures[i] = e;
+					}
+				}
+			} else {
+				int mid = (start + end) >>> 1;
+				invokeAll( new AnalysisTask(methods, failures, start, mid),
+						new AnalysisTask(methods, failures, mid, end) );
+			}
+		}
+	}
+
+	public ParallelAnalysis( int threads ) {
+		this.pool = new ForkJoinPool(threads);
+	}
+
+	/**
+	 * Analyse all method bodies in the file.
+	 * @throws AnalysisException if any method fails to load or analyse.
+	 */
+	public void analyse( DexFile file ) {
+		List<DexMethod> list = new ArrayList<DexMethod>();
+		for( Iterator<DexMethod> it = file.methodIterator(); it.hasNext(); ) {
+			DexMethod method = it.next();
+			if( method.hasBody() ) {
+				list.add(method);
+			}
+		}
+		DexMethod []methods = list.toArray(new DexMethod[list.size()]);
+		Throwable []failures = new Throwable[methods.length];
+		pool.invoke(new AnalysisTask(methods, failures, 0, methods.length));
+
+		List<AnalysisException.Failure> report = new ArrayList<AnalysisException.Failure>();
+		for( int i=0; i<methods.length; i++ ) {
+			if( failures[i] != null ) {
+				report.add(new AnalysisException.Failure(methods[i], failures[i]));
+			}
+		}
+		if( !report.isEmpty() ) {
+			throw new AnalysisException(report);
+		}
+	}
+
+	/**
+	 * Release the worker threads. The driver may not be used afterwards.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+}
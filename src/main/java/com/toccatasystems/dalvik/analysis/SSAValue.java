@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2011 Toccata Systems.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.toccatasystems.dalvik.analysis;
+
+import com.toccatasystems.dalvik.DexBasicBlock;
+import com.toccatasystems.dalvik.DexInstruction;
+
+/**
+ * A value in SSA form (see ComputeSSA) - either the result of an
+ * instruction (including the argument pseudo-instructions), or a phi at
+ * the start of a block that merges the values of a register arriving from
+ * each predecessor.
+ *
+ * @author nkeynes
+ *
+ */
+public class SSAValue {
+	private int id;
+	private int register;
+	private DexBasicBlock block;
+	private DexInstruction definition;
+	/* Phi operands, and the predecessor each one arrives from (null for 
+	 * the method entry) */
+	private SSAValue []operands;
+	private DexBasicBlock []operandBlocks;
+
+	SSAValue( int id, DexInstruction definition ) {
+		this.id = id;
+		this.definition = definition;
+		this.register = definition.getRegister(0);
+		this.block = definition.getParent();
+	}
+
+	SSAValue( int id, int register, DexBasicBlock block, DexBasicBlock []operandBlocks ) {
+		this.id = id;
+		this.register = register;
+		this.block = block;
+		this.operandBlocks = operandBlocks;
+		this.operands = new SSAValue[operandBlocks.length];
+	}
+
+	/**
+	 * @return a dense index of the value within its method.
+	 */
+	public int getId() {
+		return id;
+	}
+
+	public boolean isPhi() {
+		return definition == null;
+	}
+
+	/**
+	 * @return the register holding the value.
+	 */
+	public int getRegister() {
+		return register;
+	}
+
+	/**
+	 * @return the block containing the definition (null for arguments).
+	 */
+	public DexBasicBlock getBlock() {
+		return block;
+	}
+
+	/**
+	 * @return the defining instruction, or null for a phi.
+	 */
+	public DexInstruction getDefinition() {
+		return definition;
+	}
+
+	public int getNumOperands() {
+		return operands == null ? 0 : operands.length;
+	}
+
+	/**
+	 * @return the value of the idx'th phi operand, or null if the register
+	 * is undefined on that edge.
+	 */
+	public SSAValue getOperand( int idx ) {
+		return operands[idx];
+	}
+
+	/**
+	 * @return the predecessor block the idx'th phi operand arrives from,
+	 * or null if it arrives from the method entry.
+	 */
+	public DexBasicBlock getOperandBlock( int idx ) {
+		return operandBlocks[idx];
+	}
+
+	void setOperand( int idx, SSAValue value ) {
+		operands[idx] = value;
+	}
+
+	public String toString() {
+		return "%" + id;
+	}
+
+	/**
+	 * @return a description of the definition, eg "%3 = phi(%1, %2)"
+	 */
+	public String format() {
+		StringBuilder builder = new StringBuilder();
+		builder.append(toString()).append(" = ");
+		if( isPhi() ) {
+			builder.append("phi v").append(register).append('(');
+			for( int i=0; i<operands.length; i++ ) {
+				if( i != 0 )
+					builder.append(", ");
+				builder.append(operands[i] == null ? "undef" : operands[i].toString());
+				builder.append(" <- ").append(operandBlocks[i] == null ? "entry" : operandBlocks[i].getName());
+			}
+			builder.append(')');
+		} else {
+			builder.append(definition.disassemble());
+		}
+		return builder.toString();
+	}
+}
@@ -17,6 +17,7 @@ package com.toccatasystems.dalvik.analysis;
 import java.util.Iterator;
 
 import com.toccatasystems.dalvik.DexArgument;
+import com.toccatasystems.dalvik.DexFile;
 import com.toccatasystems.dalvik.DexInstruction;
 import com.toccatasystems.dalvik.DexMethodBody;
 import com.toccatasystems.dalvik.DexType;
@@ -83,7 +84,8 @@ public class TypeAssignment extends DexAnalysis {
 			DexInstruction.Use use = it.next();
 			if( use.getUser() != inst ) {
 				DexInstruction user = use.getUser();
-				if( user.isRegisterSupertypeOf(use.getOperand(), type) ) {
+				if( user.isRegisterSupertypeOf(use.getOperand(), type) &&
+						isCommonDefType(user, use.getOperand(), type) ) {
 					setRegisterUseType( user, use.getOperand(), type );
 					/* Special cases where one operand implies the other */
 					switch( user.getOpcode() ) {
@@ -131,18 +133,38 @@ public class TypeAssignment extends DexAnalysis {
 		}
 	}
 
+	/**
+	 * A typed use reached by several defs may only be narrowed to a type
+	 * that covers all of them.
+	 * @return false if some other def of the operand has a known object type
+	 * that is not a subtype of the given type.
+	 */
+	private boolean isCommonDefType( DexInstruction user, int operand, DexType type ) {
+		if( !type.isObject() || user.getRegisterType(operand) == null ) {
+			return true;
+		}
+		for( Iterator<DexInstruction> it = user.getRegisterDefs(operand).iterator(); it.hasNext(); ) {
+			DexType defType = it.next().getRegisterType(0);
+			if( defType != null && defType.isObject() && defType.isKnownType() && !defType.isSubtypeOf(type) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * Set all types where the instruction explicitly requires a
 	 * particular type, and then propagate these to direct uses/defs.
 	 * @param method
 	 */
 	private void assignTypes(DexMethodBody method ) {
+		DexFile file = method.getFile();
 		DexType resultType = null;
 		
 		/* First assign uses of arguments directly */
 		for( int i=0; i<method.getNumArguments(); i++ ) {
 			DexArgument arg = method.getArgument(i);
-			setRegisterDefType( arg, new DexType(method.getParent().getCallingParamType(i)));
+			setRegisterDefType( arg, file.getType(method.getParent().getCallingParamType(i)));
 		}
 		
 		/* Then everything else with explicit types */
@@ -402,21 +424,21 @@ public class TypeAssignment extends DexAnalysis {
 				break;
 			case IGET: case IGET_WIDE: case IGET_OBJECT: case IGET_BOOLEAN:
 			case IGET_BYTE: case IGET_CHAR: case IGET_SHORT:
-				setRegisterUseType(inst, 1, new DexType(inst.getFieldOperand().getClassType()));
-				setRegisterDefType(inst, new DexType(inst.getFieldOperand().getType()));
+				setRegisterUseType(inst, 1, file.getType(inst.getFieldOperand().getClassType()));
+				setRegisterDefType(inst, file.getType(inst.getFieldOperand().getType()));
 				break;
 			case SGET: case SGET_WIDE: case SGET_OBJECT: case SGET_BOOLEAN:
 			case SGET_BYTE: case SGET_CHAR: case SGET_SHORT:
-				setRegisterDefType(inst, new DexType(inst.getFieldOperand().getType()));
+				setRegisterDefType(inst, file.getType(inst.getFieldOperand().getType()));
 				break;
 			case IPUT: case IPUT_WIDE: case IPUT_OBJECT: case IPUT_BOOLEAN:
 			case IPUT_BYTE: case IPUT_CHAR: case IPUT_SHORT:
-				setRegisterUseType(inst, 0, new DexType(inst.getFieldOperand().getType()) );
-				setRegisterUseType(inst, 1, new DexType(inst.getFieldOperand().getClassType()));
+				setRegisterUseType(inst, 0, file.getType(inst.getFieldOperand().getType()) );
+				setRegisterUseType(inst, 1, file.getType(inst.getFieldOperand().getClassType()));
 				break;
 			case SPUT: case SPUT_WIDE: case SPUT_OBJECT: case SPUT_BOOLEAN:
 			case SPUT_BYTE: case SPUT_CHAR: case SPUT_SHORT:
-				setRegisterUseType(inst, 0, new DexType(inst.getFieldOperand().getType()) );
+				setRegisterUseType(inst, 0, file.getType(inst.getFieldOperand().getType()) );
 				break;
 			case IF_LT: case IF_GT: case IF_LE: case IF_GE:
 				setRegisterUseType(inst, 0, DexType.INT);
@@ -426,24 +448,24 @@ public class TypeAssignment extends DexAnalysis {
 				setRegisterUseType(inst, 0, DexType.INT);
 				break;
 			case INVOKE_STATIC: case INVOKE_STATIC_RANGE:
-				resultType = new DexType(inst.getMethodOperand().getReturnType());
+				resultType = file.getType(inst.getMethodOperand().getReturnType());
 				for( int i=0; i<inst.getNumRegisters(); i++ ) {
-					setRegisterUseType(inst, i, new DexType(inst.getMethodOperand().getParamType(i)));
+					setRegisterUseType(inst, i, file.getType(inst.getMethodOperand().getParamType(i)));
 				}
 				break;
 			case INVOKE_VIRTUAL: case INVOKE_SUPER: case INVOKE_DIRECT:
 			case INVOKE_INTERFACE: case INVOKE_VIRTUAL_RANGE: case INVOKE_SUPER_RANGE:
 			case INVOKE_DIRECT_RANGE: case INVOKE_INTERFACE_RANGE:
-				resultType = new DexType(inst.getMethodOperand().getReturnType());
+				resultType = file.getType(inst.getMethodOperand().getReturnType());
 				for( int i=0; i<inst.getNumRegisters(); i++ ) {
-					setRegisterUseType(inst, i, new DexType(inst.getMethodOperand().getCallingParamType(i)));
+					setRegisterUseType(inst, i, file.getType(inst.getMethodOperand().getCallingParamType(i)));
 				}
 				break;
 			case PACKED_SWITCH: case SPARSE_SWITCH:
 				setRegisterUseType(inst, 0, DexType.INT);
 				break;
 			case RETURN: case RETURN_WIDE: case RETURN_OBJECT:
-				setRegisterUseType(inst, 0, new DexType(method.getParent().getReturnType()));
+				setRegisterUseType(inst, 0, file.getType(method.getParent().getReturnType()));
 				break;
 			case NOP: case MOVE: case MOVE_FROM16: case MOVE_16: case MOVE_WIDE:
 			case MOVE_WIDE_FROM16: case MOVE_WIDE16: case MOVE_OBJECT: case MOVE_OBJECT_FROM16:
@@ -14,10 +14,13 @@
 
 package com.toccatasystems.dedex;
 
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
@@ -34,6 +37,7 @@ import com.toccatasystems.dalvik.DexTryCatch;
 import com.toccatasystems.dalvik.DexType;
 
 import static com.toccatasystems.dalvik.DexOpcodes.*;
+import com.toccatasystems.util.PhaseStatistics;
 
 /**
  * This class does the low-level work of translating dalvik bytecode
@@ -45,14 +49,19 @@ public class BytecodeTransformer {
 
 	private Map<DexBasicBlock, Label> labelMap;
 	private MethodVisitor out;
+	private ComputeFrames frames;
+	private Set<Label> newLabels;
 	int argWords, localWords;
 	int maxStackSize;
 	
 	public BytecodeTransformer( ) {
 		labelMap = new HashMap<DexBasicBlock,Label>();
+		frames = new ComputeFrames();
+		newLabels = new HashSet<Label>();
 	}
 	
 	public void transform( DexMethodBody body, MethodVisitor out ) {
+		PhaseStatistics.Timer timer = PhaseStatistics.start(PhaseStatistics.BYTECODE);
 		/* Construct labels for each basic block */
 		labelMap.clear();
 		for( Iterator<DexBasicBlock> it = body.iterator(); it.hasNext(); ) {
@@ -64,6 +73,8 @@ public class BytecodeTransformer {
 		this.maxStackSize = 3;
 		
 		try { 
+			frames.analyse(body);
+			newLabels.clear();
 			out.visitCode();
 
 			Map<Integer,DexDebug.Line> lineTable = body.getLineNumberTable();
@@ -79,6 +90,7 @@ public class BytecodeTransformer {
 				out.visitTryCatchBlock(labelMap.get(start), labelMap.get(end), labelMap.get(handler), e.getInternalType() );
 			}
 
+			boolean codeSinceFrame = true;
 			for( Iterator<DexBasicBlock> bbit = body.iterator(); bbit.hasNext(); ) {
 				DexBasicBlock bb = bbit.next();
 				Label currLabel = labelMap.get(bb);
@@ -86,8 +98,15 @@ public class BytecodeTransformer {
 				if( bb.isEmpty() ) {
 					continue;
 				}
+				if( frames.needsFrame(bb) && codeSinceFrame ) {
+					frame(bb);
+					codeSinceFrame = false;
+				}
 				for(Iterator<DexInstruction> ii = bb.iterator(); ii.hasNext(); ) {
 					DexInstruction inst = ii.next();
+					if( inst.getOpcode() != FILL_ARRAY_DATA || inst.getNumFillElements() != 0 ) {
+						codeSinceFrame = true;
+					}
 					if( lineTable.containsKey(inst.getPC()) ) {
 						if( currLabel == null ) {
 							currLabel = new Label();
@@ -154,6 +173,11 @@ public class BytecodeTransformer {
 						pop( inst, 0 );
 						break;
 					case NEW_INSTANCE:
+						Label newLabel = frames.getNewLabel(inst);
+						if( newLabel != null ) {
+							out.visitLabel(newLabel);
+							newLabels.add(newLabel);
+						}
 						out.visitTypeInsn(Opcodes.NEW, inst.getTypeOperand().getInternalName());
 						pop( inst, 0 );
 						break;
@@ -454,9 +478,47 @@ public class BytecodeTransformer {
 			e.printStackTrace();
 			System.err.println( "at " + body.getParent().getDisplaySignature() );
 			body.disassemble(System.err, true);
+		} finally {
+			PhaseStatistics.stop(timer);
 		}
 	}
 
+	/**
+	 * Emit the stack map frame for the start of the block. 
+	 */
+	private void frame( DexBasicBlock bb ) {
+		Object []regs = frames.getLocals(bb);
+		Object []locals = new Object[argWords + localWords];
+		Arrays.fill(locals, Opcodes.TOP);
+		if( regs != null ) {
+			for( int i=0; i<regs.length; i++ ) {
+				Object type = regs[i];
+				if( type instanceof Label && !newLabels.contains(type) ) {
+					type = Opcodes.TOP;
+				}
+				locals[mapReg(i)] = type;
+			}
+		}
+		
+		/* Wide values only take one entry in the frame */
+		int numLocals = 0;
+		for( int i=0; i<locals.length; ) {
+			Object type = locals[i];
+			locals[numLocals++] = type;
+			i += ComputeFrames.isWide(type) ? 2 : 1;
+		}
+		while( numLocals > 0 && locals[numLocals-1] == Opcodes.TOP ) {
+			numLocals--;
+		}
+		
+		Object stack = frames.getStack(bb);
+		if( stack == null ) {
+			out.visitFrame(Opcodes.F_NEW, numLocals, locals, 0, null);
+		} else {
+			out.visitFrame(Opcodes.F_NEW, numLocals, locals, 1, new Object[] { stack });
+		}
+	}
+	
 	/**
 	 * Remap register indexes - JVM maps parameters from 0,
 	 * Dalvik puts them at the end.
@@ -724,7 +786,7 @@ public class BytecodeTransformer {
 
 		/* Check if the result is going to be used immediately. If not, emit
 		 * a pop to get it off the stack */
-		DexType resultType = new DexType(method.getReturnType());
+		DexType resultType = inst.getParent().getParent().getFile().getType(method.getReturnType());
 		if( !resultType.equals(DexType.VOID) ) {
 			DexInstruction next = inst.getParent().getNext(inst);
 			if( next == null ) {
@@ -0,0 +1,583 @@
+/**
+ * Copyright (c) 2011 Toccata Systems.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.toccatasystems.dedex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.toccatasystems.dalvik.DexAnnotation;
+import com.toccatasystems.dalvik.DexClass;
+import com.toccatasystems.dalvik.DexClassHierarchy;
+import com.toccatasystems.dalvik.DexDebug;
+import com.toccatasystems.dalvik.DexField;
+import com.toccatasystems.dalvik.DexFile;
+import com.toccatasystems.dalvik.DexInstruction;
+import com.toccatasystems.dalvik.DexItem;
+import com.toccatasystems.dalvik.DexMethod;
+import com.toccatasystems.dalvik.DexMethodBody;
+import com.toccatasystems.dalvik.DexTryCatch;
+import com.toccatasystems.dalvik.DexValue;
+import com.toccatasystems.dalvik.ParseException;
+
+/**
+ * On-disk cache of converted classes, keyed by a hash of everything that
+ * the conversion of a class depends on:
+ *
+ *   the class definition, its fields, methods and annotations
+ *   the method bodies, with string, type, field and method references
+ *     resolved to their names (so the key doesn't change when the class is
+ *     moved to a different dex file)
+ *   the supertypes of every class the definition refers to, which
+ *     determine the stack map frames
+ *   the dedex version
+ *
+ * The key is computed from the raw method bodies without any analysis, so a
+ * hit avoids CFG construction, the dataflow analyses and class generation
+ * entirely.
+ *
+ * Entries are stored one file per class in the cache directory. The
+ * directory is trimmed to its size limit on close(), removing the least
+ * recently used entries first (hits update the modification time).
+ *
+ * @author nkeynes
+ *
+ */
+public class ClassCache {
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+	private final static String SUFFIX = ".class";
+	/** Change whenever the content of the key changes */
+	private final static int KEY_FORMAT = 1;
+	/** Types that the conversion may refer to without them being named by the class */
+	private final static String []IMPLICIT_TYPES = {
+		"java/lang/Object", "java/lang/String", "java/lang/Class", "java/lang/Throwable" };
+
+	/* Data payload identifiers (the high byte of a nop) */
+	private final static int PACKED_SWITCH_PAYLOAD = 0x0100;
+	private final static int SPARSE_SWITCH_PAYLOAD = 0x0200;
+	private final static int FILL_ARRAY_PAYLOAD = 0x0300;
+
+	/**
+	 * Accumulates the key data into a digest.
+	 */
+	private static class KeyBuilder {
+		private MessageDigest digest;
+
+		KeyBuilder() {
+			try {
+				digest = MessageDigest.getInstance("SHA-1");
+			} catch( NoSuchAlgorithmException e ) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		void writeInt( int value ) {
+			digest.update((byte)(value >> 24));
+			digest.update((byte)(value >> 16));
+			digest.update((byte)(value >> 8));
+			digest.update((byte)value);
+		}
+
+		void writeLong( long value ) {
+			writeInt((int)(value >> 32));
+			writeInt((int)value);
+		}
+
+		void writeString( String value ) {
+			if( value == null ) {
+				writeInt(-1);
+			} else {
+				byte []bytes = value.getBytes(UTF8);
+				writeInt(bytes.length);
+				digest.update(bytes);
+			}
+		}
+
+		String toHex() {
+			byte []hash = digest.digest();
+			StringBuilder buf = new StringBuilder();
+			for( int i=0; i<hash.length; i++ ) {
+				buf.append(Character.forDigit((hash[i] >> 4) & 0x0F, 16));
+				buf.append(Character.forDigit(hash[i] & 0x0F, 16));
+			}
+			return buf.toString();
+		}
+	}
+
+	private File dir;
+	private long maxBytes;
+	private String version;
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong evictions = new AtomicLong();
+	private long totalBytes;
+
+	/**
+	 * @param dir the cache directory, which is created if it doesn't exist.
+	 * @param maxBytes maximum total size of the cached classes.
+	 * @param version the version of the converter, which forms part of every key.
+	 * @throws IOException if the directory cannot be created.
+	 */
+	public ClassCache( String dir, long maxBytes, String version ) throws IOException {
+		this.dir = new File(dir);
+		this.maxBytes = maxBytes;
+		this.version = version;
+		if( !this.dir.isDirectory() && !this.dir.mkdirs() ) {
+			throw new IOException( "Unable to create cache directory '" + dir + "'" );
+		}
+	}
+
+	/**
+	 * @return the cached class data for the key, or null if there is no
+	 * entry for it.
+	 */
+	public byte[] get( String key ) {
+		File file = new File(dir, key + SUFFIX);
+		if( file.isFile() ) {
+			try {
+				byte []data = readFile(file);
+				file.setLastModified(System.currentTimeMillis());
+				hits.incrementAndGet();
+				return data;
+			} catch( IOException e ) {
+				/* Treat as a miss - the entry will be rewritten */
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Store the class data for the key. Failures are ignored, as the class
+	 * can always be regenerated.
+	 */
+	public void put( String key, byte []data ) {
+		File tmp = null;
+		try {
+			tmp = File.createTempFile(key, ".tmp", dir);
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				out.write(data);
+			} finally {
+				out.close();
+			}
+			if( tmp.renameTo(new File(dir, key + SUFFIX)) ) {
+				tmp = null;
+			}
+		} catch( IOException e ) {
+		} finally {
+			if( tmp != null ) {
+				tmp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Trim the cache directory to the size limit, removing the least
+	 * recently used entries first.
+	 */
+	public void close() {
+		File []files = dir.listFiles();
+		if( files == null ) {
+			return;
+		}
+		final long []modified = new long[files.length];
+		Integer []order = new Integer[files.length];
+		long total = 0;
+		for( int i=0; i<files.length; i++ ) {
+			modified[i] = files[i].lastModified();
+			order[i] = Integer.valueOf(i);
+			if( files[i].getName().endsWith(SUFFIX) ) {
+				total += files[i].length();
+			}
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare( Integer o1, Integer o2 ) {
+				long m1 = modified[o1.intValue()], m2 = modified[o2.intValue()];
+				return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+			}
+		});
+		for( int i=0; i<order.length && total > maxBytes; i++ ) {
+			File file = files[order[i].intValue()];
+			if( file.getName().endsWith(SUFFIX) ) {
+				long size = file.length();
+				if( file.delete() ) {
+					total -= size;
+					evictions.incrementAndGet();
+				}
+			}
+		}
+		totalBytes = total;
+	}
+
+	/**
+	 * Print the hit/miss counts (and the size of the cache, after close()).
+	 */
+	public void printReport( PrintStream out ) {
+		out.println( "Class cache " + dir.getPath() + ": " + hits.get() + " hits, " +
+				misses.get() + " misses, " + evictions.get() + " evicted, " +
+				(totalBytes / 1024) + " KB in use" );
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Compute the cache key for the class. The class's file must have its
+	 * class hierarchy set.
+	 * @return the key, or null if the class could not be read (in which case
+	 * it should be converted normally, to report the error).
+	 */
+	public String computeKey( DexClass clz ) {
+		DexFile file = clz.getFile();
+		KeyBuilder key = new KeyBuilder();
+		Set<String> types = new TreeSet<String>();
+
+		key.writeInt(KEY_FORMAT);
+		key.writeString(version);
+		key.writeString(clz.getName());
+		key.writeInt(clz.getFlags());
+		key.writeString(clz.getSuperName());
+		addType(types, clz.getName());
+		addType(types, clz.getSuperName());
+		String []interfaces = clz.getInterfaces();
+		key.writeInt(interfaces.length);
+		for( int i=0; i<interfaces.length; i++ ) {
+			key.writeString(interfaces[i]);
+			addType(types, interfaces[i]);
+		}
+		key.writeString(clz.getSourceFile());
+		writeAnnotations(key, clz.getAnnotations());
+
+		/* Inner class attributes come from the member classes themselves */
+		String []members = clz.getMemberClasses();
+		if( members != null ) {
+			for( int i=0; i<members.length; i++ ) {
+				DexClass inner = file.findClassByDescriptor(members[i]);
+				if( inner == null ) {
+					key.writeInt(-1);
+				} else {
+					key.writeString(inner.getInnerClassName());
+					key.writeInt(inner.getInnerClassFlags());
+				}
+			}
+		}
+
+		key.writeInt(clz.getNumFields());
+		for( int i=0; i<clz.getNumFields(); i++ ) {
+			DexField field = clz.getField(i);
+			key.writeString(field.getName());
+			key.writeString(field.getType());
+			key.writeInt(field.getFlags());
+			writeValue(key, field.getInitializer());
+			writeAnnotations(key, field.getAnnotations());
+			addType(types, field.getType());
+		}
+
+		key.writeInt(clz.getNumMethods());
+		for( int i=0; i<clz.getNumMethods(); i++ ) {
+			DexMethod method = clz.getMethod(i);
+			key.writeString(method.getName());
+			key.writeString(method.getDescriptor());
+			key.writeInt(method.getFlags());
+			writeAnnotations(key, method.getAnnotations());
+			for( int j=0; j<method.getNumParamTypes(); j++ ) {
+				writeAnnotations(key, method.getParamAnnotations(j));
+			}
+			addMethodTypes(types, method);
+			try {
+				writeBody(key, types, method.readBody());
+			} catch( ParseException e ) {
+				return null;
+			} catch( RuntimeException e ) {
+				/* Malformed code item */
+				return null;
+			}
+		}
+
+		for( int i=0; i<IMPLICIT_TYPES.length; i++ ) {
+			types.add(IMPLICIT_TYPES[i]);
+		}
+		DexClassHierarchy hierarchy = file.getClassHierarchy();
+		Set<String> done = new HashSet<String>();
+		for( Iterator<String> it = types.iterator(); it.hasNext(); ) {
+			writeSupertypes(key, hierarchy, it.next(), done);
+		}
+		return key.toHex();
+	}
+
+	/**
+	 * Add the class named by the type descriptor (if any) to the set of
+	 * referenced types, as an internal name.
+	 */
+	private static void addType( Set<String> types, String desc ) {
+		if( desc == null ) {
+			return;
+		}
+		int dims = 0;
+		while( dims < desc.length() && desc.charAt(dims) == '[' ) {
+			dims++;
+		}
+		if( desc.length() > dims + 2 && desc.charAt(dims) == 'L' ) {
+			types.add(DexItem.formatInternalName(desc.substring(dims)));
+		}
+	}
+
+	private static void addMethodTypes( Set<String> types, DexMethod method ) {
+		addType(types, method.getClassType());
+		addType(types, method.getReturnType());
+		for( int i=0; i<method.getNumParamTypes(); i++ ) {
+			addType(types, method.getParamType(i));
+		}
+	}
+
+	/**
+	 * Write the type and all of its supertypes (once each) to the key.
+	 */
+	private static void writeSupertypes( KeyBuilder key, DexClassHierarchy hierarchy, String name, Set<String> done ) {
+		if( name == null || !done.add(name) ) {
+			return;
+		}
+		key.writeString(name);
+		DexClassHierarchy.ClassInfo info = hierarchy.getClassInfo(name);
+		if( info == null ) {
+			key.writeInt(-1);
+			return;
+		}
+		key.writeInt(info.isInterface() ? 1 : 0);
+		key.writeString(info.getSuperName());
+		String []interfaces = info.getInterfaces();
+		int count = interfaces == null ? 0 : interfaces.length;
+		key.writeInt(count);
+		for( int i=0; i<count; i++ ) {
+			key.writeString(interfaces[i]);
+		}
+		writeSupertypes(key, hierarchy, info.getSuperName(), done);
+		for( int i=0; i<count; i++ ) {
+			writeSupertypes(key, hierarchy, interfaces[i], done);
+		}
+	}
+
+	private static void writeAnnotations( KeyBuilder key, List<DexAnnotation> annotations ) {
+		key.writeInt(annotations.size());
+		for( Iterator<DexAnnotation> it = annotations.iterator(); it.hasNext(); ) {
+			writeAnnotation(key, it.next());
+		}
+	}
+
+	private static void writeAnnotation( KeyBuilder key, DexAnnotation annotation ) {
+		key.writeString(annotation.getType());
+		key.writeInt(annotation.getVisibility());
+		Map<String,DexValue> values = new TreeMap<String,DexValue>(annotation.getMap());
+		key.writeInt(values.size());
+		for( Iterator<Map.Entry<String,DexValue>> it = values.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<String,DexValue> ent = it.next();
+			key.writeString(ent.getKey());
+			writeValue(key, ent.getValue());
+		}
+	}
+
+	private static void writeValue( KeyBuilder key, DexValue value ) {
+		if( value == null ) {
+			key.writeInt(-1);
+			return;
+		}
+		key.writeInt(value.getType());
+		Object obj = value.getValue();
+		if( obj instanceof DexValue[] ) {
+			DexValue []arr = (DexValue[])obj;
+			key.writeInt(arr.length);
+			for( int i=0; i<arr.length; i++ ) {
+				writeValue(key, arr[i]);
+			}
+		} else if( obj instanceof DexAnnotation ) {
+			writeAnnotation(key, (DexAnnotation)obj);
+		} else if( obj instanceof DexField ) {
+			writeField(key, (DexField)obj);
+		} else if( obj instanceof DexMethod ) {
+			writeMethod(key, (DexMethod)obj);
+		} else {
+			key.writeString(String.valueOf(obj));
+		}
+	}
+
+	private static void writeField( KeyBuilder key, DexField field ) {
+		key.writeString(field.getClassType());
+		key.writeString(field.getName());
+		key.writeString(field.getType());
+	}
+
+	private static void writeMethod( KeyBuilder key, DexMethod method ) {
+		key.writeString(method.getClassType());
+		key.writeString(method.getName());
+		key.writeString(method.getDescriptor());
+	}
+
+	/**
+	 * @return the size in words of the data payload at pc, or 0 if pc is
+	 * not the start of a payload.
+	 */
+	private static int getPayloadSize( short []code, int pc ) {
+		int ident = code[pc] & 0xFFFF;
+		if( ident == PACKED_SWITCH_PAYLOAD && pc + 1 < code.length ) {
+			return (code[pc+1] & 0xFFFF) * 2 + 4;
+		} else if( ident == SPARSE_SWITCH_PAYLOAD && pc + 1 < code.length ) {
+			return (code[pc+1] & 0xFFFF) * 4 + 2;
+		} else if( ident == FILL_ARRAY_PAYLOAD && pc + 3 < code.length ) {
+			int width = code[pc+1] & 0xFFFF;
+			long count = (code[pc+2] & 0xFFFF) | ((code[pc+3] & 0xFFFFL) << 16);
+			return (int)((count * width + 1) / 2) + 4;
+		} else {
+			return 0;
+		}
+	}
+
+	/**
+	 * Write the method body to the key. Instructions are written as their
+	 * opcode, registers and operand (resolved to a name for references);
+	 * payloads are written as raw words, since they contain no references.
+	 */
+	private static void writeBody( KeyBuilder key, Set<String> types, DexMethodBody body ) {
+		if( body == null ) {
+			key.writeInt(-1);
+			return;
+		}
+		DexFile file = body.getFile();
+		key.writeInt(body.getNumRegisters());
+		key.writeInt(body.getInArgWords());
+		key.writeInt(body.getOutArgWords());
+
+		short []code = body.getCode();
+		key.writeInt(code.length);
+		int pc = 0;
+		while( pc < code.length ) {
+			int payload = getPayloadSize(code, pc);
+			if( payload > 0 ) {
+				int end = Math.min(pc + payload, code.length);
+				for( ; pc < end; pc++ ) {
+					key.writeInt(code[pc]);
+				}
+				continue;
+			}
+			DexInstruction inst = new DexInstruction(body, pc);
+			key.writeInt(inst.getOpcode());
+			key.writeInt(inst.getNumRegisters());
+			for( int i=0; i<inst.getNumRegisters(); i++ ) {
+				key.writeInt(inst.getRegister(i));
+			}
+			switch( inst.getOperandType() ) {
+			case DexInstruction.OPTYPE_NONE:
+				break;
+			case DexInstruction.OPTYPE_STRING:
+				key.writeString(inst.getStringOperand());
+				break;
+			case DexInstruction.OPTYPE_TYPE:
+				String type = file.getTypeName(inst.getIntOperand().intValue());
+				key.writeString(type);
+				addType(types, type);
+				break;
+			case DexInstruction.OPTYPE_FIELD:
+				DexField field = inst.getFieldOperand();
+				writeField(key, field);
+				addType(types, field.getClassType());
+				addType(types, field.getType());
+				break;
+			case DexInstruction.OPTYPE_METHOD:
+				DexMethod method = inst.getMethodOperand();
+				writeMethod(key, method);
+				addMethodTypes(types, method);
+				break;
+			default:
+				key.writeLong(inst.getLongOperand().longValue());
+				break;
+			}
+			pc += Math.max(inst.size(), 1);
+		}
+
+		List<DexTryCatch> handlers = body.getExceptionHandlers();
+		key.writeInt(handlers.size());
+		for( Iterator<DexTryCatch> it = handlers.iterator(); it.hasNext(); ) {
+			DexTryCatch handler = it.next();
+			key.writeInt(handler.getStartPC());
+			key.writeInt(handler.getEndPC());
+			key.writeInt(handler.getHandlerPC());
+			String type = handler.getInternalType();
+			key.writeString(type);
+			if( type != null ) {
+				types.add(type);
+			}
+		}
+
+		DexDebug debug = body.getDebugInfo();
+		if( debug == null ) {
+			key.writeInt(-1);
+		} else {
+			key.writeInt(debug.getStartLine());
+			String []params = debug.getParamNames();
+			int count = params == null ? 0 : params.length;
+			key.writeInt(count);
+			for( int i=0; i<count; i++ ) {
+				key.writeString(params[i]);
+			}
+			key.writeInt(debug.getOpCount());
+			for( int i=0; i<debug.getOpCount(); i++ ) {
+				DexDebug.Op op = debug.getOp(i);
+				key.writeInt(op.op);
+				key.writeInt(op.intValue);
+				key.writeString(op.name);
+				key.writeString(op.type);
+				key.writeString(op.signature);
+			}
+		}
+	}
+
+	private static byte[] readFile( File file ) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream((int)file.length());
+			byte []buf = new byte[4096];
+			int len;
+			while( (len = in.read(buf)) != -1 ) {
+				out.write(buf, 0, len);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,344 @@
+/**
+ * Copyright (c) 2011 Toccata Systems.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.toccatasystems.dedex;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.BasicVerifier;
+import org.objectweb.asm.tree.analysis.SimpleVerifier;
+
+import com.toccatasystems.dalvik.DexClass;
+import com.toccatasystems.dalvik.DexClassHierarchy;
+import com.toccatasystems.dalvik.DexFile;
+import com.toccatasystems.dalvik.DexMethod;
+import com.toccatasystems.dalvik.DexMethodBody;
+import com.toccatasystems.util.PhaseStatistics;
+
+/**
+ * Verifies generated class files with the ASM Analyzer, on a pool of
+ * background threads, so that verification runs alongside conversion
+ * rather than inside it. Every method of every class is checked, and all
+ * failures are collected to be reported together by {@link #finish} (in the
+ * order the classes were submitted).
+ *
+ * By default each method is checked with a BasicVerifier. If type checking
+ * is enabled, a SimpleVerifier is used instead, which resolves classes
+ * through the dex file's class hierarchy rather than by loading them.
+ *
+ * @author nkeynes
+ *
+ */
+public class ClassVerifier {
+
+	/**
+	 * A method that failed verification.
+	 */
+	public static class Failure {
+		private DexFile file;
+		private String className;
+		private String methodName;
+		private String methodDesc;
+		private String message;
+
+		Failure( DexFile file, String className, String methodName, String methodDesc, String message ) {
+			this.file = file;
+			this.className = className;
+			this.methodName = methodName;
+			this.methodDesc = methodDesc;
+			this.message = message;
+		}
+
+		public String getClassName() { return className; }
+		public String getMethodName() { return methodName; }
+		public String getMethodDescriptor() { return methodDesc; }
+		public String getMessage() { return message; }
+
+		/**
+		 * @return the dex method that the failing method was generated from,
+		 * or null if it can't be found.
+		 */
+		public DexMethod getDexMethod() {
+			DexClass clz = file.findClass(className);
+			if( clz != null ) {
+				for( int i=0; i<clz.getNumMethods(); i++ ) {
+					DexMethod method = clz.getMethod(i);
+					if( method.getName().equals(methodName) && method.getDescriptor().equals(methodDesc) ) {
+						return method;
+					}
+				}
+			}
+			return null;
+		}
+
+		public String toString() {
+			return "Verification failure in " + className.replace('/', '.') + "." +
+				methodName + methodDesc + ": " + message;
+		}
+	}
+
+	/**
+	 * SimpleVerifier that answers its questions about classes from the
+	 * hierarchy. Types that can't be resolved, and interface types (as in
+	 * the JVM's own verifier), are assumed to be assignable.
+	 */
+	private static class HierarchyVerifier extends SimpleVerifier {
+		private final static Type OBJECT_TYPE = Type.getObjectType(DexClassHierarchy.OBJECT);
+
+		private DexClassHierarchy hierarchy;
+
+		HierarchyVerifier( DexClassHierarchy hierarchy, ClassNode cn ) {
+			super( Opcodes.ASM7, Type.getObjectType(cn.name),
+					cn.superName == null ? null : Type.getObjectType(cn.superName),
+					getInterfaceTypes(cn), (cn.access & Opcodes.ACC_INTERFACE) != 0 );
+			this.hierarchy = hierarchy;
+		}
+
+		private static List<Type> getInterfaceTypes( ClassNode cn ) {
+			List<Type> result = new ArrayList<Type>();
+			for( Iterator<String> it = cn.interfaces.iterator(); it.hasNext(); ) {
+				result.add(Type.getObjectType(it.next()));
+			}
+			return result;
+		}
+
+		protected boolean isInterface( Type type ) {
+			return type.getSort() == Type.OBJECT && hierarchy.isInterface(type.getInternalName());
+		}
+
+		protected Type getSuperClass( Type type ) {
+			if( type.equals(OBJECT_TYPE) ) {
+				return null;
+			}
+			DexClassHierarchy.ClassInfo info = hierarchy.getClassInfo(type.getInternalName());
+			if( info == null ) {
+				return OBJECT_TYPE;
+			} else if( info.getSuperName() == null ) {
+				return null;
+			} else {
+				return Type.getObjectType(info.getSuperName());
+			}
+		}
+
+		protected boolean isAssignableFrom( Type type1, Type type2 ) {
+			if( type1.equals(type2) || type1.equals(OBJECT_TYPE) ) {
+				return true;
+			}
+			if( type1.getSort() == Type.ARRAY ) {
+				if( type2.getSort() != Type.ARRAY ) {
+					return false;
+				}
+				Type elem1 = Type.getType(type1.getDescriptor().substring(1));
+				Type elem2 = Type.getType(type2.getDescriptor().substring(1));
+				if( elem1.getSort() < Type.ARRAY || elem2.getSort() < Type.ARRAY ) {
+					/* Distinct primitive component types */
+					return false;
+				}
+				return isAssignableFrom(elem1, elem2);
+			}
+			if( type2.getSort() == Type.ARRAY ) {
+				String name = type1.getInternalName();
+				return name.equals("java/lang/Cloneable") || name.equals("java/io/Serializable");
+			}
+			String target = type1.getInternalName();
+			if( isInterface(type1) || hierarchy.getClassInfo(target) == null ) {
+				return true;
+			}
+			String name = type2.getInternalName();
+			while( name != null && !name.equals(DexClassHierarchy.OBJECT) ) {
+				if( name.equals(target) ) {
+					return true;
+				}
+				DexClassHierarchy.ClassInfo info = hierarchy.getClassInfo(name);
+				if( info == null ) {
+					return true;
+				}
+				name = info.getSuperName();
+			}
+			return false;
+		}
+
+		/**
+		 * SimpleVerifier only falls back to loading a class to ask whether
+		 * it's an interface, after isAssignableFrom() has already failed -
+		 * which means it isn't one (see above). Answer without loading it.
+		 */
+		protected Class<?> getClass( Type type ) {
+			return Object.class;
+		}
+	}
+
+	private ExecutorService pool;
+	private boolean ownPool;
+	private boolean checkTypes;
+	private List<Future<List<Failure>>> pending;
+
+	/**
+	 * @param threads number of verification threads
+	 * @param checkTypes if true, use a SimpleVerifier backed by the class
+	 * hierarchy rather than a BasicVerifier.
+	 */
+	public ClassVerifier( int threads, boolean checkTypes ) {
+		this(createPool(threads), checkTypes);
+		this.ownPool = true;
+	}
+
+	/**
+	 * Construct a verifier that runs on an existing pool, which is left
+	 * running by {@link #shutdown}.
+	 */
+	public ClassVerifier( ExecutorService pool, boolean checkTypes ) {
+		this.pool = pool;
+		this.ownPool = false;
+		this.checkTypes = checkTypes;
+		this.pending = new ArrayList<Future<List<Failure>>>();
+	}
+
+	/**
+	 * Create a pool of daemon threads suitable for verifying classes.
+	 */
+	public static ExecutorService createPool( int threads ) {
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread( Runnable r ) {
+				Thread thread = new Thread(r, "dedex-verify");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Queue a generated class for verification. May be called from
+	 * multiple threads.
+	 * @param file the dex file the class was generated from
+	 */
+	public void submit( final DexFile file, final String internalClassName, final byte []classData ) {
+		Future<List<Failure>> future = pool.submit(new Callable<List<Failure>>() {
+			public List<Failure> call() {
+				PhaseStatistics.Timer timer = PhaseStatistics.start(PhaseStatistics.VERIFY);
+				List<Failure> result = verify(file, internalClassName, classData);
+				PhaseStatistics.stop(timer);
+				return result;
+			}
+		});
+		synchronized( pending ) {
+			pending.add(future);
+		}
+	}
+
+	/**
+	 * Wait for all submitted classes to be verified.
+	 * @return the failures, in the order the classes were submitted.
+	 */
+	public List<Failure> finish() {
+		List<Future<List<Failure>>> futures;
+		synchronized( pending ) {
+			futures = new ArrayList<Future<List<Failure>>>(pending);
+			pending.clear();
+		}
+		List<Failure> result = new ArrayList<Failure>();
+		for( Iterator<Future<List<Failure>>> it = futures.iterator(); it.hasNext(); ) {
+			try {
+				result.addAll(it.next().get());
+			} catch( InterruptedException e ) {
+				throw new RuntimeException(e);
+			} catch( ExecutionException e ) {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Wait for all submitted classes to be verified, and print any failures
+	 * to the stream, each followed by the disassembly of the method it was
+	 * generated from.
+	 * 
+	 * If the method's body is no longer loaded, the class was converted one
+	 * at a time (streamed, or taken from the cache), from a body that was
+	 * restructured as it was converted and then released. The body read back
+	 * from the file is restructured in the same way, so that the disassembly
+	 * matches the code that was actually converted.
+	 * @return the number of failures.
+	 */
+	public int report( PrintStream out ) {
+		List<Failure> failures = finish();
+		RestructureExceptions restructure = null;
+		for( Iterator<Failure> it = failures.iterator(); it.hasNext(); ) {
+			Failure failure = it.next();
+			out.println( failure.toString() );
+			DexMethod method = failure.getDexMethod();
+			if( method == null ) {
+				continue;
+			}
+			boolean released = !method.isBodyLoaded();
+			DexMethodBody body = method.getBody();
+			if( body != null ) {
+				if( released ) {
+					if( restructure == null ) {
+						restructure = new RestructureExceptions();
+					}
+					restructure.transform(body);
+				}
+				body.disassemble(out);
+			}
+		}
+		return failures.size();
+	}
+
+	public void shutdown() {
+		if( ownPool ) {
+			pool.shutdown();
+		}
+	}
+
+	private List<Failure> verify( DexFile file, String internalClassName, byte []classData ) {
+		ClassReader cr = new ClassReader(classData);
+		ClassNode cn = new ClassNode();
+		cr.accept(cn, ClassReader.SKIP_DEBUG);
+
+		DexClassHierarchy hierarchy = checkTypes ? file.getClassHierarchy() : null;
+		List<Failure> result = Collections.emptyList();
+		for( Iterator<MethodNode> it = cn.methods.iterator(); it.hasNext(); ) {
+			MethodNode method = it.next();
+			BasicVerifier verifier = hierarchy == null ? new BasicVerifier() : new HierarchyVerifier(hierarchy, cn);
+			try {
+				new Analyzer<BasicValue>(verifier).analyze(cn.name, method);
+			} catch( Exception e ) {
+				if( result.isEmpty() ) {
+					result = new ArrayList<Failure>();
+				}
+				result.add(new Failure(file, internalClassName, method.name, method.desc, String.valueOf(e.getMessage())));
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright (c) 2011 Toccata Systems.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.toccatasystems.dedex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+import com.toccatasystems.dalvik.DexClassHierarchy;
+import com.toccatasystems.dalvik.DexClassHierarchy.ClassInfo;
+
+/**
+ * Class library backed by a classpath of jar files and directories (eg
+ * android.jar), followed by the classes visible to the running JVM. Only
+ * the class file headers are read - no classes are loaded. Results
+ * (including misses) are cached.
+ *
+ * @author nkeynes
+ *
+ */
+public class ClasspathLibrary implements DexClassHierarchy.Library {
+	private final static ClassInfo MISSING = new ClassInfo(null, null, null, false);
+
+	private List<ZipFile> jars;
+	private List<File> dirs;
+	private ConcurrentHashMap<String, ClassInfo> cache;
+
+	/**
+	 * @param classpath list of jar files and directories separated by the
+	 * platform path separator, or null to use only the system classes.
+	 * @throws IOException if a jar file cannot be opened.
+	 */
+	public ClasspathLibrary( String classpath ) throws IOException {
+		jars = new ArrayList<ZipFile>();
+		dirs = new ArrayList<File>();
+		cache = new ConcurrentHashMap<String, ClassInfo>();
+		if( classpath != null ) {
+			String []entries = classpath.split(File.pathSeparator);
+			for( int i=0; i<entries.length; i++ ) {
+				if( entries[i].length() == 0 ) {
+					continue;
+				}
+				File entry = new File(entries[i]);
+				if( entry.isDirectory() ) {
+					dirs.add(entry);
+				} else {
+					jars.add(new ZipFile(entry));
+				}
+			}
+		}
+	}
+
+	public ClassInfo lookup( String internalName ) {
+		ClassInfo info = cache.get(internalName);
+		if( info == null ) {
+			info = read(internalName);
+			if( info == null ) {
+				info = MISSING;
+			}
+			cache.putIfAbsent(internalName, info);
+		}
+		return info == MISSING ? null : info;
+	}
+
+	public void close() {
+		for( Iterator<ZipFile> it = jars.iterator(); it.hasNext(); ) {
+			try {
+				it.next().close();
+			} catch( IOException e ) {
+			}
+		}
+	}
+
+	private static byte[] readFully( InputStream in ) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte []buf = new byte[4096];
+		int len;
+		while( (len = in.read(buf)) != -1 ) {
+			out.write(buf, 0, len);
+		}
+		return out.toByteArray();
+	}
+
+	private ClassInfo read( String internalName ) {
+		String resource = internalName + ".class";
+		InputStream in = null;
+		try {
+			for( Iterator<ZipFile> it = jars.iterator(); in == null && it.hasNext(); ) {
+				ZipFile jar = it.next();
+				ZipEntry entry = jar.getEntry(resource);
+				if( entry != null ) {
+					in = jar.getInputStream(entry);
+				}
+			}
+			for( Iterator<File> it = dirs.iterator(); in == null && it.hasNext(); ) {
+				File file = new File(it.next(), resource);
+				if( file.isFile() ) {
+					in = new FileInputStream(file);
+				}
+			}
+			if( in == null ) {
+				in = ClassLoader.getSystemResourceAsStream(resource);
+			}
+			if( in == null ) {
+				return null;
+			}
+			byte []data = readFully(in);
+			/* Only the header is needed, and its layout doesn't change between
+			 * versions, so don't let ASM reject class files newer than it knows */
+			if( data.length >= 8 ) {
+				data[6] = 0;
+				data[7] = (byte)Opcodes.V1_8;
+			}
+			ClassReader reader = new ClassReader(data);
+			return new ClassInfo(reader.getClassName(), reader.getSuperName(), reader.getInterfaces(),
+					(reader.getAccess() & Opcodes.ACC_INTERFACE) != 0);
+		} catch( IOException e ) {
+			return null;
+		} catch( RuntimeException e ) {
+			/* Malformed (or too new) class file */
+			return null;
+		} finally {
+			if( in != null ) {
+				try {
+					in.close();
+				} catch( IOException e ) {
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,533 @@
+/**
+ * Copyright (c) 2011 Toccata Systems.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.toccatasystems.dedex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Opcodes;
+
+import com.toccatasystems.dalvik.DexBasicBlock;
+import com.toccatasystems.dalvik.DexClassHierarchy;
+import com.toccatasystems.dalvik.DexInstruction;
+import com.toccatasystems.dalvik.DexMethod;
+import com.toccatasystems.dalvik.DexMethodBody;
+import com.toccatasystems.dalvik.DexTryCatch;
+import com.toccatasystems.dalvik.DexType;
+import com.toccatasystems.dalvik.analysis.BitVectorDataflowAnalysis;
+import com.toccatasystems.dalvik.analysis.ComputeLiveness;
+import com.toccatasystems.dalvik.analysis.ForwardDataflowAnalysis;
+
+import static com.toccatasystems.dalvik.DexOpcodes.*;
+
+/**
+ * Compute the JVM verifier type of each register at the start of each block,
+ * as it will be seen by the code that BytecodeTransformer generates. Types
+ * are represented as in MethodVisitor.visitFrame (ie Opcodes.INTEGER etc for
+ * primitives, internal names for classes and descriptors for arrays, and
+ * the label of the NEW instruction for uninitialized objects). Wide values
+ * are followed by a TOP entry for the second register.
+ *
+ * Frames are only needed where the code can't be reached by falling through
+ * from the previous instruction, ie at branch targets, exception handlers and
+ * after unconditional transfers. Registers that are not live at those points
+ * are set to TOP, which keeps the frames small and avoids merging types that
+ * are never used. Elsewhere the state is exactly what the verifier infers.
+ *
+ * Exception handlers are merged from every state reached within the blocks
+ * covered by the JVM exception table entry, rather than just from the
+ * throwing instructions, as the JVM verifier requires.
+ *
+ * @author nkeynes
+ *
+ */
+public class ComputeFrames extends ForwardDataflowAnalysis<ComputeFrames.Frame> {
+
+	private final static String OBJECT = "java/lang/Object";
+	private final static String THROWABLE = "java/lang/Throwable";
+
+	public static class Frame {
+		Object []locals;
+		Object stack;
+
+		Frame( Object []locals, Object stack ) {
+			this.locals = locals;
+			this.stack = stack;
+		}
+
+		public boolean equals( Object o ) {
+			if( !(o instanceof Frame) )
+				return false;
+			Frame f = (Frame)o;
+			return Arrays.equals(locals, f.locals) &&
+				(stack == null ? f.stack == null : stack.equals(f.stack));
+		}
+
+		public int hashCode() {
+			return Arrays.hashCode(locals);
+		}
+
+		public String toString() {
+			return Arrays.toString(locals) + (stack == null ? "" : " [" + stack + "]");
+		}
+	}
+
+	private DexMethodBody body;
+	private DexClassHierarchy hierarchy;
+	private ComputeLiveness liveness;
+	private Map<DexBasicBlock, Frame> frames;
+	private Set<DexBasicBlock> frameBlocks;
+	private Map<DexBasicBlock, List<DexTryCatch>> coveringHandlers;
+	private Map<DexInstruction, Label> newLabels;
+	private Map<Label, String> uninitializedTypes;
+
+	/** Union of all states seen in the current block, or null if the block
+	 * is not covered by any exception handler */
+	private Object []handlerLocals;
+
+	public ComputeFrames() {
+		liveness = new ComputeLiveness();
+		frames = new HashMap<DexBasicBlock, Frame>();
+		frameBlocks = new HashSet<DexBasicBlock>();
+		coveringHandlers = new HashMap<DexBasicBlock, List<DexTryCatch>>();
+		newLabels = new HashMap<DexInstruction, Label>();
+		uninitializedTypes = new HashMap<Label, String>();
+	}
+
+	public void analyse( DexMethodBody body ) {
+		this.body = body;
+		this.hierarchy = body.getFile().getClassHierarchy();
+		frames.clear();
+		coveringHandlers.clear();
+		newLabels.clear();
+		uninitializedTypes.clear();
+		liveness.analyse(body);
+		findFrameBlocks(body);
+
+		/* Find the blocks covered by each handler, in the same way as the
+		 * labels are laid out by the BytecodeTransformer */
+		for( Iterator<DexTryCatch> it = body.handlerIterator(); it.hasNext(); ) {
+			DexTryCatch handler = it.next();
+			DexBasicBlock startBlock = handler.getStartBlock();
+			DexBasicBlock endBlock = handler.getEndBlock();
+			if( startBlock == null ) {
+				continue;
+			}
+			int end = endBlock == null ? body.getNumBlocks() : endBlock.getLayoutIndex();
+			for( int i=startBlock.getLayoutIndex(); i<end; i++ ) {
+				DexBasicBlock bb = body.getBlock(i);
+				List<DexTryCatch> list = coveringHandlers.get(bb);
+				if( list == null ) {
+					list = new ArrayList<DexTryCatch>();
+					coveringHandlers.put(bb, list);
+				}
+				list.add(handler);
+			}
+		}
+
+		computeDataflow(body, new Frame(getInitialLocals(body), null));
+	}
+
+	/**
+	 * @return true if the block needs a stack map frame.
+	 */
+	public boolean needsFrame( DexBasicBlock block ) {
+		return frameBlocks.contains(block);
+	}
+
+	/**
+	 * @return the register types at the start of the block, or null if the
+	 * block is unreachable.
+	 */
+	public Object[] getLocals( DexBasicBlock block ) {
+		Frame frame = frames.get(block);
+		return frame == null ? null : frame.locals;
+	}
+
+	/**
+	 * @return the type of the exception on the stack at the start of a handler
+	 * block, otherwise null (the stack is empty at the start of all other
+	 * blocks that require a frame).
+	 */
+	public Object getStack( DexBasicBlock block ) {
+		Frame frame = frames.get(block);
+		return frame == null ? null : frame.stack;
+	}
+
+	/**
+	 * @return the label to be placed on the NEW generated for the given
+	 * new-instance instruction.
+	 */
+	public Label getNewLabel( DexInstruction inst ) {
+		return newLabels.get(inst);
+	}
+
+	/**
+	 * Find the nearest common superclass of two classes, given as internal
+	 * names. Unrelated classes (or those that aren't known) resolve to
+	 * java/lang/Object.
+	 */
+	protected String getCommonSuperClass( String type1, String type2 ) {
+		return hierarchy.getCommonSuperClass(type1, type2);
+	}
+
+	private void findFrameBlocks( DexMethodBody body ) {
+		frameBlocks.clear();
+		for( Iterator<DexTryCatch> it = body.handlerIterator(); it.hasNext(); ) {
+			frameBlocks.add(it.next().getHandlerBlock());
+		}
+		boolean fallthrough = true;
+		for( Iterator<DexBasicBlock> it = body.iterator(); it.hasNext(); ) {
+			DexBasicBlock bb = it.next();
+			if( bb.isEmpty() ) {
+				continue;
+			}
+			if( !fallthrough ) {
+				frameBlocks.add(bb);
+			}
+			DexInstruction inst = bb.last();
+			if( inst.isUncondBranch() || inst.isCondBranch() ) {
+				frameBlocks.add(inst.getBranchBlock());
+			} else if( inst.isSwitch() ) {
+				frameBlocks.addAll(Arrays.asList(inst.getSwitchBlocks()));
+				frameBlocks.add(bb.getFallthroughSuccessor());
+			}
+			fallthrough = !(inst.isUncondBranch() || inst.isReturn() || inst.isThrow() || inst.isSwitch());
+		}
+	}
+
+	private Object[] getInitialLocals( DexMethodBody body ) {
+		DexMethod method = body.getParent();
+		Object []locals = newLocals();
+		int reg = body.getNumRegisters() - body.getInArgWords();
+		if( !method.isStatic() ) {
+			String thisType = method.getInternalClassType();
+			if( method.getName().equals("<init>") && !thisType.equals(OBJECT) ) {
+				locals[reg] = Opcodes.UNINITIALIZED_THIS;
+			} else {
+				locals[reg] = thisType;
+			}
+			reg++;
+		}
+		for( int i=0; i<method.getNumParamTypes(); i++ ) {
+			Object type = getDescriptorType(method.getParamType(i));
+			locals[reg] = type;
+			if( isWide(type) ) {
+				reg += 2;
+			} else {
+				reg++;
+			}
+		}
+		return locals;
+	}
+
+	private Object[] newLocals() {
+		Object []locals = new Object[body.getNumRegisters()];
+		Arrays.fill(locals, Opcodes.TOP);
+		return locals;
+	}
+
+	@Override
+	protected Frame enterBlock( DexBasicBlock block, Map<DexBasicBlock, Frame> params ) {
+		Object []locals = null;
+		Object stack = null;
+		for( Iterator<Frame> it = params.values().iterator(); it.hasNext(); ) {
+			Frame in = it.next();
+			if( locals == null ) {
+				locals = in.locals.clone();
+				stack = in.stack;
+			} else {
+				for( int i=0; i<locals.length; i++ ) {
+					locals[i] = merge(locals[i], in.locals[i]);
+				}
+				if( stack == null ) {
+					stack = in.stack;
+				} else if( in.stack != null ) {
+					stack = merge(stack, in.stack);
+				}
+			}
+		}
+
+		if( frameBlocks.contains(block) ) {
+			long []live = liveness.getIn(block);
+			for( int i=0; i<locals.length; i++ ) {
+				if( isWide(locals[i]) ) {
+					if( !BitVectorDataflowAnalysis.isSet(live, i) ) {
+						locals[i] = Opcodes.TOP;
+					}
+					i++;
+				} else if( !BitVectorDataflowAnalysis.isSet(live, i) ) {
+					locals[i] = Opcodes.TOP;
+				}
+			}
+		}
+
+		Frame frame = new Frame(locals, stack);
+		frames.put(block, frame);
+		if( coveringHandlers.containsKey(block) ) {
+			handlerLocals = locals.clone();
+		} else {
+			handlerLocals = null;
+		}
+		return new Frame(locals.clone(), stack);
+	}
+
+	@Override
+	protected Map<DexBasicBlock, Frame> leaveBlock( DexBasicBlock block, Frame param ) {
+		Map<DexBasicBlock, Frame> result = new HashMap<DexBasicBlock, Frame>();
+		Frame out = new Frame(param.locals, null);
+		for( Iterator<DexBasicBlock> it = block.succIterator(); it.hasNext(); ) {
+			result.put(it.next(), out);
+		}
+		List<DexTryCatch> handlers = coveringHandlers.get(block);
+		if( handlers != null ) {
+			for( Iterator<DexTryCatch> it = handlers.iterator(); it.hasNext(); ) {
+				DexTryCatch handler = it.next();
+				String type = handler.getInternalType();
+				Frame exc = new Frame(handlerLocals, type == null ? THROWABLE : type);
+				Frame existing = result.get(handler.getHandlerBlock());
+				if( existing != null ) {
+					exc = merge(existing, exc);
+				}
+				result.put(handler.getHandlerBlock(), exc);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	protected Frame visit( DexInstruction inst, Frame param ) {
+		Object []locals = param.locals;
+		switch( inst.getOpcode() ) {
+		case MOVE: case MOVE_FROM16: case MOVE_16: case MOVE_WIDE: case MOVE_WIDE_FROM16: case MOVE_WIDE16:
+		case MOVE_OBJECT: case MOVE_OBJECT_FROM16: case MOVE_OBJECT16:
+			set(locals, inst.getRegister(0), locals[inst.getRegister(1)]);
+			break;
+		case MOVE_RESULT: case MOVE_RESULT_WIDE: case MOVE_RESULT_OBJECT:
+			set(locals, inst.getRegister(0), getResultType(inst));
+			break;
+		case MOVE_EXCEPTION:
+			set(locals, inst.getRegister(0), param.stack == null ? THROWABLE : param.stack);
+			param.stack = null;
+			break;
+		case CONST_STRING: case CONST_STRING_JUMBO:
+			set(locals, inst.getRegister(0), "java/lang/String");
+			break;
+		case CONST_CLASS:
+			set(locals, inst.getRegister(0), "java/lang/Class");
+			break;
+		case CHECK_CAST:
+			set(locals, inst.getRegister(0), inst.getTypeOperand().getInternalName());
+			break;
+		case NEW_INSTANCE:
+			Label label = newLabels.get(inst);
+			if( label == null ) {
+				label = new Label();
+				newLabels.put(inst, label);
+				uninitializedTypes.put(label, inst.getTypeOperand().getInternalName());
+			}
+			set(locals, inst.getRegister(0), label);
+			break;
+		case NEW_ARRAY:
+			set(locals, inst.getRegister(0), inst.getTypeOperand().getInternalName());
+			break;
+		case AGET_OBJECT:
+			set(locals, inst.getRegister(0), getElementType(locals[inst.getRegister(1)], inst));
+			break;
+		case IGET_OBJECT: case SGET_OBJECT:
+			set(locals, inst.getRegister(0), getDescriptorType(inst.getFieldOperand().getType()));
+			break;
+		case INVOKE_DIRECT: case INVOKE_DIRECT_RANGE:
+			if( inst.getMethodOperand().getName().equals("<init>") ) {
+				Object type = locals[inst.getRegister(0)];
+				Object init = null;
+				if( Opcodes.UNINITIALIZED_THIS.equals(type) ) {
+					init = body.getParent().getInternalClassType();
+				} else if( type instanceof Label ) {
+					init = uninitializedTypes.get(type);
+				}
+				if( init != null ) {
+					for( int i=0; i<locals.length; i++ ) {
+						if( type.equals(locals[i]) ) {
+							set(locals, i, init);
+						}
+					}
+				}
+			}
+			break;
+		default:
+			if( inst.getNumRegisters() > 0 && inst.writesOperand(0) ) {
+				DexType type = inst.getRegisterType(0);
+				Object frameType = getPrimitiveType(type);
+				if( frameType == null ) {
+					if( inst.isConstant() ) {
+						frameType = Opcodes.NULL;
+					} else {
+						frameType = type.getInternalName();
+					}
+				}
+				set(locals, inst.getRegister(0), frameType);
+			}
+		}
+		return param;
+	}
+
+	/**
+	 * Set the type of a register, invalidating any wide value that it
+	 * overlaps.
+	 */
+	private void set( Object []locals, int reg, Object type ) {
+		if( reg > 0 && isWide(locals[reg-1]) ) {
+			locals[reg-1] = Opcodes.TOP;
+			mergeHandlerLocal(reg-1, Opcodes.TOP);
+		}
+		locals[reg] = type;
+		mergeHandlerLocal(reg, type);
+		if( isWide(type) ) {
+			locals[reg+1] = Opcodes.TOP;
+			mergeHandlerLocal(reg+1, Opcodes.TOP);
+		}
+	}
+
+	private void mergeHandlerLocal( int reg, Object type ) {
+		if( handlerLocals != null ) {
+			handlerLocals[reg] = merge(handlerLocals[reg], type);
+		}
+	}
+
+	private Frame merge( Frame a, Frame b ) {
+		Object []locals = a.locals.clone();
+		for( int i=0; i<locals.length; i++ ) {
+			locals[i] = merge(locals[i], b.locals[i]);
+		}
+		return new Frame(locals, merge(a.stack, b.stack));
+	}
+
+	/**
+	 * @return the most specific type that both types can be assigned to.
+	 */
+	private Object merge( Object a, Object b ) {
+		if( a.equals(b) ) {
+			return a;
+		} else if( a.equals(Opcodes.NULL) && b instanceof String ) {
+			return b;
+		} else if( b.equals(Opcodes.NULL) && a instanceof String ) {
+			return a;
+		} else if( a instanceof String && b instanceof String ) {
+			return mergeReferences((String)a, (String)b);
+		} else {
+			return Opcodes.TOP;
+		}
+	}
+
+	private String mergeReferences( String a, String b ) {
+		boolean aArray = a.charAt(0) == '[';
+		boolean bArray = b.charAt(0) == '[';
+		if( aArray && bArray ) {
+			String aElem = a.substring(1);
+			String bElem = b.substring(1);
+			if( aElem.charAt(0) == 'L' && bElem.charAt(0) == 'L' ) {
+				aElem = aElem.substring(1, aElem.length()-1);
+				bElem = bElem.substring(1, bElem.length()-1);
+				return "[L" + getCommonSuperClass(aElem, bElem) + ";";
+			} else if( aElem.charAt(0) == '[' && bElem.charAt(0) == '[' ) {
+				String elem = mergeReferences(aElem, bElem);
+				return "[" + (elem.charAt(0) == '[' ? elem : "L" + elem + ";");
+			} else if( (aElem.charAt(0) == '[' || aElem.charAt(0) == 'L') &&
+					(bElem.charAt(0) == '[' || bElem.charAt(0) == 'L') ) {
+				return "[L" + OBJECT + ";";
+			} else {
+				return OBJECT;
+			}
+		} else if( aArray || bArray ) {
+			return OBJECT;
+		} else {
+			return getCommonSuperClass(a, b);
+		}
+	}
+
+	/**
+	 * @return the type of the value left on the stack by the instruction
+	 * before a move-result.
+	 */
+	private Object getResultType( DexInstruction inst ) {
+		DexBasicBlock block = inst.getParent();
+		DexInstruction prev = block.getPrevious(inst);
+		if( prev == null ) {
+			prev = block.getFallthroughPredecessor().last();
+		}
+		if( prev.isInvoke() ) {
+			return getDescriptorType(prev.getMethodOperand().getReturnType());
+		} else {
+			return prev.getTypeOperand().getInternalName();
+		}
+	}
+
+	private Object getElementType( Object array, DexInstruction inst ) {
+		if( array instanceof String ) {
+			String desc = (String)array;
+			if( desc.charAt(0) == '[' ) {
+				return getDescriptorType(desc.substring(1));
+			}
+		} else if( array.equals(Opcodes.NULL) ) {
+			return Opcodes.NULL;
+		}
+		return inst.getRegisterType(0).getInternalName();
+	}
+
+	private static Object getPrimitiveType( DexType type ) {
+		if( type.equals(DexType.INT) || type.equals(DexType.SHORT) ||
+				type.equals(DexType.BYTE) || type.equals(DexType.CHAR) ||
+				type.equals(DexType.BOOLEAN) ) {
+			return Opcodes.INTEGER;
+		} else if( type.equals(DexType.LONG) ) {
+			return Opcodes.LONG;
+		} else if( type.equals(DexType.FLOAT) ) {
+			return Opcodes.FLOAT;
+		} else if( type.equals(DexType.DOUBLE) ) {
+			return Opcodes.DOUBLE;
+		} else {
+			return null;
+		}
+	}
+
+	private static Object getDescriptorType( String desc ) {
+		switch( desc.charAt(0) ) {
+		case 'Z': case 'B': case 'C': case 'S': case 'I':
+			return Opcodes.INTEGER;
+		case 'J':
+			return Opcodes.LONG;
+		case 'F':
+			return Opcodes.FLOAT;
+		case 'D':
+			return Opcodes.DOUBLE;
+		case 'L':
+			return desc.substring(1, desc.length()-1);
+		default:
+			return desc;
+		}
+	}
+
+	static boolean isWide( Object type ) {
+		return Opcodes.LONG.equals(type) || Opcodes.DOUBLE.equals(type);
+	}
+}
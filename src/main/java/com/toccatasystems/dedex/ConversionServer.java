@@ -0,0 +1,392 @@
+/**
+ * Copyright (c) 2011 Toccata Systems.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.toccatasystems.dedex;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionGroup;
+import org.apache.commons.cli.Options;
+
+import com.toccatasystems.dalvik.ClassFilter;
+import com.toccatasystems.dalvik.DexArchive;
+import com.toccatasystems.dalvik.DexClassHierarchy;
+import com.toccatasystems.dalvik.DexFile;
+import com.toccatasystems.dalvik.DexParser;
+
+/**
+ * Long-running conversion server, to avoid paying JVM startup and warmup
+ * for every dex file. Jobs are read one per line, either from a stream
+ * (normally stdin) or from connections to a TCP port on the loopback
+ * interface. Each job line holds the same options as the command line:
+ *
+ *   [-o JAR-FILE | -d DIR] [-c CLASS] [-f PATTERN...] [-V] [--verify-types] [--store] input.dex|input.apk...
+ *
+ * Arguments containing spaces may be double-quoted. Jobs run concurrently
+ * on a fixed set of worker threads, each of which keeps its own parser and
+ * transformer between jobs. As each job finishes a response line is written:
+ *
+ *   &lt;job&gt; OK &lt;millis&gt; ms &lt;classes&gt; classes
+ *   &lt;job&gt; ERROR &lt;message&gt;
+ *
+ * where job is the 1-based number of the job line on that stream or
+ * connection. Responses may arrive out of order when there are multiple
+ * workers. A line containing just "quit" closes the stream.
+ *
+ * As jobs can read and write any file the server can, the first line of
+ * each TCP connection must be the shared secret from the server's token
+ * file (see {@link #loadToken}). Any other first line gets the response
+ * "0 ERROR authentication failed", and the connection is closed.
+ *
+ * @author nkeynes
+ *
+ */
+public class ConversionServer {
+	private final static String QUIT = "quit";
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+	/** Time allowed for a new connection to send its token */
+	private final static int AUTH_TIMEOUT = 10000;
+
+	/**
+	 * Construct the job options. Note this is done for each job, as the
+	 * Options record the selected option in each group while parsing.
+	 */
+	private static Options createJobOptions() {
+		Options options = new Options();
+		OptionGroup outputOpts = new OptionGroup();
+		outputOpts.addOption(new Option("d", "dir", true, "Write class files to the given directory"));
+		outputOpts.addOption(new Option("o", "output", true, "Write class files to the given .jar file"));
+		options.addOptionGroup(outputOpts);
+		options.addOption("c", "class", true, "Specify a single class to generate");
+		options.addOption("f", "filter", true, "Only generate classes matching the glob or re:regex");
+		options.addOption("V", "verify", false, "Verify generated bytecode");
+		options.addOption(null, "verify-types", false, "Verify generated bytecode, including type checks");
+		options.addOption(null, "store", false, "Store jar entries without compression");
+		return options;
+	}
+
+	/**
+	 * Per-thread state, reused between jobs.
+	 */
+	private static class Worker {
+		DexParser parser = new DexParser();
+		DexToClassTransformer transform = new DexToClassTransformer(null, null);
+		RestructureExceptions restructure = new RestructureExceptions();
+	}
+
+	private DexClassHierarchy.Library library;
+	private ClassCache cache;
+	private int threads;
+	private ExecutorService workers;
+	private ExecutorService compressors;
+	private ExecutorService verifiers;
+	private ThreadLocal<Worker> workerState;
+
+	/**
+	 * @param library library used to resolve types outside the dex files
+	 * @param cache cache of converted classes shared by all jobs, or null
+	 * @param threads number of jobs to run concurrently
+	 */
+	public ConversionServer( DexClassHierarchy.Library library, ClassCache cache, int threads ) {
+		this.library = library;
+		this.cache = cache;
+		this.threads = threads;
+		this.workers = Executors.newFixedThreadPool(threads);
+		this.compressors = ParallelJarClassWriter.createPool(threads);
+		this.verifiers = ClassVerifier.createPool(threads);
+		this.workerState = new ThreadLocal<Worker>() {
+			protected Worker initialValue() {
+				Worker worker = new Worker();
+				worker.transform.setCache(ConversionServer.this.cache);
+				return worker;
+			}
+		};
+	}
+
+	/**
+	 * Run jobs read from the given stream until end-of-file (or "quit"),
+	 * writing responses to the output. Returns when all jobs are complete.
+	 */
+	public void serve( BufferedReader in, final PrintWriter out ) throws IOException {
+		List<Future<?>> jobs = new ArrayList<Future<?>>();
+		int jobNumber = 0;
+		String line;
+		while( (line = in.readLine()) != null ) {
+			line = line.trim();
+			if( line.length() == 0 ) {
+				continue;
+			} else if( line.equals(QUIT) ) {
+				break;
+			}
+			final int id = ++jobNumber;
+			final String job = line;
+			jobs.add(workers.submit(new Runnable() {
+				public void run() {
+					String result = runJob(job);
+					synchronized( out ) {
+						out.println(id + " " + result);
+						out.flush();
+					}
+				}
+			}));
+		}
+		for( Iterator<Future<?>> it = jobs.iterator(); it.hasNext(); ) {
+			try {
+				it.next().get();
+			} catch( Exception e ) {
+				/* runJob handles all of its own errors */
+			}
+		}
+	}
+
+	/**
+	 * Read the shared secret from the token file, or if it doesn't exist
+	 * create it, readable only by the current user, with a new random token.
+	 * @throws IOException if the file is empty, or is accessible by other
+	 * users (on file systems with POSIX permissions).
+	 */
+	public static String loadToken( File file ) throws IOException {
+		Path path = file.toPath();
+		boolean posix = Files.getFileStore(path.toAbsolutePath().getParent()).supportsFileAttributeView("posix");
+		if( file.exists() ) {
+			if( posix ) {
+				Set<PosixFilePermission> perms = Files.getPosixFilePermissions(path);
+				perms.remove(PosixFilePermission.OWNER_READ);
+				perms.remove(PosixFilePermission.OWNER_WRITE);
+				perms.remove(PosixFilePermission.OWNER_EXECUTE);
+				if( !perms.isEmpty() ) {
+					throw new IOException( "Token file '" + file + "' must only be accessible by its owner (chmod 600)" );
+				}
+			}
+			List<String> lines = Files.readAllLines(path, UTF8);
+			String token = lines.isEmpty() ? "" : lines.get(0).trim();
+			if( token.length() == 0 ) {
+				throw new IOException( "Token file '" + file + "' is empty" );
+			}
+			return token;
+		}
+		byte []random = new byte[16];
+		new SecureRandom().nextBytes(random);
+		StringBuilder token = new StringBuilder();
+		for( int i=0; i<random.length; i++ ) {
+			token.append(String.format("%02x", random[i] & 0xFF));
+		}
+		if( posix ) {
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} else {
+			Files.createFile(path);
+			file.setReadable(false, false);
+			file.setReadable(true, true);
+		}
+		Files.write(path, (token + "\n").getBytes(UTF8));
+		return token.toString();
+	}
+
+	/**
+	 * Listen for connections on the given port of the loopback interface,
+	 * and serve each connection on its own thread, once it has sent the
+	 * token. Does not return.
+	 */
+	public void listen( int port, String token ) throws IOException {
+		ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName(null));
+		final AtomicInteger connections = new AtomicInteger();
+		final byte []expected = token.getBytes(UTF8);
+		while( true ) {
+			final Socket socket = server.accept();
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					try {
+						BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF8));
+						PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), UTF8));
+						socket.setSoTimeout(AUTH_TIMEOUT);
+						String line = in.readLine();
+						if( line == null || !MessageDigest.isEqual(expected, line.trim().getBytes(UTF8)) ) {
+							out.println("0 ERROR authentication failed");
+							out.flush();
+							return;
+						}
+						socket.setSoTimeout(0);
+						serve(in, out);
+					} catch( IOException e ) {
+						System.err.println( "Error: connection failed: " + e.getMessage() );
+					} finally {
+						try {
+							socket.close();
+						} catch( IOException e ) {
+						}
+					}
+				}
+			}, "dedex-connection-" + connections.incrementAndGet());
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	public void shutdown() {
+		workers.shutdown();
+		compressors.shutdown();
+		verifiers.shutdown();
+		if( cache != null ) {
+			cache.close();
+		}
+	}
+
+	/**
+	 * Run a single job on the current thread.
+	 * @return the response (without the job number)
+	 */
+	String runJob( String line ) {
+		long start = System.nanoTime();
+		try {
+			CommandLine cl = new GnuParser().parse(createJobOptions(), tokenize(line));
+			@SuppressWarnings("unchecked")
+			List<String> inputs = cl.getArgList();
+			if( inputs.isEmpty() ) {
+				return "ERROR No input files";
+			}
+
+			ClassOutputWriter writer;
+			ParallelJarClassWriter jarWriter = null;
+			if( cl.hasOption('d') ) {
+				writer = new FileClassWriter(cl.getOptionValue('d'));
+			} else {
+				jarWriter = new ParallelJarClassWriter(cl.getOptionValue('o'), compressors, threads, cl.hasOption("store"));
+				writer = jarWriter;
+			}
+
+			ClassVerifier verifier = null;
+			if( cl.hasOption('V') || cl.hasOption("verify-types") ) {
+				verifier = new ClassVerifier(verifiers, cl.hasOption("verify-types"));
+			}
+			ClassFilter filter = Main.parseClassFilter(cl);
+			Worker worker = workerState.get();
+			worker.parser.setClassFilter(filter);
+			worker.transform.setOutput(writer);
+			worker.transform.setVerifier(verifier);
+			int numClasses = 0;
+			try {
+				for( Iterator<String> it = inputs.iterator(); it.hasNext(); ) {
+					String file = it.next();
+					DexFile []dexFiles;
+					if( DexArchive.isArchive(file) ) {
+						/* Jobs already run concurrently, so parse archives on this thread */
+						DexArchive archive = new DexArchive(file);
+						archive.setClassFilter(filter);
+						dexFiles = archive.parse(1);
+					} else {
+						dexFiles = new DexFile[] { worker.parser.parseFile(file) };
+					}
+					DexClassHierarchy hierarchy = dexFiles.length == 0 ? null :
+						new DexClassHierarchy(dexFiles[0], library);
+					boolean found = false;
+					for( int i=0; i<dexFiles.length; i++ ) {
+						DexFile dex = dexFiles[i];
+						if( filter != null && dex.getNumClasses() == 0 ) {
+							continue;
+						}
+						found = true;
+						dex.setClassHierarchy(hierarchy);
+						if( cache == null ) {
+							worker.restructure.transform(dex);
+						}
+						worker.transform.transform(dex);
+						numClasses += dex.getNumClasses();
+					}
+					if( cl.hasOption('c') && !cl.hasOption('f') && !found ) {
+						return "ERROR Unable to find class " + cl.getOptionValue('c') + " in " + file;
+					} else if( dexFiles.length == 0 ) {
+						return "ERROR No dex files found in " + file;
+					}
+				}
+			} finally {
+				writer.close();
+				worker.transform.setOutput(null);
+				worker.transform.setVerifier(null);
+			}
+			if( verifier != null ) {
+				List<ClassVerifier.Failure> failures = verifier.finish();
+				if( !failures.isEmpty() ) {
+					return "ERROR " + failures.size() + " method(s) failed verification, first: " +
+						failures.get(0).toString().replace('\n', ' ');
+				}
+			}
+			if( jarWriter != null && jarWriter.hasFailure() ) {
+				return "ERROR Unable to write output";
+			}
+			long millis = (System.nanoTime() - start) / 1000000;
+			return "OK " + millis + " ms " + numClasses + " classes";
+		} catch( Throwable e ) {
+			/* Errors too (e.g. StackOverflowError) - the client is waiting
+			 * for a response to the job */
+			String message = e.getMessage() == null ? e.toString() : e.getMessage();
+			return "ERROR " + message.replace('\n', ' ');
+		}
+	}
+
+	/**
+	 * Split a job line into arguments at whitespace, treating double-quoted
+	 * strings as single arguments.
+	 */
+	static String[] tokenize( String line ) {
+		List<String> result = new ArrayList<String>();
+		StringBuilder buf = new StringBuilder();
+		boolean quoted = false, inToken = false;
+		for( int i=0; i<line.length(); i++ ) {
+			char c = line.charAt(i);
+			if( c == '"' ) {
+				quoted = !quoted;
+				inToken = true;
+			} else if( Character.isWhitespace(c) && !quoted ) {
+				if( inToken ) {
+					result.add(buf.toString());
+					buf.setLength(0);
+					inToken = false;
+				}
+			} else {
+				buf.append(c);
+				inToken = true;
+			}
+		}
+		if( inToken ) {
+			result.add(buf.toString());
+		}
+		return result.toArray(new String[result.size()]);
+	}
+}
@@ -19,8 +19,9 @@ import org.objectweb.asm.ClassWriter;
 import com.toccatasystems.dalvik.DexFile;
 
 /**
- * Extension of ClassWriter to lookup classes in the dex file information,
- * as well as just assume worst case if we can't find the class.
+ * Extension of ClassWriter to lookup classes in the dex file's class
+ * hierarchy (rather than loading them), and just assume worst case if we
+ * can't find the class.
  * @author nkeynes
  *
  */
@@ -37,11 +38,7 @@ public class DexClassWriter extends ClassWriter {
 	 * Find the least-common-ancestor of two class types.
 	 */
 	protected String getCommonSuperClass(String type1, String type2) {
-		try {
-			return super.getCommonSuperClass(type1, type2);
-		} catch( Exception e ) {
-			return "java/lang/Object";
-		}
+		return file.getClassHierarchy().getCommonSuperClass(type1, type2);
 	}
 	
 }
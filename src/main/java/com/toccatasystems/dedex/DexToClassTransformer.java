@@ -18,15 +18,10 @@ import java.util.Iterator;
 import java.util.Map;
 
 import org.objectweb.asm.AnnotationVisitor;
-import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.FieldVisitor;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
-import org.objectweb.asm.tree.ClassNode;
-import org.objectweb.asm.tree.MethodNode;
-import org.objectweb.asm.tree.analysis.Analyzer;
-import org.objectweb.asm.tree.analysis.BasicVerifier;
 
 
 import com.toccatasystems.dalvik.DexAnnotation;
@@ -38,6 +33,7 @@ import com.toccatasystems.dalvik.DexMethod;
 import com.toccatasystems.dalvik.DexMethodBody;
 import com.toccatasystems.dalvik.DexValue;
 import com.toccatasystems.dalvik.DexVisitor;
+import com.toccatasystems.util.PhaseStatistics;
 
 /**
  * @author nkeynes
@@ -57,15 +53,70 @@ public class DexToClassTransformer implements DexVisitor {
 	MethodVisitor mv;
 	BytecodeTransformer bct;
 	int state;
-	boolean verifyBytecode = false;
+	ClassVerifier verifier;
+	byte []classData;
+	ClassCache cache;
+	RestructureExceptions restructure;
+	String cacheKey;
+	boolean streaming = false;
 	
-	public DexToClassTransformer( ClassOutputWriter output, boolean verifyBytecode ) {
+	/**
+	 * @param output Destination for the generated classes. May be null when
+	 * the transformer is only used through {@link #transformClass}.
+	 * @param verifier Verifier to check each generated class, or null for
+	 * no verification.
+	 */
+	public DexToClassTransformer( ClassOutputWriter output, ClassVerifier verifier ) {
 		this.output = output;
 		this.bct = new BytecodeTransformer();
-		this.verifyBytecode = verifyBytecode;
+		this.verifier = verifier;
 		state = IN_FILE;
 	}
 	
+	/**
+	 * Change the destination for subsequently generated classes, so that the
+	 * transformer can be reused for multiple outputs.
+	 */
+	public void setOutput( ClassOutputWriter output ) {
+		this.output = output;
+	}
+	
+	public void setVerifier( ClassVerifier verifier ) {
+		this.verifier = verifier;
+	}
+	
+	/**
+	 * Look up classes in the given cache before converting them, and add
+	 * newly converted classes to it (null to disable caching). The method
+	 * bodies of cached classes are never loaded, so rather than the caller
+	 * restructuring the exception handlers of the whole file up-front, the
+	 * transformer restructures the bodies of each class it converts.
+	 */
+	public void setCache( ClassCache cache ) {
+		this.cache = cache;
+		updateRestructure();
+	}
+	
+	/**
+	 * In streaming mode, each class is converted independently: its method
+	 * bodies are restructured as they are converted (as with a cache), and
+	 * released as soon as the class has been written. Peak memory is then
+	 * bounded by the largest class rather than the whole file, at the cost
+	 * of re-reading any body that is requested again later.
+	 */
+	public void setStreaming( boolean streaming ) {
+		this.streaming = streaming;
+		updateRestructure();
+	}
+	
+	private void updateRestructure() {
+		if( cache == null && !streaming ) {
+			restructure = null;
+		} else if( restructure == null ) {
+			restructure = new RestructureExceptions();
+		}
+	}
+	
 	public void enterFile(DexFile file) {
 		state = IN_FILE;
 		this.file = file;
@@ -73,8 +124,13 @@ public class DexToClassTransformer implements DexVisitor {
 	}
 
 	public void enterClass(DexClass clz) {
-		writer = new DexClassWriter(file, ClassWriter.COMPUTE_FRAMES|ClassWriter.COMPUTE_MAXS);
-		writer.visit(49, clz.getFlags()|Opcodes.ACC_SUPER, clz.getInternalName(), clz.getSignature(), clz.getInternalSuperName(),
+		writer = new DexClassWriter(file, ClassWriter.COMPUTE_MAXS);
+		int flags = clz.getFlags();
+		if( (flags & Opcodes.ACC_INTERFACE) == 0 ) {
+			/* The JVM rejects ACC_SUPER on an interface */
+			flags |= Opcodes.ACC_SUPER;
+		}
+		writer.visit(Opcodes.V1_6, flags, clz.getInternalName(), clz.getSignature(), clz.getInternalSuperName(),
 				clz.getInternalInterfaces() );
 		
 		writer.visitSource(clz.getSourceFile(), null);
@@ -96,8 +152,7 @@ public class DexToClassTransformer implements DexVisitor {
 		String []innerClasses = clz.getMemberClasses();
 		if( innerClasses != null ) {
 			for( int i=0; i<innerClasses.length; i++ ) {
-				String internalInner = DexItem.formatInternalName(innerClasses[i]);
-				DexClass inner = file.getClass(internalInner);
+				DexClass inner = file.findClassByDescriptor(innerClasses[i]);
 				String innerName = null;
 				int innerAccess = 0;
 				if( inner != null ) {
@@ -114,10 +169,36 @@ public class DexToClassTransformer implements DexVisitor {
 	public void enterField(DexField field) {
 		DexValue value = field.getInitializer();
 		fv = writer.visitField(field.getFlags(), field.getName(), field.getType(), 
-				field.getSignature(), value == null ? null : value.getValue());
+				field.getSignature(), getConstantValue(value));
 		state = IN_FIELD;
 	}
 	
+	/**
+	 * @return the value in the form expected for a field's ConstantValue
+	 * attribute, in which all of the int-sized types are stored as an int.
+	 */
+	private static Object getConstantValue( DexValue value ) {
+		if( value == null ) {
+			return null;
+		}
+		switch( value.getType() ) {
+		case DexValue.BYTE:
+		case DexValue.SHORT:
+		case DexValue.CHAR:
+		case DexValue.INT:
+		case DexValue.BOOLEAN:
+			return Integer.valueOf(value.getInt());
+		case DexValue.LONG:
+			return Long.valueOf(value.getLong());
+		case DexValue.FLOAT:
+			return Float.valueOf(value.getFloat());
+		case DexValue.DOUBLE:
+			return Double.valueOf(value.getDouble());
+		default:
+			return value.getValue();
+		}
+	}
+	
 	public void visitAnnotationValue( AnnotationVisitor av, String name, DexValue value ) {
 		AnnotationVisitor sub;
 		switch( value.getType() ) {
@@ -196,6 +277,11 @@ public class DexToClassTransformer implements DexVisitor {
 	}
 
 	public void visitMethodBody(DexMethodBody body) {
+		if( restructure != null ) {
+			PhaseStatistics.Timer timer = PhaseStatistics.start(PhaseStatistics.RESTRUCTURE);
+			restructure.transform(body);
+			PhaseStatistics.stop(timer);
+		}
 		bct.transform(body, mv);
 	}
 
@@ -205,35 +291,101 @@ public class DexToClassTransformer implements DexVisitor {
 	}
 
 	public void leaveClass(DexClass clz) {
+		PhaseStatistics.Timer timer = PhaseStatistics.start(PhaseStatistics.TO_BYTE_ARRAY);
 		writer.visitEnd();
-		byte []classData = writer.toByteArray();
-		if( verifyBytecode ) {
-			verify(clz, classData);
+		classData = writer.toByteArray();
+		PhaseStatistics.stop(timer);
+		if( verifier != null ) {
+			verifier.submit(file, clz.getInternalName(), classData);
 		}
+		PhaseStatistics.count(PhaseStatistics.CLASSES, 1);
 		state = IN_FILE;
-		output.write(clz.getInternalName(), classData);
+		if( cacheKey != null ) {
+			cache.put(cacheKey, classData);
+			cacheKey = null;
+		}
+		writeClass(clz);
+	}
+	
+	private void writeClass(DexClass clz) {
+		if( output != null ) {
+			PhaseStatistics.Timer timer = PhaseStatistics.start(PhaseStatistics.WRITE);
+			output.write(clz.getInternalName(), classData);
+			PhaseStatistics.stop(timer);
+		}
+	}
+	
+	/**
+	 * Check the cache for the class. On a hit, the cached data is left in
+	 * classData (and submitted to the verifier, as the cache key doesn't
+	 * record whether it was verified when stored); otherwise the key is
+	 * retained so that leaveClass can store the converted class.
+	 * @return true if the class was found in the cache.
+	 */
+	private boolean lookupCache(DexClass clz) {
+		cacheKey = null;
+		if( cache == null ) {
+			return false;
+		}
+		String key = cache.computeKey(clz);
+		if( key != null ) {
+			byte []data = cache.get(key);
+			if( data != null ) {
+				classData = data;
+				PhaseStatistics.count(PhaseStatistics.CLASSES, 1);
+				if( verifier != null ) {
+					verifier.submit(file, clz.getInternalName(), classData);
+				}
+				return true;
+			}
+		}
+		cacheKey = key;
+		return false;
 	}
 
 	public void leaveFile(DexFile file) {
+		PhaseStatistics.Timer timer = PhaseStatistics.start(PhaseStatistics.WRITE);
 		output.end(file.getName());
+		PhaseStatistics.stop(timer);
 	}
 
-	private void verify( DexClass clz, byte[]data ) {
-		ClassReader cr = new ClassReader(data);
-        ClassNode cn = new ClassNode();
-        cr.accept(cn, ClassReader.SKIP_DEBUG);
-
-        for (int i = 0; i < cn.methods.size(); ++i) {
-            MethodNode method = (MethodNode) cn.methods.get(i);
-            BasicVerifier verifier = new BasicVerifier();
-            try {
-            	Analyzer a = new Analyzer(verifier);
-            	a.analyze(cn.name, method);
-            } catch( Exception e ) {
-            	clz.getMethod(i).getBody().disassemble(System.err);
-            	throw new RuntimeException("Verification failure in " + clz.getDisplayName() + "." + method.name, e);
-            }
-        }
+	/**
+	 * Convert all classes in the file to the output. This is the same as
+	 * file.visit(this), except that classes found in the cache are written
+	 * out directly rather than being converted.
+	 */
+	public void transform( DexFile file ) {
+		enterFile(file);
+		for( int i=0; i<file.getNumClasses(); i++ ) {
+			DexClass clz = file.getClass(i);
+			if( lookupCache(clz) ) {
+				writeClass(clz);
+			} else {
+				clz.visit(this);
+				if( streaming ) {
+					clz.releaseBodies();
+				}
+			}
+		}
+		leaveFile(file);
+	}
+
+	/**
+	 * Convert a single class from the given file (or fetch it from the
+	 * cache), and return the resulting class data rather than passing it to
+	 * the output writer.
+	 */
+	public byte[] transformClass( DexFile file, DexClass clz ) {
+		this.file = file;
+		this.classData = null;
+		state = IN_FILE;
+		if( !lookupCache(clz) ) {
+			clz.visit(this);
+			if( streaming ) {
+				clz.releaseBodies();
+			}
+		}
+		return classData;
 	}
 
 }
@@ -14,11 +14,20 @@
 
 package com.toccatasystems.dedex;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
 import java.util.Iterator;
 import org.apache.commons.cli.*;
 
 import com.toccatasystems.dalvik.*;
+import com.toccatasystems.dalvik.analysis.AnalysisException;
+import com.toccatasystems.dalvik.analysis.ParallelAnalysis;
+import com.toccatasystems.util.PhaseStatistics;
 
 /**
  * 
@@ -28,6 +37,8 @@ import com.toccatasystems.dalvik.*;
 public class Main {
 
 	private final static String DEDEX_VERSION = "0.4";
+	/** Default size limit of the class cache, in megabytes */
+	private final static long DEFAULT_CACHE_SIZE = 256;
 	private final static String DEDEX_COPYRIGHT = "Copyright (c) 2010-2011 Toccata Systems. All Rights Reserved.";
 	private static Options commandLineOptions;
 	
@@ -50,27 +61,75 @@ public class Main {
 		Option classOpt = new Option("c","class",true,"Specify a single class to generate");
 		classOpt.setArgName("CLASS");
 		options.addOption(classOpt);
+		Option filter = new Option("f","filter",true,"Only generate classes matching the glob or re:regex");
+		filter.setArgName("PATTERN");
+		options.addOption(filter);
 		options.addOption("v","verbose", false, "Verbose disassembly (with -D)");
 		options.addOption("V","verify", false, "Verify generated bytecode");
+		options.addOption(null, "verify-types", false, "Verify generated bytecode, including type checks");
+		Option threads = new Option("t","threads",true,"Number of threads to use for conversion");
+		threads.setArgName("N");
+		options.addOption(threads);
+		options.addOption(null, "store", false, "Store jar entries without compression");
+		options.addOption(null, "stats", false, "Print per-phase timing and counters");
+		options.addOption(null, "stream", false, "Convert one class at a time to bound memory use");
+		Option statsJson = new Option(null, "stats-json", true, "Write per-phase timing and counters as JSON");
+		statsJson.setArgName("FILE");
+		options.addOption(statsJson);
+		options.addOption(null, "server", false, "Run conversion jobs read from stdin");
+		Option port = new Option(null, "port", true, "Run conversion jobs from connections to a local port");
+		port.setArgName("PORT");
+		options.addOption(port);
+		Option tokenFile = new Option(null, "token-file", true, "Shared secret that clients of --port must send first");
+		tokenFile.setArgName("FILE");
+		options.addOption(tokenFile);
+		Option classpath = new Option("C","classpath",true,"Library classpath used to resolve types outside the dex file");
+		classpath.setArgName("PATH");
+		options.addOption(classpath);
+		Option cache = new Option(null, "cache", true, "Cache converted classes in the given directory");
+		cache.setArgName("DIR");
+		options.addOption(cache);
+		Option cacheSize = new Option(null, "cache-size", true, "Maximum size of the class cache in MB");
+		cacheSize.setArgName("MB");
+		options.addOption(cacheSize);
 		commandLineOptions = options;
 	}
 	
 	private static void printUsage() {
 		System.out.println("dedex " + DEDEX_VERSION + ". " + DEDEX_COPYRIGHT);
-		System.out.println("Usage: java -jar dedex-" + DEDEX_VERSION + ".jar [options] <input-dex-file>");
+		System.out.println("Usage: java -jar dedex-" + DEDEX_VERSION + ".jar [options] <input-dex-or-apk-file>");
 		System.out.println("Output options (at most one may be specified):");
 		System.out.println("  -D, --dump                Disassemble dex file to console");
 		System.out.println("  -d, --dir=DIR             Write class files to the given directory");
 		System.out.println("  -o, --output=JAR-FILE     Write class files to the given .jar file");
+		System.out.println("      --store               Write .jar files without compression");
 		System.out.println();
 		System.out.println("Other options:");
+		System.out.println("      --cache=DIR           Reuse classes converted by previous runs, cached in DIR");
+		System.out.println("      --cache-size=MB       Limit the cache to MB megabytes (default " + DEFAULT_CACHE_SIZE + ")");
 		System.out.println("  -c, --class=CLASS         Specify a single class to generate");
+		System.out.println("  -C, --classpath=PATH      Resolve library types (eg android.jar) from PATH");
+		System.out.println("  -f, --filter=PATTERN      Only generate classes matching PATTERN, which is either a\n" +
+						   "                            glob (eg com.vendor.sdk.**) or re:REGEX. May be repeated");
 		System.out.println("  -h, --help                Print this help message");
+		System.out.println("      --port=PORT           Run as a server on localhost:PORT (see --server). Each\n" +
+						   "                            connection must first send the token from --token-file");
+		System.out.println("      --server              Run as a server, reading one job per line from stdin");
+		System.out.println("      --stats               Print time and allocation for each phase");
+		System.out.println("      --stats-json=FILE     Write the phase statistics to FILE as JSON");
+		System.out.println("      --stream              Release each class's method bodies once it is converted");
+		System.out.println("      --token-file=FILE     Read the --port token from FILE (created, mode 600, with a\n" +
+						   "                            random token if it doesn't exist)");
+		System.out.println("  -t, --threads=N           Convert classes using N worker threads");
 		System.out.println("  -v, --verbose             Verbose disassembly (with -D)");
 		System.out.println("  -V, --verify              Verify generated bytecode");
+		System.out.println("      --verify-types        Verify generated bytecode with type checking against the\n" +
+						   "                            class hierarchy (use with -C for library types)");
 		System.out.println();
+		System.out.println("  Inputs may be .dex files, or APK/zip archives containing classes.dex and any\n" +
+						   "  further classesN.dex files.");
 		System.out.println("  If no output options are given, dedex will create a .jar file in the current\n" +
-						   "  directory for each input .dex file." );
+						   "  directory for each input file." );
 	}
 	
 	private static CommandLine parseCommandLine( String [] args ) {
@@ -84,68 +143,290 @@ public class Main {
 			System.exit(1);
 		}
 
-		if( cl.hasOption('h') || cl.getArgList().size() == 0 ) {
+		if( cl.hasOption('h') || (cl.getArgList().size() == 0 && 
+				!cl.hasOption("server") && !cl.hasOption("port")) ) {
 			printUsage();
 			System.exit(0);
 		}
 		
 		return cl;
 	}
+	
+	/**
+	 * @return the class filter given by the -c and -f options, or null if
+	 * all classes are to be converted.
+	 */
+	static ClassFilter parseClassFilter( CommandLine cl ) {
+		if( !cl.hasOption('c') && !cl.hasOption('f') ) {
+			return null;
+		}
+		ClassFilter filter = new ClassFilter();
+		if( cl.hasOption('c') ) {
+			filter.addClass(cl.getOptionValue('c'));
+		}
+		String []patterns = cl.getOptionValues('f');
+		for( int i=0; patterns != null && i<patterns.length; i++ ) {
+			filter.addPattern(patterns[i]);
+		}
+		return filter;
+	}
+	
+	private static int parseThreadCount( CommandLine cl ) {
+		if( !cl.hasOption('t') ) {
+			return 1;
+		}
+		String value = cl.getOptionValue('t');
+		try {
+			int threads = Integer.parseInt(value);
+			if( threads > 0 ) {
+				return threads;
+			}
+		} catch( NumberFormatException e ) {
+		}
+		System.err.println( "Error: Invalid thread count '" + value + "'" );
+		System.exit(1);
+		return 1;
+	}
 		
 	
 	@SuppressWarnings("unchecked")
 	public static void main( String [] args ) {
 		CommandLine cl = parseCommandLine(args);
+		if( cl.hasOption("stats") || cl.hasOption("stats-json") ) {
+			PhaseStatistics.enable();
+		}
 
 		ClassOutputWriter writer = null;
+		int threads = parseThreadCount(cl);
+
+		ClasspathLibrary library = null;
+		try {
+			library = new ClasspathLibrary(cl.getOptionValue('C'));
+		} catch( IOException e ) {
+			System.err.println( "Error: Unable to read classpath '" + cl.getOptionValue('C') + "': " + e.getMessage() );
+			System.exit(1);
+		}
+
+		ClassCache cache = createCache(cl);
+
+		if( cl.hasOption("server") || cl.hasOption("port") ) {
+			runServer(cl, library, cache, threads);
+			library.close();
+			return;
+		}
 
 		String jar = cl.getOptionValue('o');
 		String outputdir = cl.getOptionValue('d');
-		if( jar != null ) {
+		if( outputdir != null ) {
+			writer = new FileClassWriter(outputdir);
+		} else {
 			try {
-				writer = new JarClassWriter(jar);
+				writer = new ParallelJarClassWriter(jar, threads, cl.hasOption("store"));
 			} catch( IOException e ) {
 				System.err.println( "Error: Unable to create jar '" + jar + "': " + e.getMessage() );
 				System.exit(2);
 			}
-		} else if( outputdir != null ) {
-			writer = new FileClassWriter(outputdir);
+		}
+		/* When streaming, bodies are loaded, restructured and released one
+		 * class at a time by the transformer (a dump needs them all anyway) */
+		boolean streaming = cl.hasOption("stream") && !cl.hasOption('D');
+		ClassVerifier verifier = null;
+		if( cl.hasOption('V') || cl.hasOption("verify-types") ) {
+			verifier = new ClassVerifier(threads, cl.hasOption("verify-types"));
+		}
+		DexToClassTransformer transform = null;
+		ParallelClassTransformer parallelTransform = null;
+		ParallelAnalysis analysis = null;
+		if( threads > 1 ) {
+			/* With a cache, bodies are only analysed for the classes that miss */
+			if( cache == null && !streaming ) {
+				analysis = new ParallelAnalysis(threads);
+			}
+			parallelTransform = new ParallelClassTransformer(writer, verifier, threads, cache, streaming);
 		} else {
-			writer = new MultiJarClassWriter();
+			transform = new DexToClassTransformer(writer, verifier);
+			transform.setCache(cache);
+			transform.setStreaming(streaming);
 		}
-		DexToClassTransformer transform = new DexToClassTransformer(writer, cl.hasOption('V'));
 
+		ClassFilter filter = null;
+		try {
+			filter = parseClassFilter(cl);
+		} catch( IllegalArgumentException e ) {
+			System.err.println( "Error: Invalid filter: " + e.getMessage() );
+			System.exit(1);
+		}
 		DexParser parser = new DexParser(); 
+		parser.setClassFilter(filter);
 		for( Iterator<String> it = cl.getArgList().iterator(); it.hasNext(); ) {
 			String file = it.next();
-			DexFile dex = null;
+			DexFile []dexFiles = null;
 			try {
-				dex = parser.parseFile(file);
+				if( DexArchive.isArchive(file) ) {
+					DexArchive archive = new DexArchive(file);
+					archive.setClassFilter(filter);
+					dexFiles = archive.parse(threads);
+					if( dexFiles.length == 0 ) {
+						System.err.println( "Error: No dex files found in " + file );
+						continue;
+					}
+				} else {
+					dexFiles = new DexFile[] { parser.parseFile(file) };
+				}
 			} catch( Exception e ) { 
 				System.err.println( "Error: Unable to load " + file + ": " + e.getMessage() );
 				e.printStackTrace();
 				System.exit(1);
 			}
 			
-			if( cl.hasOption('c') ) {
-				dex = new DexFile(dex, cl.getOptionValue('c'));
-				if( dex.getNumClasses() == 0 ) {
-					System.err.println( "Error: Unable to find class " + cl.getOptionValue('c') + " in "  + file );
+			/* All dex files from an archive share one hierarchy, which can see
+			 * every class in the application */
+			DexClassHierarchy hierarchy = new DexClassHierarchy(dexFiles[0], library);
+			boolean found = false;
+			for( int i=0; i<dexFiles.length; i++ ) {
+				DexFile dex = dexFiles[i];
+				if( filter != null && dex.getNumClasses() == 0 ) {
 					continue;
 				}
+				found = true;
+				dex.setClassHierarchy(hierarchy);
+				
+				if( analysis != null ) {
+					try {
+						analysis.analyse(dex);
+					} catch( AnalysisException e ) {
+						System.err.println( "Error: Unable to analyse " + dex.getName() + ": " + e.getMessage() );
+						System.exit(1);
+					}
+				}
+				
+				/* Method bodies are loaded lazily, so a corrupt code item
+				 * only shows up here rather than when the file is parsed */
+				try {
+					if( (cache == null && !streaming) || cl.hasOption('D') ) {
+						RestructureExceptions rest = new RestructureExceptions();
+						rest.transform(dex);
+					}
+					
+					if( cl.hasOption('D') ) {
+						DexDump dump = new DexDump(System.out, cl.hasOption('v'));
+						dex.visit(dump);
+					} else if( parallelTransform != null ) {
+						parallelTransform.transform(dex);
+					} else {
+						transform.transform(dex);
+					}
+				} catch( RuntimeException e ) {
+					String message = e.getMessage() == null ? e.toString() : e.getMessage();
+					System.err.println( "Error: Unable to load " + dex.getName() + ": " + message );
+					e.printStackTrace();
+					System.exit(1);
+				}
 			}
-			
-			RestructureExceptions rest = new RestructureExceptions();
-			rest.transform(dex);
-			
-			if( cl.hasOption('D') ) {
-				DexDump dump = new DexDump(System.out, cl.hasOption('v'));
-				dex.visit(dump);
-			} else {
-				dex.visit( transform );
+			if( cl.hasOption('c') && !cl.hasOption('f') && !found ) {
+				System.err.println( "Error: Unable to find class " + cl.getOptionValue('c') + " in "  + file );
+			} else if( filter != null && !found ) {
+				System.err.println( "Warning: No classes matching the filter in " + file );
+			}
+		}
+		if( parallelTransform != null ) {
+			if( analysis != null ) {
+				analysis.shutdown();
 			}
+			parallelTransform.shutdown();
 		}
+		int verifyFailures = 0;
+		if( verifier != null ) {
+			verifyFailures = verifier.report(System.err);
+			verifier.shutdown();
+		}
+		PhaseStatistics.Timer timer = PhaseStatistics.start(PhaseStatistics.WRITE);
 		writer.close();
+		PhaseStatistics.stop(timer);
+		library.close();
+		if( cache != null ) {
+			cache.close();
+			cache.printReport(System.err);
+		}
+		if( cl.hasOption("stats") ) {
+			PhaseStatistics.printTable(System.err);
+		}
+		if( cl.hasOption("stats-json") ) {
+			writeStatistics(cl.getOptionValue("stats-json"));
+		}
+		if( verifyFailures != 0 ) {
+			System.err.println( "Error: " + verifyFailures + " method(s) failed verification" );
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * @return the class cache given by the command line options, or null
+	 * if there is none.
+	 */
+	private static ClassCache createCache( CommandLine cl ) {
+		if( !cl.hasOption("cache") ) {
+			return null;
+		}
+		long size = DEFAULT_CACHE_SIZE;
+		if( cl.hasOption("cache-size") ) {
+			String value = cl.getOptionValue("cache-size");
+			try {
+				size = Long.parseLong(value);
+			} catch( NumberFormatException e ) {
+				size = -1;
+			}
+			if( size < 0 ) {
+				System.err.println( "Error: Invalid cache size '" + value + "'" );
+				System.exit(1);
+			}
+		}
+		try {
+			return new ClassCache(cl.getOptionValue("cache"), size * 1024 * 1024, DEDEX_VERSION);
+		} catch( IOException e ) {
+			System.err.println( "Error: " + e.getMessage() );
+			System.exit(1);
+			return null;
+		}
+	}
+	
+	private static void runServer( CommandLine cl, ClasspathLibrary library, ClassCache cache, int threads ) {
+		ConversionServer server = new ConversionServer(library, cache, threads);
+		try {
+			if( cl.hasOption("port") ) {
+				int port = 0;
+				try {
+					port = Integer.parseInt(cl.getOptionValue("port"));
+				} catch( NumberFormatException e ) {
+					System.err.println( "Error: Invalid port '" + cl.getOptionValue("port") + "'" );
+					System.exit(1);
+				}
+				if( !cl.hasOption("token-file") ) {
+					System.err.println( "Error: --port requires --token-file" );
+					System.exit(1);
+				}
+				String token = ConversionServer.loadToken(new File(cl.getOptionValue("token-file")));
+				server.listen(port, token);
+			} else {
+				server.serve( new BufferedReader(new InputStreamReader(System.in)),
+						new PrintWriter(System.out) );
+			}
+		} catch( IOException e ) {
+			System.err.println( "Error: " + e.getMessage() );
+			System.exit(1);
+		} finally {
+			server.shutdown();
+		}
+	}
+	
+	private static void writeStatistics( String filename ) {
+		try {
+			PrintStream out = new PrintStream(new FileOutputStream(filename));
+			PhaseStatistics.printJSON(out);
+			out.close();
+		} catch( IOException e ) {
+			System.err.println( "Error: Unable to write statistics to '" + filename + "': " + e.getMessage() );
+		}
 	}
 	
 }
@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2011 Toccata Systems.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.toccatasystems.dedex;
+
+import com.toccatasystems.util.PhaseStatistics;
+
+/**
+ * Collects classes that complete out of order, and passes them on to the
+ * underlying ClassOutputWriter strictly in index order. Classes that arrive
+ * early are held until all of their predecessors have been written.
+ *
+ * The sink is safe to call from multiple threads; the output writer is only
+ * ever invoked by one thread at a time.
+ *
+ * @author nkeynes
+ *
+ */
+public class OrderedClassSink {
+	private ClassOutputWriter output;
+	private String []names;
+	private byte [][]classData;
+	private int next;
+
+	public OrderedClassSink( ClassOutputWriter output, int numClasses ) {
+		this.output = output;
+		this.names = new String[numClasses];
+		this.classData = new byte[numClasses][];
+		this.next = 0;
+	}
+
+	/**
+	 * Supply the class at the given index. Any classes that are now ready to
+	 * be written (including this one) are written immediately.
+	 */
+	public synchronized void put( int idx, String internalClassName, byte []data ) {
+		names[idx] = internalClassName;
+		classData[idx] = data;
+		while( next < classData.length && classData[next] != null ) {
+			PhaseStatistics.Timer timer = PhaseStatistics.start(PhaseStatistics.WRITE);
+			output.write(names[next], classData[next]);
+			PhaseStatistics.stop(timer);
+			names[next] = null;
+			classData[next] = null;
+			next++;
+		}
+	}
+
+	/**
+	 * @return true if every class has been written to the output.
+	 */
+	public synchronized boolean isComplete() {
+		return next == classData.length;
+	}
+}
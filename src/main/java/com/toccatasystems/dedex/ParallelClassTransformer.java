@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2011 Toccata Systems.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.toccatasystems.dedex;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.toccatasystems.dalvik.DexClass;
+import com.toccatasystems.dalvik.DexFile;
+import com.toccatasystems.util.PhaseStatistics;
+
+/**
+ * Converts the classes of a dex file concurrently on a fork-join pool. Each
+ * worker thread owns a private DexToClassTransformer (and with it a private
+ * ClassWriter and BytecodeTransformer). Finished classes are passed through
+ * an OrderedClassSink, so the output writer sees exactly the same sequence of
+ * calls as it would from a sequential DexToClassTransformer.
+ *
+ * @author nkeynes
+ *
+ */
+public class ParallelClassTransformer {
+	/** Largest range of classes that a single task converts without splitting */
+	private final static int CLASSES_PER_TASK = 4;
+
+	private ClassOutputWriter output;
+	private ForkJoinPool pool;
+	private ThreadLocal<DexToClassTransformer> transformers;
+
+	private class ConvertTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private DexFile file;
+		private OrderedClassSink sink;
+		private int start, end;
+
+		ConvertTask( DexFile file, OrderedClassSink sink, int start, int end ) {
+			this.file = file;
+			this.sink = sink;
+			this.start = start;
+			this.end = end;
+		}
+
+		protected void compute() {
+			if( end - start <= CLASSES_PER_TASK ) {
+				DexToClassTransformer transform = transformers.get();
+				for( int i=start; i<end; i++ ) {
+					DexClass clz = file.getClass(i);
+					sink.put(i, clz.getInternalName(), transform.transformClass(file, clz));
+				}
+			} else {
+				int mid = (start + end) >>> 1;
+				invokeAll( new ConvertTask(file, sink, start, mid),
+						new ConvertTask(file, sink, mid, end) );
+			}
+		}
+	}
+
+	public ParallelClassTransformer( ClassOutputWriter output, ClassVerifier verifier, int threads ) {
+		this(output, verifier, threads, null, false);
+	}
+
+	/**
+	 * @param verifier verifier for the generated classes, or null for none
+	 * @param cache cache of converted classes, or null for none. See
+	 * {@link DexToClassTransformer#setCache}.
+	 * @param streaming if true, release the method bodies of each class as
+	 * soon as it is converted. See {@link DexToClassTransformer#setStreaming}.
+	 */
+	public ParallelClassTransformer( ClassOutputWriter output, final ClassVerifier verifier, int threads,
+			final ClassCache cache, final boolean streaming ) {
+		this.output = output;
+		this.pool = new ForkJoinPool(threads);
+		this.transformers = new ThreadLocal<DexToClassTransformer>() {
+			protected DexToClassTransformer initialValue() {
+				DexToClassTransformer transform = new DexToClassTransformer(null, verifier);
+				transform.setCache(cache);
+				transform.setStreaming(streaming);
+				return transform;
+			}
+		};
+	}
+
+	/**
+	 * Convert all classes in the file, writing them to the output in the
+	 * same order as they appear in the file.
+	 */
+	public void transform( DexFile file ) {
+		output.begin(file.getName(), file.getTimestamp());
+		OrderedClassSink sink = new OrderedClassSink(output, file.getNumClasses());
+		pool.invoke(new ConvertTask(file, sink, 0, file.getNumClasses()));
+		PhaseStatistics.Timer timer = PhaseStatistics.start(PhaseStatistics.WRITE);
+		output.end(file.getName());
+		PhaseStatistics.stop(timer);
+	}
+
+	/**
+	 * Release the worker threads. The transformer may not be used afterwards.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+}
@@ -0,0 +1,420 @@
+/**
+ * Copyright (c) 2011 Toccata Systems.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.toccatasystems.dedex;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * ClassOutputWriter that writes class files into .jar files, compressing
+ * the entries on a pool of background threads. Compressed entries are
+ * appended to the jar in the order the classes were written, so the output
+ * is identical regardless of the number of threads.
+ *
+ * If constructed with a jar file, all classes go to that file. Otherwise
+ * a jar is created in the current directory for each input file (named
+ * after the input, with a .jar extension), where all the dex files from one
+ * archive (named "archive!entry") count as a single input.
+ *
+ * Jars with more than 65534 entries, or larger than 4GB, are written with
+ * the ZIP64 extensions, as ZipOutputStream does. (Entry sizes always fit in
+ * 32 bits, as they come from class data arrays.)
+ *
+ * @author nkeynes
+ *
+ */
+public class ParallelJarClassWriter implements ClassOutputWriter {
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+	private final static int METHOD_STORED = 0;
+	private final static int METHOD_DEFLATED = 8;
+	private final static int FLAG_UTF8 = 0x0800;
+	private final static long ZIP64_MAGIC = 0xFFFFFFFFL;
+	private final static int ZIP64_MAGIC_COUNT = 0xFFFF;
+	private final static int ZIP64_EXTRA_ID = 0x0001;
+	private final static int ZIP64_VERSION = 45;
+	/** Maximum number of entries being compressed per thread */
+	private final static int PENDING_PER_THREAD = 4;
+
+	/**
+	 * A compressed entry, ready to be appended to the jar.
+	 */
+	private static class Entry {
+		byte []name;
+		int dosTime;
+		int method;
+		long crc;
+		int size;
+		byte []data;
+		int dataLength;
+		long offset;
+	}
+
+	private static ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+	};
+
+	private String jarFile;
+	private String filename;
+	private boolean store;
+	private ExecutorService pool;
+	private boolean ownPool;
+	private int maxPending;
+	private LinkedList<Future<Entry>> pending;
+	private OutputStream out;
+	private long offset;
+	private ByteArrayOutputStream central;
+	private int numEntries;
+	private Set<String> entryNames;
+	private int dosTime;
+	private boolean failure;
+
+	/**
+	 * @param jarFile the jar to write all classes into, or null to write a
+	 * jar for each input file.
+	 * @param threads number of compression threads
+	 * @param store if true, entries are stored uncompressed.
+	 */
+	public ParallelJarClassWriter( String jarFile, int threads, boolean store ) throws IOException {
+		this(jarFile, createPool(threads), threads, store);
+		this.ownPool = true;
+	}
+
+	/**
+	 * Construct a writer that compresses on an existing pool, which is left
+	 * running when the writer is closed.
+	 * @param threads number of threads in the pool
+	 */
+	public ParallelJarClassWriter( String jarFile, ExecutorService pool, int threads, boolean store ) throws IOException {
+		this.jarFile = jarFile;
+		this.store = store;
+		this.maxPending = threads * PENDING_PER_THREAD;
+		this.pending = new LinkedList<Future<Entry>>();
+		this.pool = pool;
+		this.ownPool = false;
+		this.failure = false;
+		if( jarFile != null ) {
+			open(jarFile);
+		}
+	}
+
+	/**
+	 * Create a pool of daemon threads suitable for compressing jar entries.
+	 */
+	public static ExecutorService createPool( int threads ) {
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread( Runnable r ) {
+				Thread thread = new Thread(r, "dedex-jar");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public boolean hasFailure() {
+		return failure;
+	}
+
+	public void begin( String filename, long timestamp ) {
+		dosTime = toDosTime(timestamp == 0 ? System.currentTimeMillis() : timestamp);
+		if( jarFile == null ) {
+			String name = getJarName(filename);
+			if( out != null && name.equals(this.filename) ) {
+				/* Another dex file from the same archive */
+				return;
+			}
+			finish();
+			try {
+				open(name);
+			} catch( IOException e ) {
+				out = null;
+				System.err.println( "Error creating jar file '" + name + "': " + e.getMessage() );
+				failure = true;
+			}
+		}
+	}
+
+	public void write( String internalClassName, byte []classData ) {
+		if( out == null ) {
+			return;
+		}
+		String name = internalClassName + ".class";
+		if( !entryNames.add(name) ) {
+			/* The same class from more than one dex file - keep the first */
+			if( !failure ) {
+				failure = true;
+				System.err.println( "Error writing to jar '" + filename + "': duplicate entry: " + name );
+			}
+			return;
+		}
+		final Entry entry = new Entry();
+		entry.name = name.getBytes(UTF8);
+		entry.dosTime = dosTime;
+		final byte []data = classData;
+		pending.add(pool.submit(new Callable<Entry>() {
+			public Entry call() {
+				compress(entry, data);
+				return entry;
+			}
+		}));
+		while( !pending.isEmpty() && (pending.size() > maxPending || pending.getFirst().isDone()) ) {
+			appendNext();
+		}
+	}
+
+	public void end( String filename ) {
+		if( jarFile == null && filename.indexOf('!') == -1 ) {
+			finish();
+		}
+	}
+
+	public void close() {
+		finish();
+		if( ownPool ) {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * @return the name of the jar to create for the input file.
+	 */
+	private static String getJarName( String filename ) {
+		int archive = filename.indexOf('!');
+		if( archive != -1 ) {
+			filename = filename.substring(0, archive);
+		}
+		String name = new File(filename).getName();
+		if( name.endsWith(".dex") || name.endsWith(".apk") ) {
+			return name.substring(0, name.length()-4) + ".jar";
+		} else {
+			return name + ".jar";
+		}
+	}
+
+	private void open( String name ) throws IOException {
+		filename = name;
+		out = new BufferedOutputStream(new FileOutputStream(name));
+		offset = 0;
+		central = new ByteArrayOutputStream();
+		numEntries = 0;
+		entryNames = new HashSet<String>();
+	}
+
+	/**
+	 * Compress the class data into the entry. Runs on a pool thread.
+	 */
+	private void compress( Entry entry, byte []classData ) {
+		CRC32 crc = new CRC32();
+		crc.update(classData, 0, classData.length);
+		entry.crc = crc.getValue();
+		entry.size = classData.length;
+		if( store ) {
+			entry.method = METHOD_STORED;
+			entry.data = classData;
+			entry.dataLength = classData.length;
+		} else {
+			Deflater deflater = deflaters.get();
+			deflater.reset();
+			deflater.setInput(classData);
+			deflater.finish();
+			byte []buf = new byte[classData.length + (classData.length >> 3) + 64];
+			int len = 0;
+			while( !deflater.finished() ) {
+				if( len == buf.length ) {
+					byte []tmp = new byte[buf.length * 2];
+					System.arraycopy(buf, 0, tmp, 0, len);
+					buf = tmp;
+				}
+				len += deflater.deflate(buf, len, buf.length - len);
+			}
+			entry.method = METHOD_DEFLATED;
+			entry.data = buf;
+			entry.dataLength = len;
+		}
+	}
+
+	/**
+	 * Wait for the oldest pending entry to be compressed, and append it to
+	 * the jar.
+	 */
+	private void appendNext() {
+		Future<Entry> future = pending.removeFirst();
+		Entry entry;
+		try {
+			entry = future.get();
+		} catch( InterruptedException e ) {
+			throw new RuntimeException(e);
+		} catch( ExecutionException e ) {
+			throw new RuntimeException(e.getCause());
+		}
+		if( out == null ) {
+			return;
+		}
+		try {
+			entry.offset = offset;
+			writeHeader(out, entry, false);
+			out.write(entry.data, 0, entry.dataLength);
+			offset += 30 + entry.name.length + entry.dataLength;
+			writeHeader(central, entry, true);
+			numEntries++;
+		} catch( IOException e ) {
+			error(e);
+		}
+	}
+
+	/**
+	 * Append all pending entries, write the central directory and close
+	 * the jar.
+	 */
+	private void finish() {
+		while( !pending.isEmpty() ) {
+			appendNext();
+		}
+		if( out == null ) {
+			return;
+		}
+		try {
+			byte []dir = central.toByteArray();
+			out.write(dir);
+			boolean zip64 = numEntries >= ZIP64_MAGIC_COUNT || offset >= ZIP64_MAGIC;
+			if( zip64 ) {
+				long endOffset = offset + dir.length;
+				/* ZIP64 end of central directory record */
+				writeInt(out, 0x06064b50);
+				writeLong(out, 44);
+				writeShort(out, ZIP64_VERSION);
+				writeShort(out, ZIP64_VERSION);
+				writeInt(out, 0);
+				writeInt(out, 0);
+				writeLong(out, numEntries);
+				writeLong(out, numEntries);
+				writeLong(out, dir.length);
+				writeLong(out, offset);
+				/* ZIP64 end of central directory locator */
+				writeInt(out, 0x07064b50);
+				writeInt(out, 0);
+				writeLong(out, endOffset);
+				writeInt(out, 1);
+			}
+			writeInt(out, 0x06054b50);
+			writeShort(out, 0);
+			writeShort(out, 0);
+			writeShort(out, zip64 ? ZIP64_MAGIC_COUNT : numEntries);
+			writeShort(out, zip64 ? ZIP64_MAGIC_COUNT : numEntries);
+			writeInt(out, dir.length);
+			writeInt(out, zip64 ? ZIP64_MAGIC : offset);
+			writeShort(out, 0);
+			out.close();
+		} catch( IOException e ) {
+			System.err.println( "Error finalizing jar '" + filename + "': " + e.getMessage() );
+			failure = true;
+		}
+		out = null;
+		central = null;
+		entryNames = null;
+	}
+
+	private void error( IOException e ) {
+		if( !failure ) {
+			failure = true;
+			System.err.println( "Error writing to jar '" + filename + "': " + e.getMessage() );
+		}
+	}
+
+	/**
+	 * Write the local file header (or central directory header) for the
+	 * entry. A central directory header for an entry beyond 4GB has its
+	 * offset in a ZIP64 extra field.
+	 */
+	private static void writeHeader( OutputStream os, Entry entry, boolean central ) throws IOException {
+		boolean zip64 = central && entry.offset >= ZIP64_MAGIC;
+		int version = zip64 ? ZIP64_VERSION : entry.method == METHOD_STORED ? 10 : 20;
+		writeInt(os, central ? 0x02014b50 : 0x04034b50);
+		if( central ) {
+			writeShort(os, version);
+		}
+		writeShort(os, version);
+		writeShort(os, FLAG_UTF8);
+		writeShort(os, entry.method);
+		writeInt(os, entry.dosTime);
+		writeInt(os, entry.crc);
+		writeInt(os, entry.dataLength);
+		writeInt(os, entry.size);
+		writeShort(os, entry.name.length);
+		writeShort(os, zip64 ? 12 : 0); /* Extra field length */
+		if( central ) {
+			writeShort(os, 0); /* Comment length */
+			writeShort(os, 0); /* Disk number */
+			writeShort(os, 0); /* Internal attributes */
+			writeInt(os, 0); /* External attributes */
+			writeInt(os, zip64 ? ZIP64_MAGIC : entry.offset);
+		}
+		os.write(entry.name);
+		if( zip64 ) {
+			writeShort(os, ZIP64_EXTRA_ID);
+			writeShort(os, 8);
+			writeLong(os, entry.offset);
+		}
+	}
+
+	private static void writeShort( OutputStream os, int value ) throws IOException {
+		os.write(value & 0xFF);
+		os.write((value >> 8) & 0xFF);
+	}
+
+	private static void writeInt( OutputStream os, long value ) throws IOException {
+		writeShort(os, (int)(value & 0xFFFF));
+		writeShort(os, (int)((value >> 16) & 0xFFFF));
+	}
+
+	private static void writeLong( OutputStream os, long value ) throws IOException {
+		writeInt(os, value & ZIP64_MAGIC);
+		writeInt(os, value >>> 32);
+	}
+
+	/**
+	 * Convert a java timestamp to the MS-DOS date/time format used in zip
+	 * files (in local time, as java.util.zip does).
+	 */
+	private static int toDosTime( long time ) {
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(time);
+		int year = cal.get(Calendar.YEAR);
+		if( year < 1980 ) {
+			return (1 << 21) | (1 << 16);
+		}
+		return ((year - 1980) << 25) | ((cal.get(Calendar.MONTH) + 1) << 21) |
+			(cal.get(Calendar.DAY_OF_MONTH) << 16) | (cal.get(Calendar.HOUR_OF_DAY) << 11) |
+			(cal.get(Calendar.MINUTE) << 5) | (cal.get(Calendar.SECOND) >> 1);
+	}
+}
@@ -24,6 +24,7 @@ import com.toccatasystems.dalvik.DexBasicBlock;
 import com.toccatasystems.dalvik.DexFile;
 import com.toccatasystems.dalvik.DexMethodBody;
 import com.toccatasystems.dalvik.DexTryCatch;
+import com.toccatasystems.util.PhaseStatistics;
 
 /**
  * Dx tends to move code around in a way that a) breaks the JVM verifier, and
@@ -36,7 +37,10 @@ public class RestructureExceptions {
 
 	public void transform( DexFile file ) {
 		for( Iterator<DexMethodBody> it = file.methodBodyIterator(); it.hasNext(); ) {
-			transform(it.next());
+			DexMethodBody body = it.next();
+			PhaseStatistics.Timer timer = PhaseStatistics.start(PhaseStatistics.RESTRUCTURE);
+			transform(body);
+			PhaseStatistics.stop(timer);
 		}
 	}
 	
@@ -0,0 +1,196 @@
+/**
+ * Copyright (c) 2011 Toccata Systems.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.toccatasystems.util;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide timing and counters for the phases of a conversion run.
+ * Collection is disabled by default, in which case the recording methods
+ * do nothing (and start() returns null).
+ *
+ * Times and allocations are measured on the thread running each phase, so
+ * with multiple worker threads the phase totals are sums across threads
+ * and may exceed the wall time of the run.
+ *
+ * @author nkeynes
+ *
+ */
+public class PhaseStatistics {
+	public final static int PARSE = 0;
+	public final static int CFG = 1;
+	public final static int USE_DEF = 2;
+	public final static int TYPES = 3;
+	public final static int RESTRUCTURE = 4;
+	public final static int BYTECODE = 5;
+	public final static int TO_BYTE_ARRAY = 6;
+	public final static int VERIFY = 7;
+	public final static int WRITE = 8;
+
+	public final static String []PHASE_NAMES = {
+		"parse", "computeCFG", "ComputeUseDefInfo", "TypeAssignment", "RestructureExceptions",
+		"BytecodeTransformer", "toByteArray", "verify", "write" };
+
+	public final static int CLASSES = 0;
+	public final static int METHODS = 1;
+	public final static int INSTRUCTIONS = 2;
+	public final static int BLOCKS = 3;
+	public final static int DATAFLOW_ITERATIONS = 4;
+
+	public final static String []COUNTER_NAMES = {
+		"classes", "methods", "instructions", "blocks", "dataflowIterations" };
+
+	/**
+	 * A phase in progress on the current thread.
+	 */
+	public static class Timer {
+		private int phase;
+		private long startTime;
+		private long startBytes;
+
+		private Timer( int phase ) {
+			this.phase = phase;
+			this.startBytes = getAllocatedBytes();
+			this.startTime = System.nanoTime();
+		}
+	}
+
+	private static volatile boolean enabled = false;
+	private static long startTime;
+	private static LongAdder []phaseTime = createAdders(PHASE_NAMES.length);
+	private static LongAdder []phaseBytes = createAdders(PHASE_NAMES.length);
+	private static LongAdder []phaseCalls = createAdders(PHASE_NAMES.length);
+	private static LongAdder []counters = createAdders(COUNTER_NAMES.length);
+	private static com.sun.management.ThreadMXBean threadBean;
+
+	static {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if( bean instanceof com.sun.management.ThreadMXBean &&
+				((com.sun.management.ThreadMXBean)bean).isThreadAllocatedMemorySupported() ) {
+			threadBean = (com.sun.management.ThreadMXBean)bean;
+			threadBean.setThreadAllocatedMemoryEnabled(true);
+		}
+	}
+
+	private static LongAdder[] createAdders( int n ) {
+		LongAdder []result = new LongAdder[n];
+		for( int i=0; i<n; i++ ) {
+			result[i] = new LongAdder();
+		}
+		return result;
+	}
+
+	private static long getAllocatedBytes() {
+		if( threadBean == null ) {
+			return 0;
+		}
+		return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Start collecting statistics. The wall time of the run is measured from
+	 * this point.
+	 */
+	public static void enable() {
+		startTime = System.nanoTime();
+		enabled = true;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Start timing a phase on the current thread.
+	 * @return the timer to pass to stop(), or null if collection is disabled.
+	 */
+	public static Timer start( int phase ) {
+		return enabled ? new Timer(phase) : null;
+	}
+
+	/**
+	 * Finish timing a phase.
+	 * @param timer the value returned by start() (may be null)
+	 */
+	public static void stop( Timer timer ) {
+		if( timer != null ) {
+			long time = System.nanoTime() - timer.startTime;
+			long bytes = getAllocatedBytes() - timer.startBytes;
+			phaseTime[timer.phase].add(time);
+			phaseBytes[timer.phase].add(bytes);
+			phaseCalls[timer.phase].increment();
+		}
+	}
+
+	public static void count( int counter, long value ) {
+		if( enabled ) {
+			counters[counter].add(value);
+		}
+	}
+
+	public static long getPhaseTime( int phase ) {
+		return phaseTime[phase].sum();
+	}
+
+	public static long getPhaseBytes( int phase ) {
+		return phaseBytes[phase].sum();
+	}
+
+	public static long getCount( int counter ) {
+		return counters[counter].sum();
+	}
+
+	/**
+	 * Print the statistics as a human-readable table.
+	 */
+	public static void printTable( PrintStream out ) {
+		long wallTime = System.nanoTime() - startTime;
+		out.println( String.format("%-22s %12s %12s %14s", "Phase", "Calls", "Time (ms)", "Allocated (KB)") );
+		for( int i=0; i<PHASE_NAMES.length; i++ ) {
+			out.println( String.format("%-22s %12d %12.1f %14d", PHASE_NAMES[i], phaseCalls[i].sum(),
+					phaseTime[i].sum() / 1e6, phaseBytes[i].sum() / 1024) );
+		}
+		out.println( String.format("%-22s %12s %12.1f", "total (wall)", "", wallTime / 1e6) );
+		out.println();
+		for( int i=0; i<COUNTER_NAMES.length; i++ ) {
+			out.println( String.format("%-22s %12d", COUNTER_NAMES[i], counters[i].sum()) );
+		}
+	}
+
+	/**
+	 * Print the statistics as a JSON object. Times are in nanoseconds.
+	 */
+	public static void printJSON( PrintStream out ) {
+		long wallTime = System.nanoTime() - startTime;
+		StringBuilder buf = new StringBuilder("{\n  \"wallTimeNanos\": ");
+		buf.append(wallTime).append(",\n  \"phases\": {");
+		for( int i=0; i<PHASE_NAMES.length; i++ ) {
+			buf.append(i == 0 ? "\n" : ",\n");
+			buf.append("    \"").append(PHASE_NAMES[i]).append("\": { \"calls\": ").append(phaseCalls[i].sum());
+			buf.append(", \"timeNanos\": ").append(phaseTime[i].sum());
+			buf.append(", \"allocatedBytes\": ").append(phaseBytes[i].sum()).append(" }");
+		}
+		buf.append("\n  },\n  \"counters\": {");
+		for( int i=0; i<COUNTER_NAMES.length; i++ ) {
+			buf.append(i == 0 ? "\n" : ",\n");
+			buf.append("    \"").append(COUNTER_NAMES[i]).append("\": ").append(counters[i].sum());
+		}
+		buf.append("\n  }\n}");
+		out.println(buf.toString());
+	}
+}
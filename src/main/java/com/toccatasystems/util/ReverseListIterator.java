@@ -26,7 +26,7 @@ public class ReverseListIterator<T> implements ListIterator<T> {
 	private ListIterator<T> it;
 	
 	public ReverseListIterator(List<T> list) {
-		it = list.listIterator(list.size()-1);
+		it = list.listIterator(list.size());
 	}
 	
 	public ReverseListIterator(List<T> list, int posn) {
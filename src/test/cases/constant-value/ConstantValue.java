@@ -0,0 +1,73 @@
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Static constants are stored in the dex file as trimmed encoded values
+ * rather than initialized by <clinit>. The fields are read reflectively, as
+ * javac would otherwise inline the constants into the tests.
+ */
+public class ConstantValue {
+
+    @Retention(RetentionPolicy.RUNTIME)
+    public @interface Values {
+        float f();
+        double d();
+        long l();
+        char c();
+    }
+
+    public final static byte BYTE = -2;
+    public final static short SHORT = -0x1234;
+    public final static char CHAR = (char)0xFFFE;
+    public final static int INT = -0x12345678;
+    public final static long LONG = 0x123456789ABCDEFL;
+    public final static boolean BOOLEAN = true;
+    public final static float FLOAT = 1.0f;
+    public final static float FLOAT2 = -2.5f;
+    public final static float FLOAT3 = 0.1f;
+    public final static double DOUBLE = 1.0;
+    public final static double DOUBLE2 = -2.5;
+    public final static double DOUBLE3 = 0.1;
+
+    private Object get( String name ) throws Exception {
+        return ConstantValue.class.getField(name).get(null);
+    }
+
+    @Test
+    public void testInteger() throws Exception {
+        assertEquals(Byte.valueOf((byte)-2), get("BYTE"));
+        assertEquals(Short.valueOf((short)-0x1234), get("SHORT"));
+        assertEquals(Character.valueOf((char)0xFFFE), get("CHAR"));
+        assertEquals(Integer.valueOf(-0x12345678), get("INT"));
+        assertEquals(Long.valueOf(0x123456789ABCDEFL), get("LONG"));
+        assertEquals(Boolean.TRUE, get("BOOLEAN"));
+    }
+
+    @Test
+    public void testFloat() throws Exception {
+        assertEquals(Float.valueOf(1.0f), get("FLOAT"));
+        assertEquals(Float.valueOf(-2.5f), get("FLOAT2"));
+        assertEquals(Float.valueOf(0.1f), get("FLOAT3"));
+    }
+
+    @Test
+    public void testDouble() throws Exception {
+        assertEquals(Double.valueOf(1.0), get("DOUBLE"));
+        assertEquals(Double.valueOf(-2.5), get("DOUBLE2"));
+        assertEquals(Double.valueOf(0.1), get("DOUBLE3"));
+    }
+
+    @Values(f = 1.0f, d = 1.0, l = -1L, c = 'A')
+    @Test
+    public void testAnnotation() throws Exception {
+        Values v = ConstantValue.class.getMethod("testAnnotation").getAnnotation(Values.class);
+        assertNotNull(v);
+        assertEquals(1.0f, v.f(), 0.0f);
+        assertEquals(1.0, v.d(), 0.0);
+        assertEquals(-1L, v.l());
+        assertEquals('A', v.c());
+    }
+}
@@ -0,0 +1,102 @@
+package com.toccatasystems.dedex;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.toccatasystems.dalvik.ClassFilter;
+
+/**
+ * Matching rules of the -f/--filter class patterns.
+ * @author nkeynes
+ *
+ */
+public class ClassFilterTest {
+
+	private static ClassFilter filter( String pattern ) {
+		ClassFilter filter = new ClassFilter();
+		filter.addPattern(pattern);
+		return filter;
+	}
+
+	@Test
+	public void emptyFilterAcceptsAll() {
+		ClassFilter filter = new ClassFilter();
+		Assert.assertTrue(filter.isEmpty());
+		Assert.assertTrue(filter.accept("com.vendor.Foo"));
+	}
+
+	@Test
+	public void starMatchesWithinOneName() {
+		ClassFilter filter = filter("com.vendor.*");
+		Assert.assertTrue(filter.accept("com.vendor.Foo"));
+		Assert.assertTrue(filter.accept("com.vendor.Foo$Bar"));
+		Assert.assertTrue(filter.accept("com.vendor."));
+		Assert.assertFalse(filter.accept("com.vendor.sdk.Foo"));
+		Assert.assertFalse(filter.accept("com.vendorx.Foo"));
+		Assert.assertTrue(filter("com.*.Foo").accept("com.vendor.Foo"));
+		Assert.assertFalse(filter("com.*.Foo").accept("com.vendor.sdk.Foo"));
+	}
+
+	@Test
+	public void doubleStarMatchesAcrossPackages() {
+		ClassFilter filter = filter("com.vendor.**");
+		Assert.assertTrue(filter.accept("com.vendor.Foo"));
+		Assert.assertTrue(filter.accept("com.vendor.sdk.internal.Foo$1"));
+		Assert.assertFalse(filter.accept("com.other.Foo"));
+		Assert.assertTrue(filter("**.Foo").accept("a.b.c.Foo"));
+		Assert.assertFalse(filter("**.Foo").accept("a.b.c.FooBar"));
+	}
+
+	@Test
+	public void questionMarkMatchesOneCharacter() {
+		ClassFilter filter = filter("com.vendor.Foo?");
+		Assert.assertTrue(filter.accept("com.vendor.Foo1"));
+		Assert.assertTrue(filter.accept("com.vendor.Foo$"));
+		Assert.assertFalse(filter.accept("com.vendor.Foo"));
+		Assert.assertFalse(filter.accept("com.vendor.Foo12"));
+		Assert.assertFalse(filter("com.vendor?Foo").accept("com.vendor.Foo"));
+	}
+
+	@Test
+	public void literalsAreQuoted() {
+		/* '.' and '$' in a glob are literal, not regex metacharacters */
+		ClassFilter filter = filter("com.vendor.Foo$Bar");
+		Assert.assertTrue(filter.accept("com.vendor.Foo$Bar"));
+		Assert.assertFalse(filter.accept("comXvendor.Foo$Bar"));
+		Assert.assertTrue(filter("a.(b)+.C").accept("a.(b)+.C"));
+		Assert.assertFalse(filter("a.(b)+.C").accept("a.bb.C"));
+	}
+
+	@Test
+	public void regexPatterns() {
+		ClassFilter filter = filter("re:com\\.vendor\\.(sdk|api)\\..*");
+		Assert.assertTrue(filter.accept("com.vendor.sdk.Foo"));
+		Assert.assertTrue(filter.accept("com.vendor.api.a.B"));
+		Assert.assertFalse(filter.accept("com.vendor.impl.Foo"));
+		/* The whole name must match */
+		Assert.assertFalse(filter("re:vendor").accept("com.vendor.Foo"));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void invalidRegex() {
+		filter("re:com.(vendor");
+	}
+
+	@Test
+	public void exactClassAndMultiplePatterns() {
+		ClassFilter filter = new ClassFilter();
+		filter.addClass("com.vendor.Foo$1");
+		filter.addPattern("org.**");
+		Assert.assertTrue(filter.accept("com.vendor.Foo$1"));
+		Assert.assertFalse(filter.accept("com.vendor.Foo$10"));
+		Assert.assertTrue(filter.accept("org.junit.Test"));
+		Assert.assertFalse(filter.accept("net.Foo"));
+	}
+
+	@Test
+	public void descriptors() {
+		ClassFilter filter = filter("com.vendor.*");
+		Assert.assertTrue(filter.acceptDescriptor("Lcom/vendor/Foo;"));
+		Assert.assertFalse(filter.acceptDescriptor("Lcom/vendor/sdk/Foo;"));
+	}
+}
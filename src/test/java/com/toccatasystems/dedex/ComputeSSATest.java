@@ -0,0 +1,79 @@
+package com.toccatasystems.dedex;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.toccatasystems.dalvik.DexBasicBlock;
+import com.toccatasystems.dalvik.DexFile;
+import com.toccatasystems.dalvik.DexInstruction;
+import com.toccatasystems.dalvik.DexMethodBody;
+import com.toccatasystems.dalvik.DexParser;
+import com.toccatasystems.dalvik.ParseException;
+import com.toccatasystems.dalvik.analysis.ComputeSSA;
+
+/**
+ * Cross-check the SSA form against the use-def chains computed by
+ * ComputeUseDefInfo: for every register read in every method of the test
+ * case dex files, the definitions reaching it through the SSA values (and
+ * any phis) must be exactly the instruction's use-def chain.
+ * @author nkeynes
+ *
+ */
+public class ComputeSSATest {
+
+	private final static String TEST_CASES = "/src/test/cases";
+
+	static File[] getDexFiles() {
+		String basedir = System.getProperty("basedir");
+		File dir = new File(basedir + TEST_CASES);
+		if( !dir.isDirectory() ) {
+			dir = new File(System.getProperty("user.dir") + TEST_CASES);
+		}
+		File []files = dir.listFiles(new FileFilter() {
+			public boolean accept( File file ) {
+				return file.getName().endsWith(".dex");
+			}
+		});
+		if( files == null || files.length == 0 ) {
+			throw new RuntimeException("Unable to locate test cases");
+		}
+		return files;
+	}
+
+	@Test
+	public void reachingDefsMatchUseDefChains() throws IOException, ParseException {
+		File []files = getDexFiles();
+		int operands = 0;
+		for( int f=0; f<files.length; f++ ) {
+			DexFile dex = new DexParser().parseFile(files[f]);
+			for( Iterator<DexMethodBody> it = dex.methodBodyIterator(); it.hasNext(); ) {
+				DexMethodBody body = it.next();
+				ComputeSSA ssa = new ComputeSSA();
+				ssa.analyse(body);
+				for( Iterator<DexBasicBlock> bit = body.iterator(); bit.hasNext(); ) {
+					for( Iterator<DexInstruction> iit = bit.next().iterator(); iit.hasNext(); ) {
+						DexInstruction inst = iit.next();
+						for( int i=0; i<inst.getNumRegisters(); i++ ) {
+							if( inst.isMove() ? i != 1 : !inst.readsOperand(i) ) {
+								continue;
+							}
+							Set<DexInstruction> expected = new TreeSet<DexInstruction>(inst.getRegisterDefs(i));
+							Assert.assertEquals( body.getParent().getDisplaySignature() + ": " +
+									inst.disassemble() + " operand " + i,
+									expected, ssa.getReachingDefs(inst, i) );
+							operands++;
+						}
+					}
+				}
+			}
+		}
+		Assert.assertTrue( "No operands checked", operands > 0 );
+	}
+}
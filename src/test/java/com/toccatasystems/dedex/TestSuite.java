@@ -64,8 +64,21 @@ public class TestSuite {
 		DexParser parser = new DexParser();
 		DexFile dex = parser.parseFile(test.getDexFile());
 		ClassLoaderWriter writer = new ClassLoaderWriter();
-		DexToClassTransformer transform = new DexToClassTransformer(writer,true);
+		ClassVerifier verifier = new ClassVerifier(1, true);
+		DexToClassTransformer transform = new DexToClassTransformer(new StrictVersionWriter(writer),verifier);
 		dex.visit(transform);
+		int verifyFailures = verifier.report(System.out);
+		verifier.shutdown();
+		if( verifyFailures != 0 ) {
+			System.out.println( "Failed verification" );
+			failCount++;
+			return;
+		}
+		if( !linkClasses(writer.getClasses()) ) {
+			System.out.println( "Failed JVM verification" );
+			failCount++;
+			return;
+		}
 		Result result = JUnitCore.runClasses(filterTests(writer.getClasses()));
 		int total = result.getRunCount();
 		int failed = result.getFailureCount();
@@ -80,6 +93,53 @@ public class TestSuite {
 		}
 	}
 	
+	/**
+	 * Passes classes on with their version raised to 51 (Java 7). Classes are
+	 * generated as version 50, for which the JVM falls back to the old
+	 * inferencing verifier if the stack map frames are rejected - from 51 on
+	 * it doesn't, so a bad frame from ComputeFrames fails the test.
+	 */
+	private static class StrictVersionWriter implements ClassOutputWriter {
+		private final static int STRICT_MAJOR_VERSION = 51;
+		private ClassOutputWriter out;
+
+		StrictVersionWriter( ClassOutputWriter out ) {
+			this.out = out;
+		}
+
+		public void begin( String filename, long timestamp ) { out.begin(filename, timestamp); }
+		public void end( String filename ) { out.end(filename); }
+		public void close() { out.close(); }
+
+		public void write( String internalClassName, byte[] classData ) {
+			byte []data = classData.clone();
+			/* u4 magic, u2 minor_version, u2 major_version */
+			data[6] = (byte)(STRICT_MAJOR_VERSION >> 8);
+			data[7] = (byte)STRICT_MAJOR_VERSION;
+			out.write(internalClassName, data);
+		}
+	}
+
+	/**
+	 * Initialize each of the classes, so that the JVM verifies all of them
+	 * rather than only those the tests happen to use.
+	 * @return true if all classes were verified successfully.
+	 */
+	private boolean linkClasses( Class<?>[] classes ) {
+		boolean ok = true;
+		for( int i=0; i<classes.length; i++ ) {
+			try {
+				Class.forName(classes[i].getName(), true, classes[i].getClassLoader());
+			} catch( VerifyError e ) {
+				System.out.println( e.toString() );
+				ok = false;
+			} catch( ClassNotFoundException e ) {
+				throw new RuntimeException(e);
+			}
+		}
+		return ok;
+	}
+	
 	/**
 	 * Filter the class array to return only the classes that actually contain
 	 * tests. Otherwise JUnit will complain about them and fail the tests.